@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://opensahara.com/licenses/apache-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.useekm.fulltext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.Token;
+
+import com.useekm.fulltext.antlr3.TextSearchLexer;
+
+/**
+ * Parses a full text query into a {@link FulltextSearch} AST. The query consists of words, prefix words (<code>xyz*</code>), parentheses, and
+ * the operators <code>|</code> for OR and <code>&amp;</code> or <code>&amp;&amp;</code> for AND. Words without an operator between them are
+ * combined with AND, which binds stronger than OR.
+ */
+public final class FulltextParser {
+    private final String query;
+    private final List<Token> tokens = new ArrayList<Token>();
+    private int position;
+
+    private FulltextParser(String query) {
+        this.query = query;
+        TextSearchLexer lexer = new TextSearchLexer(new ANTLRStringStream(query));
+        for (Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken())
+            if (token.getType() != TextSearchLexer.WS)
+                tokens.add(token);
+    }
+
+    /**
+     * @throws FulltextParseException if the query is empty or invalid
+     */
+    public static FulltextSearch parse(String query) {
+        FulltextParser parser = new FulltextParser(query);
+        FulltextSearch result = parser.parseOr();
+        if (parser.position < parser.tokens.size())
+            throw parser.error("unexpected " + parser.tokens.get(parser.position).getText());
+        return result;
+    }
+
+    private FulltextSearch parseOr() {
+        FulltextSearch result = parseAnd();
+        while (accept(TextSearchLexer.OR))
+            result = new Or(result, parseAnd());
+        return result;
+    }
+
+    private FulltextSearch parseAnd() {
+        FulltextSearch result = parseTerm();
+        while (position < tokens.size()) {
+            if (!accept(TextSearchLexer.AND) && !accept(TextSearchLexer.ANDX)) {
+                int type = tokens.get(position).getType();
+                if (type != TextSearchLexer.WORD && type != TextSearchLexer.PREFIXWORD && type != TextSearchLexer.OPEN)
+                    break;
+            }
+            result = new And(result, parseTerm());
+        }
+        return result;
+    }
+
+    private FulltextSearch parseTerm() {
+        if (position >= tokens.size())
+            throw error("unexpected end");
+        Token token = tokens.get(position++);
+        switch (token.getType()) {
+        case TextSearchLexer.WORD:
+            return new Word(token.getText());
+        case TextSearchLexer.PREFIXWORD:
+            return new Prefix(new Word(token.getText(), true));
+        case TextSearchLexer.OPEN:
+            FulltextSearch result = parseOr();
+            if (!accept(TextSearchLexer.CLOSE))
+                throw error("missing )");
+            return result;
+        default:
+            throw error("unexpected " + token.getText());
+        }
+    }
+
+    private boolean accept(int type) {
+        if (position < tokens.size() && tokens.get(position).getType() == type) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private FulltextParseException error(String message) {
+        return new FulltextParseException(new IllegalArgumentException(message), query);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.useekm.indexing.internal;
+
+import info.aduna.iteration.CloseableIteration;
+import info.aduna.iteration.LookAheadIteration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Join;
+import org.openrdf.query.algebra.evaluation.EvaluationStrategy;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+
+import edu.ncsa.sstde.indexing.algebra.IndexerExpr;
+
+/**
+ * Evaluates a {@link Join} with an {@link IndexerExpr} on its right side as a bind join. The binding sets of the left side are read in blocks of
+ * {@link #BLOCK_SIZE}, and the {@link IndexerExpr} is evaluated once per block with {@link IndexerExpr#evaluate(List)}, which lets the indexer
+ * restrict its query to the values of the block. The results are then joined with the binding sets of the block on their shared variables.
+ */
+public class BindJoinIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+    public static final int BLOCK_SIZE = 100;
+
+    private final CloseableIteration<BindingSet, QueryEvaluationException> leftIter;
+    private final IndexerExpr indexerExpr;
+    private final List<String> sharedNames;
+    /** the binding sets of the block that bind all shared variables, by their values */
+    private final Map<List<Value>, List<BindingSet>> keyed = new HashMap<List<Value>, List<BindingSet>>();
+    /** the binding sets of the block that leave a shared variable unbound */
+    private final List<BindingSet> unkeyed = new ArrayList<BindingSet>();
+    private CloseableIteration<BindingSet, QueryEvaluationException> rightIter;
+    private Iterator<BindingSet> matches;
+    private BindingSet rightResult;
+
+    public BindJoinIteration(EvaluationStrategy strategy, Join join, IndexerExpr indexerExpr, Set<String> sharedNames, BindingSet bindings)
+        throws QueryEvaluationException {
+        this.indexerExpr = indexerExpr;
+        this.sharedNames = new ArrayList<String>(sharedNames);
+        this.leftIter = strategy.evaluate(join.getLeftArg(), bindings);
+    }
+
+    @Override protected BindingSet getNextElement() throws QueryEvaluationException {
+        while (true) {
+            if (matches != null && matches.hasNext())
+                return join(matches.next(), rightResult);
+            if (rightIter != null && rightIter.hasNext()) {
+                rightResult = rightIter.next();
+                matches = findMatches(rightResult);
+            } else {
+                if (rightIter != null) {
+                    rightIter.close();
+                    rightIter = null;
+                }
+                List<BindingSet> block = nextBlock();
+                if (block.isEmpty())
+                    return null;
+                rightIter = indexerExpr.evaluate(block);
+            }
+        }
+    }
+
+    private List<BindingSet> nextBlock() throws QueryEvaluationException {
+        keyed.clear();
+        unkeyed.clear();
+        List<BindingSet> block = new ArrayList<BindingSet>(BLOCK_SIZE);
+        while (block.size() < BLOCK_SIZE && leftIter.hasNext()) {
+            BindingSet left = leftIter.next();
+            block.add(left);
+            List<Value> key = getKey(left);
+            if (key == null)
+                unkeyed.add(left);
+            else {
+                List<BindingSet> lefts = keyed.get(key);
+                if (lefts == null) {
+                    lefts = new ArrayList<BindingSet>(1);
+                    keyed.put(key, lefts);
+                }
+                lefts.add(left);
+            }
+        }
+        return block;
+    }
+
+    /**
+     * @return the values of the shared variables, or null if one of them is unbound
+     */
+    private List<Value> getKey(BindingSet bindings) {
+        List<Value> key = new ArrayList<Value>(sharedNames.size());
+        for (String name: sharedNames) {
+            Value value = bindings.getValue(name);
+            if (value == null)
+                return null;
+            key.add(value);
+        }
+        return key;
+    }
+
+    private Iterator<BindingSet> findMatches(BindingSet right) {
+        List<BindingSet> result = new ArrayList<BindingSet>();
+        List<BindingSet> lefts = keyed.get(getKey(right));
+        if (lefts != null)
+            result.addAll(lefts);
+        for (BindingSet left: unkeyed)
+            if (isCompatible(left, right))
+                result.add(left);
+        return result.iterator();
+    }
+
+    private boolean isCompatible(BindingSet left, BindingSet right) {
+        for (String name: sharedNames) {
+            Value leftValue = left.getValue(name);
+            Value rightValue = right.getValue(name);
+            if (leftValue != null && rightValue != null && !leftValue.equals(rightValue))
+                return false;
+        }
+        return true;
+    }
+
+    private BindingSet join(BindingSet left, BindingSet right) {
+        QueryBindingSet result = new QueryBindingSet(left);
+        for (String name: right.getBindingNames())
+            if (!result.hasBinding(name))
+                result.addBinding(name, right.getValue(name));
+        return result;
+    }
+
+    @Override protected void handleClose() throws QueryEvaluationException {
+        super.handleClose();
+        try {
+            leftIter.close();
+        } finally {
+            if (rightIter != null)
+                rightIter.close();
+        }
+    }
+}
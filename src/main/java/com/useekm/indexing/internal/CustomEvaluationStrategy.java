@@ -16,6 +16,7 @@ package com.useekm.indexing.internal;
 import info.aduna.iteration.CloseableIteration;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -24,6 +25,7 @@ import org.openrdf.model.ValueFactory;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Join;
 import org.openrdf.query.algebra.Projection;
 import org.openrdf.query.algebra.ProjectionElem;
 import org.openrdf.query.algebra.ProjectionElemList;
@@ -38,6 +40,8 @@ import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 
+import edu.ncsa.sstde.indexing.algebra.IndexerExpr;
+
 /**
  * An EvaluationStrategy for {@link QueryEvaluator}s that uses a top down approach were a query is evaluated by this stretegy top-down until
  * a {@link TupleExpr} subtree is reached that does not contain non-standard {@link TupleExpr} elements and hence can be evaluated natively by the underlying {@link Sail}.
@@ -86,6 +90,23 @@ public class CustomEvaluationStrategy extends EvaluationStrategyImpl {
             return evaluateNative(expr, bindings);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A join with an {@link IndexerExpr} on its right side that shares variables with its left side is evaluated as a bind join, see
+     * {@link BindJoinIteration}, instead of evaluating the {@link IndexerExpr} once for every binding set of the left side.
+     */
+    @Override public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(Join join, BindingSet bindings) throws QueryEvaluationException {
+        if (join.getRightArg() instanceof IndexerExpr) {
+            IndexerExpr indexerExpr = (IndexerExpr)join.getRightArg();
+            Set<String> sharedNames = new HashSet<String>(join.getLeftArg().getBindingNames());
+            sharedNames.retainAll(indexerExpr.getBindingNames());
+            if (!sharedNames.isEmpty())
+                return new BindJoinIteration(this, join, indexerExpr, sharedNames, bindings);
+        }
+        return super.evaluate(join, bindings);
+    }
+
     /**
      * Evaluates this (sub)query with this evaluation strategy. Will first call
      * {@link AbstractQueryEvaluator#customOptimize(org.openrdf.query.algebra.evaluation.EvaluationStrategy, TupleExpr, Dataset, BindingSet)} if
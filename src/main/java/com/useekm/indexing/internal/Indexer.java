@@ -14,6 +14,7 @@
 package com.useekm.indexing.internal;
 
 import java.util.Collection;
+import java.util.List;
 
 import info.aduna.iteration.CloseableIteration;
 
@@ -25,6 +26,7 @@ import org.openrdf.model.ValueFactory;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Group;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.sail.Sail;
@@ -32,6 +34,8 @@ import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import com.useekm.indexing.exception.IndexException;
 
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
+import edu.ncsa.sstde.indexing.IndexCostEstimator;
 import edu.ncsa.sstde.indexing.IndexerSettings;
 import edu.ncsa.sstde.indexing.IndexingSail;
 import edu.ncsa.sstde.indexing.IndexingSailConnection;
@@ -172,6 +176,21 @@ public interface Indexer {
 	void reindex(SailConnection connection) throws SailException,
 			IndexException;
 
+	/**
+	 * Does the same as {@link #reindex(SailConnection)}, but may read the
+	 * triple store through additional connections of the sail, so the work
+	 * can be spread over several threads.
+	 * 
+	 * @param connection
+	 *            The connection to use for the operation.
+	 * @param sail
+	 *            The sail behind the connection, may be null. Additional
+	 *            connections are opened and closed by the indexer, they do not
+	 *            see uncommitted changes of <code>connection</code>.
+	 */
+	void reindex(SailConnection connection, Sail sail) throws SailException,
+			IndexException;
+
 	/**
 	 * Creates an iterator that iterates over all permutations of all results of
 	 * the queries listed in the argument.
@@ -187,6 +206,79 @@ public interface Indexer {
 			ValueFactory valueFactory, IndexerExpr queries, BindingSet bindings)
 			throws QueryEvaluationException;
 
+	/**
+	 * Creates an iterator over the results of the expression that agree with
+	 * at least one binding set of a block, in one request to the index. It is
+	 * used to join the expression with the binding sets of the other side of
+	 * a join a block at a time.
+	 * <p>
+	 * Unlike {@link #iterator(ValueFactory, IndexerExpr, BindingSet)}, the
+	 * results only hold the bindings of the expression, and may include
+	 * results that agree with none of the binding sets. Joining them with the
+	 * block is left to the caller.
+	 * 
+	 * @param block
+	 *            the binding sets, not empty
+	 */
+	CloseableIteration<BindingSet, QueryEvaluationException> iterator(
+			ValueFactory valueFactory, IndexerExpr queries,
+			List<BindingSet> block) throws QueryEvaluationException;
+
+	/**
+	 * Estimates the number of results of an expression, for choosing the
+	 * order of the joins of a query.
+	 * 
+	 * @return the estimated number of results, or a negative number if the
+	 *         indexer has no estimate
+	 */
+	double estimateCardinality(IndexerExpr expr);
+
+	/**
+	 * Estimates the number of results of a matched graph, before it is part
+	 * of an {@link IndexerExpr}. The indexer may be the shared indexer of the
+	 * graph, not a session.
+	 * 
+	 * @return the estimated number of results, or a negative number if the
+	 *         indexer has no estimate
+	 */
+	double estimateCardinality(MatchedIndexedGraph graph);
+
+	/**
+	 * Estimates the cost of reading the results of a matched graph from the
+	 * index, for choosing between the graphs that match a query. The cost is
+	 * in the units of the indexer, see {@link IndexCostEstimator}.
+	 * 
+	 * @return the estimated cost, or a negative number if the indexer has no
+	 *         estimate
+	 */
+	double estimateCost(MatchedIndexedGraph graph);
+
+	/**
+	 * Decides if a graph of another indexer can be evaluated together with a
+	 * graph of this indexer, in one request to the index, joined on their
+	 * shared variables. The other graph is then added to
+	 * {@link MatchedIndexedGraph#getFusedGraphs()} of the graph.
+	 * 
+	 * @param graph
+	 *            a graph matched by this indexer
+	 * @param other
+	 *            a graph matched by another indexer, on other patterns of the
+	 *            same query, in the same join scope as the graph
+	 */
+	boolean canFuse(MatchedIndexedGraph graph, MatchedIndexedGraph other);
+
+	/**
+	 * Decides if the index can evaluate a {@link Group} on the results of a
+	 * graph, so it returns one result per group with its aggregates. The
+	 * group is then set as {@link MatchedIndexedGraph#getGroup()} of the
+	 * graph.
+	 * 
+	 * @param graph
+	 *            a graph matched by this indexer, that gives all the results
+	 *            the group is evaluated on
+	 */
+	boolean canGroup(MatchedIndexedGraph graph, Group group);
+
 	/**
 	 * provides a hook to further optimize or alter the given {@link TupleExpr},
 	 * before evaluation by the unerlying {@link Sail} and {@link Indexer}.
@@ -216,4 +308,56 @@ public interface Indexer {
 	 * clear the index
 	 */
 	void clear();
+
+	/**
+	 * An indexer may write the changes of a commit after the commit returns.
+	 * Every commit that changed the index then increases the watermark of
+	 * the indexer.
+	 * 
+	 * @return the watermark the index will reach once the changes that have
+	 *         been committed so far are written
+	 */
+	long getSubmittedWatermark();
+
+	/**
+	 * @return the watermark of the changes that are written to the index, it
+	 *         never decreases
+	 */
+	long getAppliedWatermark();
+
+	/**
+	 * @return the watermarks of the changes this indexer submitted since the
+	 *         last call, in the order they were submitted
+	 */
+	long[] takeSubmittedWatermarks();
+
+	/**
+	 * Tells if the changes of a watermark could not be written to the index
+	 * after all, once the applied watermark has reached it. A failure is
+	 * reported only once.
+	 * 
+	 * @return true if the changes of the watermark failed
+	 */
+	boolean removeFailedWatermark(long watermark);
+
+	/**
+	 * Waits until the applied watermark reaches <code>watermark</code>.
+	 * 
+	 * @param timeoutMillis
+	 *            the maximum time to wait, 0 to wait as long as it takes
+	 * @return false if the time ran out first
+	 */
+	boolean awaitWatermark(long watermark, long timeoutMillis)
+			throws InterruptedException;
+
+	/**
+	 * Waits until all changes committed longer than
+	 * <code>maxLagMillis</code> ago are written to the index.
+	 * 
+	 * @param timeoutMillis
+	 *            the maximum time to wait, 0 to wait as long as it takes
+	 * @return false if the time ran out first
+	 */
+	boolean awaitLag(long maxLagMillis, long timeoutMillis)
+			throws InterruptedException;
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import org.openrdf.query.algebra.TupleExpr;
+
+import com.useekm.indexing.internal.Indexer;
+
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
+
+/**
+ * Estimates the cost of a query as the cost of the index query of the graph,
+ * see {@link Indexer#estimateCost(MatchedIndexedGraph)}, plus the cost of
+ * evaluating the patterns the graph does not cover for every result of the
+ * index query:
+ * 
+ * <pre>
+ * cost + rows * (patterns - selected patterns) * nativePatternCost
+ * </pre>
+ * 
+ * So a graph with a selective index query, or one that leaves few patterns
+ * to the wrapped sail, is cheaper.
+ * 
+ * @author liangyu
+ * 
+ */
+public class DefaultIndexCostEstimator implements IndexCostEstimator {
+	/**
+	 * the cost of a pattern lookup in the wrapped sail, about the cost of a
+	 * random page read of the PostgreSQL planner
+	 */
+	public static final double DEFAULT_NATIVE_PATTERN_COST = 4.0;
+
+	private double nativePatternCost = DEFAULT_NATIVE_PATTERN_COST;
+
+	@Override
+	public double estimateCost(MatchedIndexedGraph graph, TupleExpr tupleExpr) {
+		Indexer indexer = graph.getIndexer();
+		double cost = indexer.estimateCost(graph);
+		double rows = indexer.estimateCardinality(graph);
+		if (cost < 0 || rows < 0) {
+			return -1;
+		}
+		int remaining = GraphAnalyzer.getStatementPatterns(tupleExpr).size()
+				- graph.getSelectedStatements().size();
+		return cost + rows * remaining * nativePatternCost;
+	}
+
+	/**
+	 * @return the cost of evaluating a pattern in the wrapped sail for one
+	 *         result of the index, in the units of the indexer
+	 */
+	public double getNativePatternCost() {
+		return nativePatternCost;
+	}
+
+	public void setNativePatternCost(double nativePatternCost) {
+		this.nativePatternCost = nativePatternCost;
+	}
+}
@@ -3,15 +3,21 @@ package edu.ncsa.sstde.indexing;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import org.openrdf.query.algebra.BinaryValueOperator;
 import org.openrdf.query.algebra.Compare;
 import org.openrdf.query.algebra.FunctionCall;
+import org.openrdf.query.algebra.Group;
+import org.openrdf.query.algebra.Join;
 import org.openrdf.query.algebra.OrderElem;
+import org.openrdf.query.algebra.QueryModelNode;
 import org.openrdf.query.algebra.QueryModelNodeBase;
 import org.openrdf.query.algebra.Regex;
 import org.openrdf.query.algebra.StatementPattern;
 import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ValueConstant;
 import org.openrdf.query.algebra.ValueExpr;
 import org.openrdf.query.algebra.Var;
 import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
@@ -88,6 +94,10 @@ public class GraphAnalyzer {
 		private Collection<String> usedVarNames = null;
 		private Indexer indexer = null;
 		private long limit = -1;
+		private Collection<MatchedIndexedGraph> fusedGraphs = null;
+		private Group group = null;
+		private boolean distinct = false;
+		private long offset = 0;
 
 		public long getLimit() {
 			return limit;
@@ -97,6 +107,42 @@ public class GraphAnalyzer {
 			this.limit = limit;
 		}
 
+		/**
+		 * @return the {@link Group} the index evaluates on the results of the
+		 *         graph, null if the results are not grouped
+		 */
+		public Group getGroup() {
+			return group;
+		}
+
+		public void setGroup(Group group) {
+			this.group = group;
+		}
+
+		/**
+		 * @return true if the index removes the duplicate results, which it
+		 *         only does when it gives the results of the query
+		 */
+		public boolean isDistinct() {
+			return distinct;
+		}
+
+		public void setDistinct(boolean distinct) {
+			this.distinct = distinct;
+		}
+
+		/**
+		 * @return the number of results the index skips, which it only does
+		 *         when it gives the results of the query
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		public void setOffset(long offset) {
+			this.offset = offset;
+		}
+
 		public Collection<String> getUsedVarNames() {
 			return usedVarNames;
 		}
@@ -141,6 +187,19 @@ public class GraphAnalyzer {
 			return indexer;
 		}
 
+		/**
+		 * @return the graphs of other indexers that are evaluated together
+		 *         with this graph, in one request to the index, joined on
+		 *         their shared variables
+		 * @see Indexer#canFuse(MatchedIndexedGraph, MatchedIndexedGraph)
+		 */
+		public Collection<MatchedIndexedGraph> getFusedGraphs() {
+			if (this.fusedGraphs == null) {
+				this.fusedGraphs = new ArrayList<MatchedIndexedGraph>();
+			}
+			return fusedGraphs;
+		}
+
 		/**
 		 * @return to get all the remained candidate statement patterns
 		 */
@@ -227,40 +286,8 @@ public class GraphAnalyzer {
 		public Collection<MatchedIndexedGraph> select(StatementPattern pattern) {
 			Collection<MatchedIndexedGraph> graphs = null;
 			for (StatementPattern pattern2 : this.remainedStatements) {
-
-				Map<String, String> nameMappingsCopy = null;
-				Collection<VarFilter> varFiltersCopy = null;
-
-				if (this.nameMappings == null) {
-					nameMappingsCopy = new HashMap<String, String>();
-				} else {
-					nameMappingsCopy = new HashMap<String, String>(
-							this.nameMappings);
-				}
-
-				if (this.varFilters == null) {
-					varFiltersCopy = new ArrayList<GraphAnalyzer.VarFilter>();
-				} else {
-					varFiltersCopy = new ArrayList<GraphAnalyzer.VarFilter>(
-							varFilters);
-				}
-
-				if (subsume(pattern, pattern2, nameMappingsCopy, varFiltersCopy)) {
-					Collection<StatementPattern> remainPs = new ArrayList<StatementPattern>(
-							this.remainedStatements);
-					Collection<StatementPattern> selectedPatternCopy = null;
-					if (this.selectedStatements == null) {
-						selectedPatternCopy = new ArrayList<StatementPattern>();
-					} else {
-						selectedPatternCopy = new ArrayList<StatementPattern>(
-								this.selectedStatements);
-					}
-					remainPs.remove(pattern2);
-					selectedPatternCopy.add(pattern2);
-
-					MatchedIndexedGraph graph = new MatchedIndexedGraph(
-							remainPs, selectedPatternCopy, nameMappingsCopy,
-							varFiltersCopy);
+				MatchedIndexedGraph graph = select(pattern, pattern2);
+				if (graph != null) {
 					if (graphs == null) {
 						graphs = new ArrayList<GraphAnalyzer.MatchedIndexedGraph>();
 					}
@@ -270,6 +297,54 @@ public class GraphAnalyzer {
 			return graphs;
 		}
 
+		/**
+		 * To select one candidate pattern for a pattern of the index graph.
+		 * 
+		 * @param pattern
+		 *            a pattern of the index graph
+		 * @param pattern2
+		 *            one of the remained candidate patterns
+		 * @return the graph extended with the candidate, or null if the
+		 *         pattern does not subsume the candidate
+		 */
+		MatchedIndexedGraph select(StatementPattern pattern,
+				StatementPattern pattern2) {
+			Map<String, String> nameMappingsCopy = null;
+			Collection<VarFilter> varFiltersCopy = null;
+
+			if (this.nameMappings == null) {
+				nameMappingsCopy = new HashMap<String, String>();
+			} else {
+				nameMappingsCopy = new HashMap<String, String>(
+						this.nameMappings);
+			}
+
+			if (this.varFilters == null) {
+				varFiltersCopy = new ArrayList<GraphAnalyzer.VarFilter>();
+			} else {
+				varFiltersCopy = new ArrayList<GraphAnalyzer.VarFilter>(
+						varFilters);
+			}
+
+			if (!subsume(pattern, pattern2, nameMappingsCopy, varFiltersCopy)) {
+				return null;
+			}
+			Collection<StatementPattern> remainPs = new ArrayList<StatementPattern>(
+					this.remainedStatements);
+			Collection<StatementPattern> selectedPatternCopy = null;
+			if (this.selectedStatements == null) {
+				selectedPatternCopy = new ArrayList<StatementPattern>();
+			} else {
+				selectedPatternCopy = new ArrayList<StatementPattern>(
+						this.selectedStatements);
+			}
+			remainPs.remove(pattern2);
+			selectedPatternCopy.add(pattern2);
+
+			return new MatchedIndexedGraph(remainPs, selectedPatternCopy,
+					nameMappingsCopy, varFiltersCopy);
+		}
+
 		/**
 		 * To decide if the statement pattern semantically subsume another
 		 * statement. For example, {?s ?p ?o} subsume any statements, which {?s
@@ -413,8 +488,44 @@ public class GraphAnalyzer {
 		} else if (base instanceof OrderElem) {
 			// for(OrderElem elem: ((Order) base).getElements()){
 			// Var var = (Var) elem.getExpr();
-			return ((Var) ((OrderElem) base).getExpr()).getName();
+			ValueExpr expr = ((OrderElem) base).getExpr();
+			if (expr instanceof Var) {
+				return ((Var) expr).getName();
+			}
+			Var var = getDistanceVar(expr);
+			if (var != null) {
+				return var.getName();
+			}
+		}
+		return null;
+	}
 
+	/**
+	 * Finds the variable of a nearest neighbour order: a distance function
+	 * between a variable and a constant geometry, with a constant unit if
+	 * any.
+	 * 
+	 * @param expr
+	 *            the expression of an {@link OrderElem}
+	 * @return the variable, or null if the expression is not a distance to a
+	 *         constant
+	 */
+	public static Var getDistanceVar(ValueExpr expr) {
+		if (!(expr instanceof FunctionCall)
+				|| !GeoSPARQLVoc.isDistancePred(((FunctionCall) expr).getURI())) {
+			return null;
+		}
+		List<ValueExpr> args = ((FunctionCall) expr).getArgs();
+		if (args.size() < 2 || args.size() > 3
+				|| (args.size() == 3 && getConstant(args.get(2)) == null)) {
+			return null;
+		}
+		for (int i = 0; i < 2; i++) {
+			ValueExpr arg = args.get(i);
+			if (arg instanceof Var && !((Var) arg).hasValue()
+					&& getConstant(args.get(1 - i)) != null) {
+				return (Var) arg;
+			}
 		}
 		return null;
 	}
@@ -494,7 +605,59 @@ public class GraphAnalyzer {
 	 * @return the best matched graph.
 	 */
 	public MatchedIndexedGraph selectBestMatchedGraph(TupleExpr tupleExpr) {
-		final Collection<StatementPattern> patterns = new ArrayList<StatementPattern>();
+		return analyzeQuery(getStatementPatterns(tupleExpr),
+				getFilters(tupleExpr));
+	}
+
+	/**
+	 * To select the best matched graph from the part of a {@link TupleExpr}
+	 * that is not matched yet: the patterns and filters that other graphs
+	 * selected are left out.
+	 * 
+	 * @param matched
+	 *            the graphs that are already matched to the query
+	 * @return the best matched graph, or null if no graph matches the rest of
+	 *         the query.
+	 */
+	public MatchedIndexedGraph selectBestMatchedGraph(TupleExpr tupleExpr,
+			Collection<MatchedIndexedGraph> matched) {
+		List<StatementPattern> patterns = getStatementPatterns(tupleExpr);
+		Map<String, Collection<QueryModelNodeBase>> constraints = getFilters(tupleExpr);
+		for (MatchedIndexedGraph graph : matched) {
+			removeAll(patterns, graph.getSelectedStatements());
+			for (Collection<QueryModelNodeBase> cons : constraints.values()) {
+				removeAll(cons, graph.getFunctionCalls());
+				removeAll(cons, graph.getCompares());
+				removeAll(cons, graph.getRegexs());
+				removeAll(cons, graph.getOrders());
+			}
+		}
+		return analyzeQuery(patterns, constraints);
+	}
+
+	/**
+	 * Removes the nodes from a collection, compared by identity.
+	 */
+	private static void removeAll(Collection<?> nodes,
+			Collection<?> toRemove) {
+		for (Iterator<?> iterator = nodes.iterator(); iterator.hasNext();) {
+			Object node = iterator.next();
+			for (Object removed : toRemove) {
+				if (node == removed) {
+					iterator.remove();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the statement patterns of a query, in the order they are
+	 *         visited
+	 */
+	public static List<StatementPattern> getStatementPatterns(
+			TupleExpr tupleExpr) {
+		final List<StatementPattern> patterns = new ArrayList<StatementPattern>();
 		tupleExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
 			@Override
 			public void meet(StatementPattern node) throws RuntimeException {
@@ -502,65 +665,256 @@ public class GraphAnalyzer {
 			}
 
 		});
-		return analyzeQuery(patterns, getFilters(tupleExpr));
+		return patterns;
+	}
+
+	/**
+	 * @return the topmost node a node of a query reaches through {@link Join}
+	 *         nodes alone. Two patterns with the same join scope are inner
+	 *         joined, they are not in different branches of a union or on
+	 *         different sides of an optional or a minus.
+	 */
+	public static QueryModelNode getJoinScope(QueryModelNode node) {
+		QueryModelNode scope = node;
+		while (scope.getParentNode() instanceof Join) {
+			scope = scope.getParentNode();
+		}
+		return scope;
+	}
+
+	/**
+	 * @return true if the selected patterns of the graphs and of their fused
+	 *         graphs are all in the same join scope
+	 * @see #getJoinScope(QueryModelNode)
+	 */
+	public static boolean inJoinScope(MatchedIndexedGraph... graphs) {
+		QueryModelNode scope = null;
+		for (MatchedIndexedGraph graph : graphs) {
+			List<StatementPattern> patterns = new ArrayList<StatementPattern>(
+					graph.getSelectedStatements());
+			for (MatchedIndexedGraph fused : graph.getFusedGraphs()) {
+				patterns.addAll(fused.getSelectedStatements());
+			}
+			for (StatementPattern pattern : patterns) {
+				QueryModelNode patternScope = getJoinScope(pattern);
+				if (scope == null) {
+					scope = patternScope;
+				} else if (scope != patternScope) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the {@link Compare}, {@link Regex}, {@link FunctionCall} and
+	 *         {@link OrderElem} nodes of a query, in the order they are
+	 *         visited
+	 */
+	public static List<QueryModelNodeBase> getFilterNodes(TupleExpr tupleExpr) {
+		final List<QueryModelNodeBase> result = new ArrayList<QueryModelNodeBase>();
+		tupleExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
+
+			@Override
+			public void meet(Compare node) throws RuntimeException {
+				result.add(node);
+				super.meet(node);
+			}
+
+			@Override
+			public void meet(FunctionCall node) throws RuntimeException {
+				result.add(node);
+				super.meet(node);
+			}
+
+			@Override
+			public void meet(OrderElem node) throws RuntimeException {
+				result.add(node);
+				super.meet(node);
+			}
+
+			@Override
+			public void meet(Regex node) throws RuntimeException {
+				result.add(node);
+				super.meet(node);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Matches the patterns of the index graph to given query patterns again,
+	 * in the order of {@link IndexGraph#getPatterns()}. It is used to apply a
+	 * match that was found before for a query of the same shape.
+	 * 
+	 * @param patterns
+	 *            all the statement patterns of the query
+	 * @param selected
+	 *            the query pattern selected for each pattern of the index
+	 *            graph
+	 * @return the matched graph, without filters, or null if a pattern does
+	 *         not match
+	 */
+	public MatchedIndexedGraph replay(Collection<StatementPattern> patterns,
+			List<StatementPattern> selected) {
+		MatchedIndexedGraph graph = new MatchedIndexedGraph(patterns, null,
+				null, null);
+		int i = 0;
+		for (StatementPattern pattern : this.indexingGraph.getPatterns()) {
+			if (i >= selected.size() || graph == null) {
+				return null;
+			}
+			graph = graph.select(pattern, selected.get(i++));
+		}
+		return graph;
 	}
 
 	/**
 	 * To select the best matched graph from a set of candidate statement
 	 * patterns, and the constraints imposed on the variables in those patterns.
+	 * The matches are searched with a {@link SubgraphMatcher}, and the search
+	 * stops as soon as a match reaches the highest score possible for the
+	 * query. Until then, of the matches with the same score, the one that
+	 * selects the earliest query patterns is kept.
 	 * 
 	 * @param patterns
 	 * @param constraints
 	 * @return the best matched pattern.
 	 */
 	private MatchedIndexedGraph analyzeQuery(
-			Collection<StatementPattern> patterns,
-			Map<String, Collection<QueryModelNodeBase>> constraints) {
-		// Map<String, LiteralDef> literalMap = this.indexingGraph
-		// .getLiteralDefMap();
-		Collection<MatchedIndexedGraph> graphs = filterGraph(patterns);
-
-		int maxScore = 0;
-		MatchedIndexedGraph bestGraph = null;
-		for (MatchedIndexedGraph graph : graphs) {
-			for (String key : graph.nameMappings.keySet()) {
-				String var = graph.nameMappings.get(key);
-				Collection<QueryModelNodeBase> cons = constraints.get(var);
-				if (cons != null) {
-					for (QueryModelNodeBase queryModelNodeBase : cons) {
-						if (queryModelNodeBase instanceof FunctionCall) {
-							FunctionCall call = (FunctionCall) queryModelNodeBase;
-							if (matchFunctionType(call, key)) {
-								graph.getFunctionCalls().add(call);
-							}
-						} else if (queryModelNodeBase instanceof Compare) {
-							if (DataTypeURI.isNumeric(this.indexingGraph
-									.getLiteralDefMap().get(key).getType())) {
-								graph.getCompares().add(
-										(Compare) queryModelNodeBase);
-							}
-						} else if (queryModelNodeBase instanceof Regex) {
-							if (DataTypeURI.isText(this.indexingGraph
-									.getLiteralDefMap().get(key).getType())) {
-								graph.getRegexs().add(
-										(Regex) queryModelNodeBase);
+			final List<StatementPattern> patterns,
+			final Map<String, Collection<QueryModelNodeBase>> constraints) {
+		final int maxScore = getMaxScore(constraints);
+		final MatchedIndexedGraph[] best = new MatchedIndexedGraph[1];
+		final int[] bestScore = new int[1];
+		final int[][] bestPositions = new int[1][];
+		new SubgraphMatcher(this.indexingGraph.getPatterns(), patterns)
+				.match(new SubgraphMatcher.MatchHandler() {
+					@Override
+					public boolean match(List<StatementPattern> selected) {
+						MatchedIndexedGraph graph = replay(patterns, selected);
+						if (graph == null) {
+							return true;
+						}
+						attachFilters(graph, constraints);
+						int score = graph.getScore();
+						int[] positions = null;
+						if (score == bestScore[0] && best[0] != null) {
+							positions = positions(patterns, selected);
+							if (!isBefore(positions, bestPositions[0])) {
+								return true;
 							}
-						} else if (queryModelNodeBase instanceof OrderElem) {
-							graph.getOrders().add(
-									(OrderElem) queryModelNodeBase);
+						} else if (score <= bestScore[0]) {
+							return true;
 						}
+						best[0] = graph;
+						bestScore[0] = score;
+						bestPositions[0] = positions == null ? positions(
+								patterns, selected) : positions;
+						return score < maxScore;
 					}
+				});
+		return best[0];
+
+	}
+
+	/**
+	 * Adds the constraints on the mapped variables of a graph to it.
+	 */
+	private void attachFilters(MatchedIndexedGraph graph,
+			Map<String, Collection<QueryModelNodeBase>> constraints) {
+		for (String key : graph.nameMappings.keySet()) {
+			String var = graph.nameMappings.get(key);
+			Collection<QueryModelNodeBase> cons = constraints.get(var);
+			if (cons != null) {
+				for (QueryModelNodeBase queryModelNodeBase : cons) {
+					if (queryModelNodeBase instanceof FunctionCall) {
+						FunctionCall call = (FunctionCall) queryModelNodeBase;
+						if (matchFunctionType(call, key)) {
+							graph.getFunctionCalls().add(call);
+						}
+					} else if (queryModelNodeBase instanceof Compare) {
+						if (DataTypeURI.isNumeric(this.indexingGraph
+								.getLiteralDefMap().get(key).getType())) {
+							graph.getCompares().add(
+									(Compare) queryModelNodeBase);
+						}
+					} else if (queryModelNodeBase instanceof Regex) {
+						LiteralDef literalDef = this.indexingGraph
+								.getLiteralDefMap().get(key);
+						if (literalDef != null
+								&& DataTypeURI.isText(literalDef.getType())
+								&& isSupportedRegex((Regex) queryModelNodeBase)) {
+							graph.getRegexs().add((Regex) queryModelNodeBase);
+						}
+					} else if (queryModelNodeBase instanceof OrderElem) {
+						OrderElem order = (OrderElem) queryModelNodeBase;
+						if (order.getExpr() instanceof Var ? isOrderable(key)
+								: isGeometry(key)) {
+							graph.getOrders().add(order);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the highest score a match can reach: every variable of the
+	 *         index graph bound to a constant, and every constraint attached
+	 *         to it. See {@link MatchedIndexedGraph#getScore()}.
+	 */
+	private int getMaxScore(
+			Map<String, Collection<QueryModelNodeBase>> constraints) {
+		int score = 0;
+		for (StatementPattern pattern : this.indexingGraph.getPatterns()) {
+			for (Var var : pattern.getVarList()) {
+				if (!var.hasValue()) {
+					score++;
 				}
 			}
+		}
+		for (Collection<QueryModelNodeBase> cons : constraints.values()) {
+			for (QueryModelNodeBase node : cons) {
+				if (node instanceof FunctionCall) {
+					score += 1000;
+				} else if (node instanceof Compare || node instanceof Regex) {
+					score += 10;
+				}
+			}
+		}
+		return score;
+	}
 
-			int score = graph.getScore();
-			if (score > maxScore) {
-				maxScore = score;
-				bestGraph = graph;
+	/**
+	 * @return the positions of the selected patterns in the query, compared
+	 *         by identity
+	 */
+	private static int[] positions(List<StatementPattern> patterns,
+			List<StatementPattern> selected) {
+		int[] result = new int[selected.size()];
+		for (int i = 0; i < result.length; i++) {
+			for (int j = 0; j < patterns.size(); j++) {
+				if (patterns.get(j) == selected.get(i)) {
+					result[i] = j;
+					break;
+				}
 			}
 		}
-		return bestGraph;
+		return result;
+	}
 
+	/**
+	 * @return true if the first positions come before the second ones
+	 */
+	private static boolean isBefore(int[] positions1, int[] positions2) {
+		for (int i = 0; i < positions1.length; i++) {
+			if (positions1[i] != positions2[i]) {
+				return positions1[i] < positions2[i];
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -575,40 +929,77 @@ public class GraphAnalyzer {
 	 * @return if the {@link FunctionCall} uses the correct data type.
 	 */
 	private boolean matchFunctionType(FunctionCall call, String var) {
-		
-		return DataTypeURI.isGeometry(this.indexingGraph.getLiteralDefMap()
-				.get(var).getType())
-				&& GeoSPARQLVoc.isGeoSPARQLPred(call.getURI());
+		LiteralDef literalDef = this.indexingGraph.getLiteralDefMap().get(var);
+		if (literalDef == null) {
+			return false;
+		}
+		if (GeoSPARQLVoc.isTextSearchPred(call.getURI())) {
+			return DataTypeURI.isText(literalDef.getType());
+		}
+		return DataTypeURI.isGeometry(literalDef.getType())
+				&& GeoSPARQLVoc.isGeoSPARQLPred(call.getURI())
+				&& !GeoSPARQLVoc.isDistancePred(call.getURI());
 	}
 
 	/**
-	 * To filter out all the possible matched graphs from the candidate
-	 * statement patterns.
-	 * 
-	 * @param targets
-	 *            the candidate statement patterns.
-	 * @return the collection of all possibly matched patterns.
+	 * @return true if the variable of the index graph is a literal other than
+	 *         a geometry, which the index orders the same way as SPARQL
 	 */
-	private Collection<MatchedIndexedGraph> filterGraph(
-			Collection<StatementPattern> targets) {
+	private boolean isOrderable(String var) {
+		LiteralDef literalDef = this.indexingGraph.getLiteralDefMap().get(var);
+		return literalDef != null
+				&& !DataTypeURI.isGeometry(literalDef.getType());
+	}
 
-		MatchedIndexedGraph startGraph = new MatchedIndexedGraph(targets, null,
-				null, null);
-		Collection<MatchedIndexedGraph> graphs = new ArrayList<GraphAnalyzer.MatchedIndexedGraph>();
-		graphs.add(startGraph);
-		for (StatementPattern pattern : this.indexingGraph.getPatterns()) {
-			Collection<MatchedIndexedGraph> newgraphs = new ArrayList<GraphAnalyzer.MatchedIndexedGraph>();
-			for (MatchedIndexedGraph graph : graphs) {
-				Collection<MatchedIndexedGraph> selectedGraphs = graph
-						.select(pattern);
-				if (selectedGraphs != null) {
-//					newgraphs.addAll(graph.select(pattern));
-					newgraphs.addAll(selectedGraphs);
-				}
+	/**
+	 * @return true if the variable of the index graph is a geometry, so a
+	 *         distance to it can be ordered by the spatial index
+	 */
+	private boolean isGeometry(String var) {
+		LiteralDef literalDef = this.indexingGraph.getLiteralDefMap().get(var);
+		return literalDef != null
+				&& DataTypeURI.isGeometry(literalDef.getType());
+	}
+
+	/**
+	 * To decide if a {@link Regex} can be evaluated by the index: it matches
+	 * a variable against a constant pattern, with constant flags, that
+	 * {@link SqlRegex} can translate.
+	 * 
+	 * @param regex
+	 *            the input {@link Regex}
+	 * @return if the {@link Regex} can be evaluated by the index.
+	 */
+	static boolean isSupportedRegex(Regex regex) {
+		if (!(regex.getArg() instanceof Var)
+				|| ((Var) regex.getArg()).hasValue()) {
+			return false;
+		}
+		String pattern = getConstant(regex.getPatternArg());
+		if (pattern == null) {
+			return false;
+		}
+		String flags = null;
+		if (regex.getFlagsArg() != null) {
+			flags = getConstant(regex.getFlagsArg());
+			if (flags == null) {
+				return false;
 			}
-			graphs = newgraphs;
 		}
-		return graphs;
+		return SqlRegex.translate(pattern, flags) != null;
+	}
+
+	/**
+	 * @return the label of a constant argument, or null if it is not a
+	 *         constant
+	 */
+	public static String getConstant(ValueExpr valueExpr) {
+		if (valueExpr instanceof ValueConstant) {
+			return ((ValueConstant) valueExpr).getValue().stringValue();
+		} else if (valueExpr instanceof Var && ((Var) valueExpr).hasValue()) {
+			return ((Var) valueExpr).getValue().stringValue();
+		}
+		return null;
 	}
 
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import org.openrdf.query.algebra.TupleExpr;
+
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
+
+/**
+ * Estimates what it costs to evaluate a query with a matched graph, so the
+ * {@link IndexManager} can choose the cheapest of the graphs of the indexers
+ * that match the query. An implementation is configured with the
+ * <code>class</code> attribute of the <code>cost-estimator</code> element of
+ * the index configuration, and may for example scale the estimates of
+ * {@link DefaultIndexCostEstimator} with latencies measured per indexer.
+ * 
+ * @author liangyu
+ * 
+ */
+public interface IndexCostEstimator {
+	/**
+	 * @param graph
+	 *            a graph matched to the query, with its indexer set
+	 * @param tupleExpr
+	 *            the query
+	 * @return the estimated cost, lower is better, or a negative number if
+	 *         there is no estimate. The graphs are ranked by
+	 *         {@link MatchedIndexedGraph#getScore()} when one of them has no
+	 *         estimate.
+	 */
+	double estimateCost(MatchedIndexedGraph graph, TupleExpr tupleExpr);
+}
@@ -0,0 +1,596 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of the statements added and removed by the commits of
+ * {@link IndexingSailConnection}, so the indexes can be brought up to date
+ * after a crash without a full reindex.
+ * <p>
+ * Each commit is appended as one record before it is applied to the triple
+ * store, and the commit waits until the record is on disk. Commits that reach
+ * {@link #sync(long)} together share a single fsync. Commits may finish in
+ * another order than they were appended, and a commit that fails is never
+ * acknowledged: the acknowledged offset of an indexer only moves over the
+ * records that it acknowledged without a gap, a record that is not
+ * acknowledged stays pending until it is read again with
+ * {@link #read(long, ValueFactory, RecordHandler)} and written, or replayed.
+ * On startup, the records
+ * after the acknowledged offset of an indexer are given to it again, see
+ * {@link IndexManager#recover(org.openrdf.sail.Sail)}.
+ * <p>
+ * The journal is stored as a sequence of segment files, named after the
+ * offset of their first record. A segment is deleted as soon as every
+ * indexer has acknowledged all of its records.
+ * <p>
+ * A record is stored as its length, a CRC32 of its content, and the content.
+ * A record that is cut off or damaged by a crash ends the journal; it
+ * belongs to a commit that never returned.
+ *
+ * @author liangyu
+ *
+ */
+public class IndexJournal {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(IndexJournal.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String ACK_PREFIX = "ack-";
+	private static final int HEADER_SIZE = 8;
+
+	private static final byte URI_TERM = 'U';
+	private static final byte BNODE_TERM = 'B';
+	private static final byte PLAIN_LITERAL_TERM = 'P';
+	private static final byte LANG_LITERAL_TERM = 'G';
+	private static final byte TYPED_LITERAL_TERM = 'T';
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private final File directory;
+	private final long segmentSize;
+	private final Object syncLock = new Object();
+	private final Map<String, RandomAccessFile> ackFiles = new HashMap<String, RandomAccessFile>();
+	private final Map<String, Long> acks = new HashMap<String, Long>();
+	/**
+	 * the start of every record appended or replayed, by its end, until it
+	 * is compacted
+	 */
+	private final TreeMap<Long, Long> records = new TreeMap<Long, Long>();
+	/** per indexer, the records acknowledged after a record that is not */
+	private final Map<String, TreeSet<Long>> acknowledged = new HashMap<String, TreeSet<Long>>();
+	/** the segments that were rolled over, closed by the next sync */
+	private final List<FileChannel> rolled = new ArrayList<FileChannel>();
+
+	private FileChannel channel;
+	private long segmentBase;
+	private long end;
+	private long synced;
+
+	/**
+	 * Opens the journal in the directory, or creates an empty one.
+	 */
+	public IndexJournal(File directory, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("can not create journal directory "
+					+ directory);
+		}
+		long[] segments = listSegments();
+		if (segments.length == 0) {
+			openSegment(0);
+		} else {
+			long last = segments[segments.length - 1];
+			openSegment(last);
+			long valid = scan(last, null, null);
+			if (valid < channel.size()) {
+				LOG.warn("truncating journal segment {} from {} to {} bytes",
+						new Object[] { last, channel.size(), valid });
+				channel.truncate(valid);
+			}
+			channel.position(valid);
+			end = last + valid;
+		}
+		synced = end;
+	}
+
+	/**
+	 * @return the offset after the last record
+	 */
+	public synchronized long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Appends a record with the changes of one commit. The record is not
+	 * durable before a {@link #sync(long)} with the returned offset.
+	 *
+	 * @return the offset after the record
+	 */
+	public synchronized long append(Collection<? extends Statement> added,
+			Collection<? extends Statement> removed) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(added.size());
+		out.writeInt(removed.size());
+		for (Statement statement : added) {
+			writeStatement(out, statement);
+		}
+		for (Statement statement : removed) {
+			writeStatement(out, statement);
+		}
+		out.flush();
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		int length = record.limit() - HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER_SIZE, length);
+		record.putInt(0, length);
+		record.putInt(4, (int) crc.getValue());
+
+		if (end > segmentBase && end - segmentBase + record.limit() > segmentSize) {
+			channel.force(false);
+			// a sync may still be forcing the old segment
+			rolled.add(channel);
+			openSegment(end);
+		}
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+		records.put(end + record.limit(), end);
+		end += record.limit();
+		return end;
+	}
+
+	/**
+	 * Waits until all records up to the offset are on disk. A thread that
+	 * forces the journal to disk also covers the records appended by other
+	 * threads in the mean time.
+	 */
+	public void sync(long offset) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= offset) {
+				return;
+			}
+			long target;
+			FileChannel current;
+			List<FileChannel> closing;
+			synchronized (this) {
+				target = end;
+				current = channel;
+				closing = new ArrayList<FileChannel>(rolled);
+				rolled.clear();
+			}
+			try {
+				// older segments are forced when the journal moves to a new
+				// one
+				current.force(false);
+				synced = target;
+			} finally {
+				// only a sync uses a channel outside the lock of the journal,
+				// and the syncs run one at a time
+				for (FileChannel old : closing) {
+					old.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the offset up to which the indexer has written the changes of
+	 *         the journal, the start of the journal if it never did
+	 */
+	public synchronized long getAcknowledged(String indexer) throws IOException {
+		Long ack = acks.get(indexer);
+		if (ack == null) {
+			RandomAccessFile file = getAckFile(indexer);
+			ack = file.length() >= 8 ? readAck(file) : listSegments()[0];
+			acks.put(indexer, ack);
+		}
+		return ack;
+	}
+
+	private long readAck(RandomAccessFile file) throws IOException {
+		file.seek(0);
+		return file.readLong();
+	}
+
+	/**
+	 * Records that the indexer has written the changes of the record that
+	 * ends at the offset. The acknowledged offset of the indexer moves over
+	 * all the records that are acknowledged without a gap, a record before
+	 * it that is not acknowledged yet holds it back. The acknowledgement is
+	 * not forced to disk: after a crash an indexer may be given a few records
+	 * again, which it applies without effect.
+	 */
+	public synchronized void acknowledge(String indexer, long offset)
+			throws IOException {
+		long previous = getAcknowledged(indexer);
+		if (offset <= previous) {
+			return;
+		}
+		TreeSet<Long> done = acknowledged.get(indexer);
+		if (done == null) {
+			done = new TreeSet<Long>();
+			acknowledged.put(indexer, done);
+		}
+		done.add(offset);
+		long ack = previous;
+		for (Map.Entry<Long, Long> record : records.tailMap(previous, false)
+				.entrySet()) {
+			// a record that was not appended or replayed here is a gap too
+			if (record.getValue() != ack || !done.remove(record.getKey())) {
+				break;
+			}
+			ack = record.getKey();
+		}
+		if (ack == previous) {
+			return;
+		}
+		RandomAccessFile file = getAckFile(indexer);
+		file.seek(0);
+		file.writeLong(ack);
+		acks.put(indexer, ack);
+	}
+
+	private RandomAccessFile getAckFile(String indexer) throws IOException {
+		RandomAccessFile file = ackFiles.get(indexer);
+		if (file == null) {
+			file = new RandomAccessFile(new File(directory, ACK_PREFIX
+					+ indexer), "rw");
+			ackFiles.put(indexer, file);
+		}
+		return file;
+	}
+
+	/**
+	 * Deletes the segments that all the indexers have acknowledged
+	 * completely.
+	 *
+	 * @return the number of segments deleted
+	 */
+	public synchronized int compact(Collection<String> indexers)
+			throws IOException {
+		long minimum = end;
+		for (String indexer : indexers) {
+			minimum = Math.min(minimum, getAcknowledged(indexer));
+		}
+		long[] segments = listSegments();
+		int deleted = 0;
+		for (int i = 0; i + 1 < segments.length
+				&& segments[i + 1] <= minimum; i++) {
+			if (deleted == 0) {
+				// the acknowledgements must survive the records they cover
+				for (RandomAccessFile file : ackFiles.values()) {
+					file.getChannel().force(false);
+				}
+			}
+			if (segmentFile(segments[i]).delete()) {
+				deleted++;
+			}
+		}
+		if (deleted > 0) {
+			LOG.info("compacted {} journal segments up to offset {}", deleted,
+					minimum);
+		}
+		records.headMap(minimum, true).clear();
+		return deleted;
+	}
+
+	/**
+	 * Reads all records from the offset on. The records are acknowledged
+	 * like the records that are appended.
+	 */
+	public synchronized void replay(long from, ValueFactory valueFactory,
+			RecordHandler handler) throws IOException {
+		for (long base : listSegments()) {
+			long next = nextSegment(base);
+			if (next <= from) {
+				continue;
+			}
+			scan(base, valueFactory, handler, from);
+		}
+	}
+
+	public void close() throws IOException {
+		synchronized (this) {
+			channel.force(false);
+			channel.close();
+			for (FileChannel old : rolled) {
+				old.close();
+			}
+			rolled.clear();
+			for (RandomAccessFile file : ackFiles.values()) {
+				file.getChannel().force(false);
+				file.close();
+			}
+			ackFiles.clear();
+		}
+	}
+
+	/**
+	 * Receives the records of {@link IndexJournal#replay}.
+	 */
+	public interface RecordHandler {
+		/**
+		 * @param end
+		 *            the offset after the record
+		 */
+		void handle(long end, List<Statement> added, List<Statement> removed)
+				throws IOException;
+	}
+
+	private long scan(long base, ValueFactory valueFactory,
+			RecordHandler handler) throws IOException {
+		return scan(base, valueFactory, handler, base);
+	}
+
+	/**
+	 * Reads the records of a segment, and passes the ones that end after
+	 * <code>from</code> to the handler.
+	 *
+	 * @return the length of the valid part of the segment
+	 */
+	private long scan(long base, ValueFactory valueFactory,
+			RecordHandler handler, long from) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(base), "r");
+		try {
+			FileChannel in = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			long position = 0;
+			while (true) {
+				header.clear();
+				if (!readFully(in, header, position)) {
+					return position;
+				}
+				int length = header.getInt(0);
+				int checksum = header.getInt(4);
+				if (length < 8 || position + HEADER_SIZE + length > in.size()) {
+					return position;
+				}
+				ByteBuffer content = ByteBuffer.allocate(length);
+				if (!readFully(in, content, position + HEADER_SIZE)) {
+					return position;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(content.array(), 0, length);
+				if ((int) crc.getValue() != checksum) {
+					return position;
+				}
+				long start = base + position;
+				position += HEADER_SIZE + length;
+				if (handler != null && base + position > from) {
+					records.put(base + position, start);
+					content.flip();
+					handle(content, base + position, valueFactory, handler);
+				}
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the record that ends at the offset again, for a commit that
+	 * failed. The record must not be acknowledged yet by every indexer.
+	 */
+	public void read(long offset, ValueFactory valueFactory,
+			RecordHandler handler) throws IOException {
+		Long start;
+		long base = 0;
+		synchronized (this) {
+			start = records.get(offset);
+			for (long segment : listSegments()) {
+				if (start != null && segment <= start) {
+					base = Math.max(base, segment);
+				}
+			}
+		}
+		if (start == null) {
+			throw new IOException("no journal record ends at " + offset);
+		}
+		// the segment is not deleted while the record is not acknowledged,
+		// and the record is not written any more
+		RandomAccessFile file = new RandomAccessFile(segmentFile(base), "r");
+		ByteBuffer content;
+		try {
+			FileChannel in = file.getChannel();
+			content = ByteBuffer.allocate((int) (offset - start) - HEADER_SIZE);
+			if (!readFully(in, content, start - base + HEADER_SIZE)) {
+				throw new EOFException("journal record at " + start);
+			}
+		} finally {
+			file.close();
+		}
+		content.flip();
+		handle(content, offset, valueFactory, handler);
+	}
+
+	private void handle(ByteBuffer content, long end,
+			ValueFactory valueFactory, RecordHandler handler)
+			throws IOException {
+		int added = content.getInt();
+		int removed = content.getInt();
+		List<Statement> adds = new ArrayList<Statement>(added);
+		List<Statement> removes = new ArrayList<Statement>(removed);
+		for (int i = 0; i < added; i++) {
+			adds.add(readStatement(content, valueFactory));
+		}
+		for (int i = 0; i < removed; i++) {
+			removes.add(readStatement(content, valueFactory));
+		}
+		handler.handle(end, adds, removes);
+	}
+
+	private boolean readFully(FileChannel in, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = in.read(buffer, position + buffer.position());
+			if (read < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void writeStatement(DataOutputStream out, Statement statement)
+			throws IOException {
+		writeTerm(out, statement.getSubject());
+		writeTerm(out, statement.getPredicate());
+		writeTerm(out, statement.getObject());
+	}
+
+	private void writeTerm(DataOutputStream out, Value value)
+			throws IOException {
+		if (value instanceof Literal) {
+			Literal literal = (Literal) value;
+			if (literal.getLanguage() != null) {
+				out.writeByte(LANG_LITERAL_TERM);
+				writeString(out, literal.getLabel());
+				writeString(out, literal.getLanguage());
+			} else if (literal.getDatatype() != null) {
+				out.writeByte(TYPED_LITERAL_TERM);
+				writeString(out, literal.getLabel());
+				writeString(out, literal.getDatatype().stringValue());
+			} else {
+				out.writeByte(PLAIN_LITERAL_TERM);
+				writeString(out, literal.getLabel());
+			}
+		} else if (value instanceof BNode) {
+			out.writeByte(BNODE_TERM);
+			writeString(out, ((BNode) value).getID());
+		} else {
+			out.writeByte(URI_TERM);
+			writeString(out, value.stringValue());
+		}
+	}
+
+	private void writeString(DataOutputStream out, String string)
+			throws IOException {
+		byte[] bytes = string.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private Statement readStatement(ByteBuffer in, ValueFactory valueFactory)
+			throws IOException {
+		Resource subject = (Resource) readTerm(in, valueFactory);
+		URI predicate = (URI) readTerm(in, valueFactory);
+		Value object = readTerm(in, valueFactory);
+		return valueFactory.createStatement(subject, predicate, object);
+	}
+
+	private Value readTerm(ByteBuffer in, ValueFactory valueFactory)
+			throws IOException {
+		byte kind = in.get();
+		switch (kind) {
+		case URI_TERM:
+			return valueFactory.createURI(readString(in));
+		case BNODE_TERM:
+			return valueFactory.createBNode(readString(in));
+		case PLAIN_LITERAL_TERM:
+			return valueFactory.createLiteral(readString(in));
+		case LANG_LITERAL_TERM:
+			return valueFactory.createLiteral(readString(in), readString(in));
+		case TYPED_LITERAL_TERM:
+			String label = readString(in);
+			return valueFactory.createLiteral(label,
+					valueFactory.createURI(readString(in)));
+		default:
+			throw new IOException("unknown term kind " + kind);
+		}
+	}
+
+	private String readString(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining()) {
+			throw new EOFException("string of " + length + " bytes");
+		}
+		String string = new String(in.array(), in.position(), length, UTF8);
+		in.position(in.position() + length);
+		return string;
+	}
+
+	private void openSegment(long base) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(base), "rw");
+		channel = file.getChannel();
+		channel.position(channel.size());
+		segmentBase = base;
+		end = base + channel.size();
+	}
+
+	private long nextSegment(long base) {
+		for (long segment : listSegments()) {
+			if (segment > base) {
+				return segment;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private File segmentFile(long base) {
+		return new File(directory, SEGMENT_PREFIX
+				+ String.format("%020d", base) + SEGMENT_SUFFIX);
+	}
+
+	private long[] listSegments() {
+		String[] names = directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		long[] segments = new long[names == null ? 0 : names.length];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = Long.parseLong(names[i].substring(
+					SEGMENT_PREFIX.length(),
+					names[i].length() - SEGMENT_SUFFIX.length()));
+		}
+		Arrays.sort(segments);
+		return segments;
+	}
+}
@@ -14,37 +14,62 @@
 package edu.ncsa.sstde.indexing;
 
 
+import info.aduna.iteration.CloseableIteration;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
 import org.dom4j.io.SAXReader;
 import org.openrdf.model.Statement;
+import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.query.MalformedQueryException;
 import org.openrdf.query.QueryLanguage;
 import org.openrdf.query.UnsupportedQueryLanguageException;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.query.parser.ParsedTupleQuery;
 import org.openrdf.query.parser.QueryParserUtil;
+import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.useekm.indexing.exception.IndexException;
 import com.useekm.indexing.internal.Indexer;
 
 import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
 
 
 public class IndexManager {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(IndexManager.class);
+	private static final int MATCH_PLAN_CACHE_SIZE = 1000;
 	private Collection<Indexer> indexers = null;
 	private static IndexManager manager = null;
+	private IndexJournal journal = null;
+	private MatchPlanCache matchPlans = null;
+	private IndexCostEstimator costEstimator = new DefaultIndexCostEstimator();
+	private int maxStagedStatements = 0;
+	private long maxStagedBytes = 0;
+	/** per indexer, the journal offsets and watermarks not yet acknowledged */
+	private final Map<String, ArrayDeque<long[]>> unacknowledged = new HashMap<String, ArrayDeque<long[]>>();
+	/** per indexer, the journal records whose changes failed to be written */
+	private final Map<String, TreeSet<Long>> failedRecords = new HashMap<String, TreeSet<Long>>();
 //	private Collection<Statement> toAddStatements = new ArrayList<Statement>();
 //	private Collection<Statement> toRemoveStatements = new ArrayList<Statement>();
 //	private int MAX_CACHE_SIZE = 1000;
@@ -86,6 +111,31 @@ public class IndexManager {
 	    }
 
 	
+	/**
+	 * Creates a session for every configured indexer. A session is an
+	 * indexer of its own, with the same name and settings, that borrows its
+	 * own database connection and keeps its own statements and state. It is
+	 * meant to be used by one {@link IndexingSailConnection} and closed with
+	 * it.
+	 * 
+	 * @return the sessions by indexer name, in the order of
+	 *         {@link #getIndexers()}
+	 */
+	public Map<String, Indexer> createSessions() {
+		Map<String, Indexer> sessions = new LinkedHashMap<String, Indexer>();
+		for (Indexer indexer : getIndexers()) {
+			Indexer session = indexer.getSettings().createIndexer();
+			session.setName(indexer.getName());
+			sessions.put(indexer.getName(), session);
+		}
+		return sessions;
+	}
+
+	/**
+	 * @return the configured indexers. They hold the metadata of the indexes
+	 *         and are shared by all connections; use
+	 *         {@link #createSessions()} to read or write an index.
+	 */
 	public Collection<Indexer> getIndexers() {
 		if (this.indexers == null) {
 			this.indexers = new ArrayList<Indexer>();
@@ -105,29 +155,181 @@ public class IndexManager {
 		configure(inputStream);
 	}
 
+	/**
+	 * Finds the index graph that matches a query best.
+	 * 
+	 * @return the best matched graph, or null if no index graph matches
+	 * @see #findIndexGraphs(TupleExpr)
+	 */
 	public MatchedIndexedGraph findBestIndexGraph(TupleExpr tupleExpr) {
-		int maxScore = 0;
-		MatchedIndexedGraph bestPattern = null;
-		for (Indexer indexer : getIndexers()) {
+		List<MatchedIndexedGraph> graphs = findIndexGraphs(tupleExpr, null);
+		return graphs.isEmpty() ? null : graphs.get(0);
+	}
+
+	/**
+	 * Finds the index graphs that cover a query, without overlapping: the
+	 * best matched graph first, then the best matched graph of the patterns
+	 * and filters that are left, and so on. The candidate matches of every
+	 * round are remembered per query shape and per graphs chosen before, see
+	 * {@link MatchPlanCache}, so for a query of a known shape they are only
+	 * applied to its patterns. The candidates are ranked again for every
+	 * query: the estimated costs depend on the constants of the query, not
+	 * only on its shape.
+	 * 
+	 * @param sessions
+	 *            the indexer sessions of the connection that evaluates the
+	 *            query, see {@link #createSessions()}. The costs are
+	 *            estimated by these sessions, and the matched graphs refer to
+	 *            them. If null, the shared indexers are used.
+	 * @return the matched graphs, best first, empty if no index graph matches
+	 */
+	public List<MatchedIndexedGraph> findIndexGraphs(TupleExpr tupleExpr,
+			Map<String, Indexer> sessions) {
+		MatchPlanCache plans = getMatchPlans();
+		StringBuffer key = new StringBuffer(plans.createKey(tupleExpr));
+		List<MatchedIndexedGraph> graphs = new ArrayList<MatchedIndexedGraph>();
+		while (!plans.isUnmatched(key.toString())) {
+			List<MatchedIndexedGraph> candidates = plans.find(key.toString(),
+					tupleExpr);
+			if (candidates == null) {
+				candidates = matchCandidates(tupleExpr, graphs);
+				plans.put(key.toString(), tupleExpr, candidates);
+			}
+			if (candidates.isEmpty()) {
+				break;
+			}
+			if (sessions != null) {
+				for (MatchedIndexedGraph candidate : candidates) {
+					candidate.setIndexer(sessions.get(candidate.getIndexer()
+							.getName()));
+				}
+			}
+			MatchedIndexedGraph graph = chooseBestIndexGraph(tupleExpr,
+					candidates);
+			graphs.add(graph);
+			key.append('|').append(graph.getIndexer().getName());
+		}
+		return graphs;
+	}
+
+	private synchronized MatchPlanCache getMatchPlans() {
+		if (matchPlans == null) {
+			matchPlans = new MatchPlanCache(getIndexers(),
+					MATCH_PLAN_CACHE_SIZE);
+		}
+		return matchPlans;
+	}
 
+	/**
+	 * Matches every index graph to the part of a query that is not matched
+	 * yet.
+	 * 
+	 * @return at most one match per index graph, referring to the shared
+	 *         indexers
+	 */
+	private List<MatchedIndexedGraph> matchCandidates(TupleExpr tupleExpr,
+			Collection<MatchedIndexedGraph> matched) {
+		List<MatchedIndexedGraph> candidates = new ArrayList<MatchedIndexedGraph>();
+		for (Indexer indexer : getIndexers()) {
 			GraphAnalyzer analyzer = new GraphAnalyzer(indexer.getSettings()
 					.getIndexGraph());
 
-			MatchedIndexedGraph graph = analyzer
-					.selectBestMatchedGraph(tupleExpr);
+			MatchedIndexedGraph graph = analyzer.selectBestMatchedGraph(
+					tupleExpr, matched);
 
 			if (graph != null) {
 				graph.setIndexer(indexer);
-				int thisscore = graph.getScore();
-				if (thisscore > maxScore) {
-					maxScore = thisscore;
-					bestPattern = graph;
-				}
+				candidates.add(graph);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Chooses the match with the lowest cost, see {@link #getCostEstimator()}.
+	 * Without a cost for every match, the match with the highest score is
+	 * chosen.
+	 */
+	private MatchedIndexedGraph chooseBestIndexGraph(TupleExpr tupleExpr,
+			List<MatchedIndexedGraph> candidates) {
+		if (candidates.size() < 2) {
+			return candidates.get(0);
+		}
+
+		double[] costs = new double[candidates.size()];
+		boolean estimated = true;
+		for (int i = 0; i < costs.length && estimated; i++) {
+			try {
+				costs[i] = costEstimator.estimateCost(candidates.get(i),
+						tupleExpr);
+			} catch (IndexException e) {
+				LOG.warn("could not estimate the cost of a match", e);
+				costs[i] = -1;
+			}
+			estimated = costs[i] >= 0;
+		}
+
+		MatchedIndexedGraph bestPattern = null;
+		int maxScore = 0;
+		double minCost = Double.MAX_VALUE;
+		for (int i = 0; i < costs.length; i++) {
+			MatchedIndexedGraph graph = candidates.get(i);
+			int thisscore = graph.getScore();
+			if (estimated ? costs[i] < minCost || costs[i] == minCost
+					&& thisscore > maxScore : thisscore > maxScore) {
+				minCost = costs[i];
+				maxScore = thisscore;
+				bestPattern = graph;
 			}
 		}
 		return bestPattern;
 	}
 
+	/**
+	 * @return the estimator that ranks the graphs that match a query
+	 */
+	public IndexCostEstimator getCostEstimator() {
+		return costEstimator;
+	}
+
+	public synchronized void setCostEstimator(IndexCostEstimator costEstimator) {
+		this.costEstimator = costEstimator;
+		matchPlans = null;
+	}
+
+	/**
+	 * @param className
+	 *            an {@link IndexCostEstimator} with a constructor without
+	 *            arguments
+	 * @throws IndexException
+	 *             if the estimator cannot be created
+	 */
+	private static IndexCostEstimator createCostEstimator(String className) {
+		try {
+			return Class.forName(className)
+					.asSubclass(IndexCostEstimator.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			throw new IndexException("could not find the cost estimator "
+					+ className, e);
+		} catch (ClassCastException e) {
+			throw new IndexException(className + " is not an "
+					+ IndexCostEstimator.class.getSimpleName(), e);
+		} catch (NoSuchMethodException e) {
+			throw new IndexException("the cost estimator " + className
+					+ " has no constructor without arguments", e);
+		} catch (InstantiationException e) {
+			throw new IndexException("could not create the cost estimator "
+					+ className, e);
+		} catch (IllegalAccessException e) {
+			throw new IndexException("could not create the cost estimator "
+					+ className, e);
+		} catch (InvocationTargetException e) {
+			throw new IndexException("could not create the cost estimator "
+					+ className, e.getCause());
+		}
+	}
+
 	public MatchedIndexedGraph findBestIndexer(String sparql)
 			throws MalformedQueryException, UnsupportedQueryLanguageException {
 
@@ -140,10 +342,52 @@ public class IndexManager {
 		return graph;
 	}
 
+	/**
+	 * @throws IndexException
+	 *             if the configured journal can not be opened
+	 */
 	public void configure(InputStream file) {
 
 		try {
 			Document document = (new SAXReader()).read(file);
+			Element stagingElm = document.getRootElement().element("staging");
+			if (stagingElm != null) {
+				String maxStatements = stagingElm
+						.attributeValue("max-statements");
+				if (maxStatements != null) {
+					this.maxStagedStatements = Integer.parseInt(maxStatements
+							.trim());
+				}
+				String maxBytes = stagingElm.attributeValue("max-bytes");
+				if (maxBytes != null) {
+					this.maxStagedBytes = Long.parseLong(maxBytes.trim());
+				}
+				if (maxStagedStatements > 0 || maxStagedBytes > 0) {
+					LOG.warn("large transactions are committed in chunks,"
+							+ " a rollback only discards the last chunk");
+				}
+			}
+			Element costElm = document.getRootElement().element(
+					"cost-estimator");
+			if (costElm != null) {
+				setCostEstimator(createCostEstimator(costElm.attributeValue(
+						"class").trim()));
+			}
+			Element journalElm = document.getRootElement().element("journal");
+			if (journalElm != null) {
+				String segmentSize = journalElm.attributeValue("segment-size");
+				// without its journal the sail would lose the changes of an
+				// interrupted commit, it must not run at all
+				try {
+					this.journal = new IndexJournal(new File(
+							journalElm.attributeValue("directory")),
+							segmentSize == null ? IndexJournal.DEFAULT_SEGMENT_SIZE
+									: Long.parseLong(segmentSize.trim()));
+				} catch (IOException e) {
+					throw new IndexException("could not open the index journal in "
+							+ journalElm.attributeValue("directory"), e);
+				}
+			}
 			@SuppressWarnings("unchecked")
 			List<Element> indexerElms = document.getRootElement().elements(
 					"indexer");
@@ -180,6 +424,10 @@ public class IndexManager {
 				indexer.setName(indexerElm.attributeValue("name"));
 				getIndexers().add(indexer);
 			}
+			// the index graphs changed, forget the matches of the old ones
+			synchronized (this) {
+				matchPlans = null;
+			}
 		} catch (DocumentException e) {
 			e.printStackTrace();
 		} catch (InstantiationException e) {
@@ -246,8 +494,416 @@ public class IndexManager {
 	public void close() {
 
 		for (Indexer indexer : this.getIndexers()) {
+			// let the changes that are committed reach the index first
+			try {
+				indexer.awaitWatermark(indexer.getSubmittedWatermark(), 0);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IndexException e) {
+				LOG.warn("could not wait for the index writer", e);
+			}
 			indexer.close();
+			indexer.getSettings().shutDown();
+		}
+		if (this.journal != null) {
+			try {
+				acknowledge(-1);
+				this.journal.close();
+			} catch (SailException e) {
+				LOG.warn("could not acknowledge the journal", e);
+			} catch (IOException e) {
+				LOG.warn("could not close the journal", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of staged statements at which a connection commits
+	 *         the changes it has so far, 0 for no limit, which is the default.
+	 *         With a limit a transaction is no longer atomic: the chunks that
+	 *         were committed stay in the sail and the indexes when the
+	 *         transaction is rolled back or fails later.
+	 */
+	public int getMaxStagedStatements() {
+		return maxStagedStatements;
+	}
+
+	public void setMaxStagedStatements(int maxStagedStatements) {
+		this.maxStagedStatements = maxStagedStatements;
+	}
+
+	/**
+	 * @return the estimated heap size in bytes of the staged statements at
+	 *         which a connection commits the changes it has so far, 0 for no
+	 *         limit, which is the default. Like
+	 *         {@link #getMaxStagedStatements()}, a limit gives up the
+	 *         atomicity of a transaction.
+	 */
+	public long getMaxStagedBytes() {
+		return maxStagedBytes;
+	}
+
+	public void setMaxStagedBytes(long maxStagedBytes) {
+		this.maxStagedBytes = maxStagedBytes;
+	}
+
+	/**
+	 * @return the journal of the committed changes, null if no journal is
+	 *         configured
+	 */
+	public IndexJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Writes the changes of a commit to the journal, and waits until they are
+	 * on disk.
+	 * 
+	 * @return the journal offset after the changes, to pass to
+	 *         {@link #acknowledge(long)} once they are applied, or -1 without
+	 *         a journal
+	 */
+	public long journal(Collection<? extends Statement> toAdd,
+			Collection<? extends Statement> toRemove) throws SailException {
+		if (this.journal == null || (toAdd.isEmpty() && toRemove.isEmpty())) {
+			return -1;
 		}
+		try {
+			long offset = this.journal.append(toAdd, toRemove);
+			this.journal.sync(offset);
+			return offset;
+		} catch (IOException e) {
+			throw new SailException("could not write the index journal", e);
+		}
+	}
+
+	/**
+	 * Only acknowledges what has been written since the last call.
+	 * 
+	 * @see #acknowledge(long, Map)
+	 */
+	public void acknowledge(long offset) throws SailException {
+		acknowledge(offset, null);
+	}
+
+	/**
+	 * Records that the changes of the journal record that ends at the offset
+	 * have been passed to every indexer. An indexer acknowledges them as soon
+	 * as they are written to the index, which may be later for an indexer
+	 * that writes in the background. A commit that failed is not
+	 * acknowledged, and neither are changes that an indexer failed to write
+	 * in the background: their record is replayed on the next start.
+	 * Segments of the journal that every indexer has acknowledged are
+	 * deleted.
+	 * 
+	 * @param offset
+	 *            the offset returned by {@link #journal}, or -1 to only
+	 *            acknowledge what has been written since the last call
+	 * @param sessions
+	 *            the sessions that wrote the changes, by indexer name, whose
+	 *            {@link Indexer#takeSubmittedWatermarks()} tell which
+	 *            changes belong to the record
+	 */
+	public synchronized void acknowledge(long offset,
+			Map<String, Indexer> sessions) throws SailException {
+		if (this.journal == null) {
+			// nothing to keep, only forget the watermarks
+			if (sessions != null) {
+				for (Indexer session : sessions.values()) {
+					session.takeSubmittedWatermarks();
+				}
+			}
+			return;
+		}
+		try {
+			for (Indexer indexer : getIndexers()) {
+				ArrayDeque<long[]> pending = getPending(indexer.getName());
+				if (offset >= 0) {
+					Indexer session = sessions == null ? null : sessions
+							.get(indexer.getName());
+					pending.add(entry(offset, session == null ? new long[0]
+							: session.takeSubmittedWatermarks()));
+				}
+				long applied = indexer.getAppliedWatermark();
+				// the journal holds an offset back until the commits before
+				// it are acknowledged as well
+				while (!pending.isEmpty()
+						&& getLastWatermark(pending.peek()) <= applied) {
+					long[] entry = pending.poll();
+					if (hasFailed(indexer, entry)
+							|| isFailedRecord(indexer.getName(), entry[0])) {
+						addFailedRecord(indexer.getName(), entry[0]);
+					} else {
+						this.journal.acknowledge(indexer.getName(), entry[0]);
+					}
+				}
+			}
+			this.journal.compact(getIndexerNames());
+		} catch (IOException e) {
+			throw new SailException("could not acknowledge the index journal",
+					e);
+		}
+	}
+
+	/**
+	 * @return the offset followed by the watermarks
+	 */
+	private static long[] entry(long offset, long[] watermarks) {
+		long[] entry = new long[watermarks.length + 1];
+		entry[0] = offset;
+		System.arraycopy(watermarks, 0, entry, 1, watermarks.length);
+		return entry;
+	}
+
+	/**
+	 * @return the last watermark of an entry, 0 if the changes were written
+	 *         before the commit returned
+	 */
+	private static long getLastWatermark(long[] entry) {
+		return entry.length > 1 ? entry[entry.length - 1] : 0;
+	}
+
+	/**
+	 * @param entry
+	 *            a journal offset followed by the watermarks of its changes
+	 * @return true if the indexer failed to write some of the changes
+	 */
+	private static boolean hasFailed(Indexer indexer, long[] entry) {
+		boolean failed = false;
+		for (int i = 1; i < entry.length; i++) {
+			// every failure is taken, so none is left behind
+			if (indexer.removeFailedWatermark(entry[i])) {
+				failed = true;
+			}
+		}
+		return failed;
+	}
+
+	private ArrayDeque<long[]> getPending(String indexer) {
+		ArrayDeque<long[]> pending = unacknowledged.get(indexer);
+		if (pending == null) {
+			pending = new ArrayDeque<long[]>();
+			unacknowledged.put(indexer, pending);
+		}
+		return pending;
+	}
+
+	private boolean isFailedRecord(String indexer, long offset) {
+		TreeSet<Long> failed = failedRecords.get(indexer);
+		return failed != null && failed.contains(offset);
+	}
+
+	private void addFailedRecord(String indexer, long offset) {
+		LOG.warn("{}: the changes of journal record {} were not written,"
+				+ " the record is kept", indexer, offset);
+		TreeSet<Long> failed = failedRecords.get(indexer);
+		if (failed == null) {
+			failed = new TreeSet<Long>();
+			failedRecords.put(indexer, failed);
+		}
+		failed.add(offset);
+	}
+
+	/**
+	 * Records that a commit failed after its changes were journaled. Its
+	 * record is not acknowledged, but given to the indexers again by
+	 * {@link #retryFailed(SailConnection, Map)}.
+	 * 
+	 * @param sessions
+	 *            the sessions of the commit, by indexer name
+	 */
+	public synchronized void fail(long offset, Map<String, Indexer> sessions) {
+		if (this.journal == null || offset < 0) {
+			return;
+		}
+		for (Indexer indexer : getIndexers()) {
+			Indexer session = sessions.get(indexer.getName());
+			// the changes the commit submitted before it failed are waited
+			// for like the ones of any commit, to take their failures too
+			getPending(indexer.getName()).add(
+					entry(offset, session == null ? new long[0] : session
+							.takeSubmittedWatermarks()));
+			addFailedRecord(indexer.getName(), offset);
+		}
+	}
+
+	/**
+	 * Gives the indexers the journal records they failed to write again, the
+	 * way {@link #recover(Sail)} does. A record that is written now is
+	 * acknowledged, a record that fails again is kept for the next call, so
+	 * one failure does not hold the journal back until the next start.
+	 * 
+	 * @param connection
+	 *            the connection to read the triple store with, it must not
+	 *            have changes of its own
+	 * @param sessions
+	 *            the sessions to write the indexes with, by indexer name
+	 */
+	public void retryFailed(final SailConnection connection,
+			Map<String, Indexer> sessions) {
+		Map<String, List<Long>> retries = new HashMap<String, List<Long>>();
+		synchronized (this) {
+			if (this.journal == null || failedRecords.isEmpty()) {
+				return;
+			}
+			for (Map.Entry<String, TreeSet<Long>> failed : failedRecords
+					.entrySet()) {
+				retries.put(failed.getKey(),
+						new ArrayList<Long>(failed.getValue()));
+			}
+		}
+		for (Indexer indexer : getIndexers()) {
+			List<Long> offsets = retries.get(indexer.getName());
+			final Indexer session = sessions.get(indexer.getName());
+			if (offsets == null || session == null) {
+				continue;
+			}
+			for (long offset : offsets) {
+				try {
+					this.journal.read(offset, ValueFactoryImpl.getInstance(),
+							new IndexJournal.RecordHandler() {
+								@Override
+								public void handle(long end,
+										List<Statement> added,
+										List<Statement> removed)
+										throws IOException {
+									try {
+										session.addBatch(connection, filter(
+												connection, added, true));
+										session.removeBatch(connection, filter(
+												connection, removed, false));
+									} catch (SailException e) {
+										throw new IOException(e);
+									}
+								}
+							});
+					long[] entry = entry(offset,
+							session.takeSubmittedWatermarks());
+					indexer.awaitWatermark(getLastWatermark(entry), 0);
+					if (hasFailed(indexer, entry)) {
+						LOG.warn("{}: could not write journal record {} again",
+								indexer.getName(), offset);
+						break;
+					}
+					synchronized (this) {
+						failedRecords.get(indexer.getName()).remove(offset);
+						this.journal.acknowledge(indexer.getName(), offset);
+					}
+					LOG.info("{}: wrote journal record {} again",
+							indexer.getName(), offset);
+				} catch (IOException e) {
+					LOG.warn(indexer.getName() + ": could not write journal record "
+							+ offset + " again", e);
+					break;
+				} catch (IndexException e) {
+					LOG.warn(indexer.getName() + ": could not write journal record "
+							+ offset + " again", e);
+					break;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		synchronized (this) {
+			try {
+				this.journal.compact(getIndexerNames());
+			} catch (IOException e) {
+				LOG.warn("could not compact the index journal", e);
+			}
+		}
+	}
+
+	/**
+	 * Gives every indexer the journaled changes it has not acknowledged, which
+	 * are the changes of commits that were interrupted by a crash. An added
+	 * statement is only indexed if it is in the triple store, and a removed
+	 * statement is only removed from the index if it is no longer in the
+	 * store, so a change is applied the way the triple store ended up with
+	 * it.
+	 */
+	public void recover(Sail sail) throws SailException {
+		if (this.journal == null) {
+			return;
+		}
+		final SailConnection connection = sail.getConnection();
+		try {
+			for (final Indexer indexer : getIndexers()) {
+				long from = this.journal.getAcknowledged(indexer.getName());
+				if (from >= this.journal.getEnd()) {
+					continue;
+				}
+				LOG.info("{}: replaying journal from offset {} to {}",
+						new Object[] { indexer.getName(), from,
+								this.journal.getEnd() });
+				this.journal.replay(from, sail.getValueFactory(),
+						new IndexJournal.RecordHandler() {
+							@Override
+							public void handle(long end,
+									List<Statement> added,
+									List<Statement> removed)
+									throws IOException {
+								try {
+									indexer.addBatch(connection,
+											filter(connection, added, true));
+									indexer.removeBatch(connection,
+											filter(connection, removed, false));
+									long[] entry = entry(end,
+											indexer.takeSubmittedWatermarks());
+									indexer.awaitWatermark(
+											indexer.getSubmittedWatermark(), 0);
+									if (hasFailed(indexer, entry)) {
+										throw new IOException(indexer
+												.getName()
+												+ ": could not write the changes of record "
+												+ end);
+									}
+									journal.acknowledge(indexer.getName(), end);
+								} catch (SailException e) {
+									throw new IOException(e);
+								} catch (InterruptedException e) {
+									Thread.currentThread().interrupt();
+									throw new IOException(e);
+								}
+							}
+						});
+			}
+			this.journal.compact(getIndexerNames());
+		} catch (IOException e) {
+			throw new SailException("could not replay the index journal", e);
+		} finally {
+			connection.close();
+		}
+	}
+
+	private Collection<String> getIndexerNames() {
+		Collection<String> names = new ArrayList<String>();
+		for (Indexer indexer : getIndexers()) {
+			names.add(indexer.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * @return the statements that are (or are not) in the triple store
+	 */
+	private List<Statement> filter(SailConnection connection,
+			List<Statement> statements, boolean inStore) throws SailException {
+		List<Statement> result = new ArrayList<Statement>(statements.size());
+		for (Statement statement : statements) {
+			CloseableIteration<? extends Statement, SailException> found = connection
+					.getStatements(statement.getSubject(),
+							statement.getPredicate(), statement.getObject(),
+							false);
+			try {
+				if (found.hasNext() == inStore) {
+					result.add(statement);
+				}
+			} finally {
+				found.close();
+			}
+		}
+		return result;
 	}
 
 	public void reindex(SailConnection connection) throws SailException {
@@ -257,6 +913,19 @@ public class IndexManager {
 		}
 	}
 
+	/**
+	 * Rebuilds every index, the indexers may read the sail through additional
+	 * connections.
+	 * 
+	 * @see Indexer#reindex(SailConnection, Sail)
+	 */
+	public void reindex(SailConnection connection, Sail sail)
+			throws SailException {
+		for (Indexer indexer : getIndexers()) {
+			indexer.reindex(connection, sail);
+		}
+	}
+
 	public void addBatch(SailConnection sailConnection, Collection<Statement> toAdd) {
 		for (Indexer indexer: this.getIndexers()) {
 			indexer.addBatch(sailConnection, toAdd);
@@ -28,6 +28,7 @@ import org.openrdf.query.algebra.helpers.StatementPatternCollector;
 
 import com.useekm.indexing.algebra.indexer.AbstractIdxQuery;
 
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
 import edu.ncsa.sstde.indexing.algebra.IndexerExpr;
 
 /**
@@ -171,7 +172,20 @@ public class IndexedJoinOptimizer implements QueryOptimizer {
 			if (tupleExpr instanceof IndexerExpr) {
 				IndexerExpr indexerExpr = (IndexerExpr) tupleExpr;
 				varList = new ArrayList<Var>();
-				if (indexerExpr.getQuery() instanceof AbstractIdxQuery) {
+				// the patterns the expression replaced, so its estimate is
+				// compensated for the variables bound before it
+				if (indexerExpr.getGraph() != null) {
+					for (StatementPattern sp : indexerExpr.getGraph()
+							.getSelectedStatements()) {
+						sp.getVars(varList);
+					}
+					for (MatchedIndexedGraph fused : indexerExpr.getGraph()
+							.getFusedGraphs()) {
+						for (StatementPattern sp : fused.getSelectedStatements()) {
+							sp.getVars(varList);
+						}
+					}
+				} else if (indexerExpr.getQuery() instanceof AbstractIdxQuery) {
 					AbstractIdxQuery abstractIdxQuery = (AbstractIdxQuery) indexerExpr
 							.getQuery();
 					// varList.add(abstractIdxQuery.getSubjectVar());
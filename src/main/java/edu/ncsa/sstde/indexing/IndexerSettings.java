@@ -74,6 +74,12 @@ public interface IndexerSettings {
 
 	void initProperties(Properties properties);
 
+	/**
+	 * Stops the background work of the settings, such as the threads that
+	 * write index rows. Called by {@link IndexManager#close()}.
+	 */
+	void shutDown();
+
 	/**
 	 * @return all the statement patterns defined in its "IndexGraph"
 	 */
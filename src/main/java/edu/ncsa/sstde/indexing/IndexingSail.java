@@ -97,13 +97,15 @@ public class IndexingSail extends SailWrapper {
 	public IndexingSailConnection getConnection() throws SailException {
 		Validate.notNull(this.manager);
 		return new IndexingSailConnection(super.getConnection(), this.manager,
-				getValueFactory(), queryEvaluator);
+				getValueFactory(), queryEvaluator, getBaseSail());
 	}
 
 	@Override
 	public void initialize() throws SailException {
 		super.initialize();
 		manager.initialize();
+		// bring the indexes up to date with commits interrupted by a crash
+		manager.recover(getBaseSail());
 	}
 
 	/**
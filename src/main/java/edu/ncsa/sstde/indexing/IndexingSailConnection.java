@@ -16,7 +16,11 @@ package edu.ncsa.sstde.indexing;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import info.aduna.iteration.CloseableIteration;
 
@@ -25,16 +29,26 @@ import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.BooleanLiteralImpl;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.AggregateOperator;
+import org.openrdf.query.algebra.And;
 import org.openrdf.query.algebra.BinaryTupleOperator;
 import org.openrdf.query.algebra.BinaryValueOperator;
 import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.Distinct;
+import org.openrdf.query.algebra.Extension;
+import org.openrdf.query.algebra.ExtensionElem;
+import org.openrdf.query.algebra.Filter;
 import org.openrdf.query.algebra.FunctionCall;
+import org.openrdf.query.algebra.Group;
 import org.openrdf.query.algebra.Or;
 import org.openrdf.query.algebra.Order;
 import org.openrdf.query.algebra.OrderElem;
+import org.openrdf.query.algebra.Projection;
+import org.openrdf.query.algebra.ProjectionElem;
 import org.openrdf.query.algebra.QueryModelNode;
 import org.openrdf.query.algebra.QueryRoot;
 import org.openrdf.query.algebra.Reduced;
@@ -43,6 +57,7 @@ import org.openrdf.query.algebra.SameTerm;
 import org.openrdf.query.algebra.Slice;
 import org.openrdf.query.algebra.StatementPattern;
 import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.UnaryTupleOperator;
 import org.openrdf.query.algebra.ValueConstant;
 import org.openrdf.query.algebra.ValueExpr;
 import org.openrdf.query.algebra.Var;
@@ -61,6 +76,7 @@ import com.useekm.indexing.internal.QueryEvaluator;
 
 import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
 import edu.ncsa.sstde.indexing.algebra.IndexerExpr;
+import edu.ncsa.sstde.util.DataTypeURI;
 
 /**
  * Provides the connection to an {@link IndexingSail}.
@@ -90,51 +106,20 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	private static final int CACHE_SIZE = 1000;
 	private final ValueFactory valueFactory;
 	private final QueryEvaluator queryEvaluator;
-	private HashSet<Statement> toAdd = new HashSet<Statement>();
-	private HashSet<Statement> toRemove = new HashSet<Statement>();
-
+	private final Sail sail;
 	/**
-	 * It contains the components for a statement: subject, predicate, object
-	 * and context. It is used to cache the data reading/writing for later use.
-	 * The reason I created it instead of using "StatementImpl" is that the
-	 * latter does not provide a interface to set the "Context"
-	 * 
-	 * @author liangyu
-	 * 
+	 * @see #setMaxStaleness(long)
 	 */
-	public class StatementWrapper implements Statement {
-		/**
-		 * 
-		 */
-		private static final long serialVersionUID = 1L;
-		private Resource subject = null;
-		private URI predicate = null;
-		private Value object = null;
-		private Resource context = null;
-
-		public Resource getSubject() {
-			return subject;
-		}
-
-		public URI getPredicate() {
-			return predicate;
-		}
-
-		public Value getObject() {
-			return object;
-		}
-
-		public Resource getContext() {
-			return context;
-		}
-
-		public StatementWrapper(Resource subj, URI pred, Value obj, Resource ctx) {
-			this.subject = subj;
-			this.predicate = pred;
-			this.object = obj;
-			this.context = ctx;
-		}
-	}
+	public static final long READ_YOUR_WRITES = -1;
+	private long maxStaleness = READ_YOUR_WRITES;
+	private long consistencyTimeout = 60000;
+	/** the watermark of every indexer after the last commit */
+	private final Map<String, Long> committedWatermarks = new HashMap<String, Long>();
+	/** the estimated heap size of the staged statements */
+	private long stagedBytes = 0;
+	private final StatementBuffer staged = new StatementBuffer();
+	/** the indexer sessions of this connection, by indexer name */
+	private final Map<String, Indexer> sessions;
 
 	/**
 	 * The construction method has been changed to use the "IndexManager"
@@ -148,11 +133,25 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	public IndexingSailConnection(SailConnection wrappedConnection,
 			IndexManager manager, ValueFactory valueFactory,
 			QueryEvaluator queryEvaluator) {
+		this(wrappedConnection, manager, valueFactory, queryEvaluator, null);
+	}
+
+	/**
+	 * @param sail
+	 *            the wrapped sail, which lets a {@link #reindex()} open
+	 *            connections of its own. May be null, in which case the
+	 *            reindex only uses the wrapped connection.
+	 */
+	public IndexingSailConnection(SailConnection wrappedConnection,
+			IndexManager manager, ValueFactory valueFactory,
+			QueryEvaluator queryEvaluator, Sail sail) {
 		super(wrappedConnection);
 		// this.indexer = manager.createIndexer();
 		this.indexManager = manager;
 		this.valueFactory = valueFactory;
 		this.queryEvaluator = queryEvaluator;
+		this.sail = sail;
+		this.sessions = manager.createSessions();
 	}
 
 	public QueryEvaluator getQueryEvaluator() {
@@ -163,10 +162,76 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 		return this.indexManager;
 	}
 
+	/**
+	 * @return the indexer sessions of this connection
+	 */
+	public Collection<Indexer> getIndexers() {
+		return this.sessions.values();
+	}
+
 	public ValueFactory getValueFactory() {
 		return valueFactory;
 	}
 
+	public long getMaxStaleness() {
+		return maxStaleness;
+	}
+
+	/**
+	 * Sets how up to date an index must be before a query of this connection
+	 * uses it. This only matters for indexers that write a commit after it
+	 * returns.
+	 * 
+	 * @param maxStaleness
+	 *            {@link #READ_YOUR_WRITES} to wait for the changes of the
+	 *            commits of this connection, or the time in milliseconds
+	 *            within which any committed change must be visible.
+	 *            {@link Long#MAX_VALUE} never waits.
+	 */
+	public void setMaxStaleness(long maxStaleness) {
+		this.maxStaleness = maxStaleness;
+	}
+
+	public long getConsistencyTimeout() {
+		return consistencyTimeout;
+	}
+
+	/**
+	 * @param consistencyTimeout
+	 *            the maximum time in milliseconds a query waits for an index
+	 *            to be up to date, 0 to wait as long as it takes
+	 */
+	public void setConsistencyTimeout(long consistencyTimeout) {
+		this.consistencyTimeout = consistencyTimeout;
+	}
+
+	/**
+	 * Waits until the index is as up to date as {@link #getMaxStaleness()}
+	 * demands.
+	 */
+	private void awaitConsistency(Indexer indexer) throws SailException {
+		if (maxStaleness == Long.MAX_VALUE) {
+			return;
+		}
+		boolean reached;
+		try {
+			if (maxStaleness == READ_YOUR_WRITES) {
+				Long watermark = committedWatermarks.get(indexer.getName());
+				reached = watermark == null
+						|| indexer.awaitWatermark(watermark, consistencyTimeout);
+			} else {
+				reached = indexer.awaitLag(maxStaleness, consistencyTimeout);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SailException(e);
+		}
+		if (!reached) {
+			throw new SailException("index " + indexer.getName()
+					+ " is not up to date after " + consistencyTimeout + " ms");
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p>
@@ -192,14 +257,42 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 		// The reason I do this is, the indexer needs to query the sail to get
 		// all the sub-graphs, which is not doable befor the sailconnection
 		// commits the changes.
-		Statement statement = new StatementWrapper(subj, pred, obj, null);
+		// a staged removal of the same statement is replaced by the addition
+		this.staged.add(subj, pred, obj, null);
+		commitIfFull(subj, pred, obj);
+	}
 
-		// to be safe, if the same statement is in the "toRemove" list, it
-		// should be removed first
-		if (this.toRemove.contains(statement)) {
-			this.toRemove.remove(statement);
+	/**
+	 * Commits the staged statements when there are more of them than the
+	 * {@link IndexManager} allows, so a transaction of any size can be loaded
+	 * with a bounded amount of memory. Each such chunk is committed on its
+	 * own, to the sail as well as to the indexes, because the index graphs
+	 * are evaluated on the committed sail: the transaction is not atomic, a
+	 * later {@link #rollback()} or failure only discards the statements
+	 * staged after the last chunk. The limits are off unless they are
+	 * configured.
+	 */
+	private void commitIfFull(Resource subj, URI pred, Value obj)
+			throws SailException {
+		this.stagedBytes += estimateSize(subj, pred, obj);
+		int maxStatements = this.indexManager.getMaxStagedStatements();
+		long maxBytes = this.indexManager.getMaxStagedBytes();
+		if ((maxStatements > 0 && this.staged.size() >= maxStatements)
+				|| (maxBytes > 0 && this.stagedBytes >= maxBytes)) {
+			LOG.info("committing " + this.staged.size()
+					+ " staged statements (about " + this.stagedBytes
+					+ " bytes)");
+			commit();
 		}
-		this.toAdd.add(new StatementWrapper(subj, pred, obj, null));
+	}
+
+	/**
+	 * @return a rough estimate of the heap used by a staged statement: the
+	 *         characters of its values, plus the objects around them
+	 */
+	private static long estimateSize(Resource subj, URI pred, Value obj) {
+		return 2L * (subj.stringValue().length()
+				+ pred.stringValue().length() + obj.stringValue().length()) + 256;
 	}
 
 	/**
@@ -259,14 +352,9 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	 */
 	public synchronized void removeStatement(Resource subj, URI pred,
 			Value obj, Resource ctx) throws SailException {
-		// add the statement to the to-remove list
-		Statement statement = new StatementWrapper(subj, pred, obj, ctx);
-		// to be safe, we should search if this statement already exists in the
-		// to-Add list
-		if (this.toAdd.contains(statement)) {
-			this.toAdd.remove(statement);
-		}
-		this.toRemove.add(statement);
+		// a staged addition of the same statement is replaced by the removal
+		this.staged.remove(subj, pred, obj, ctx);
+		commitIfFull(subj, pred, obj);
 	}
 
 	/**
@@ -277,7 +365,9 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	@Override
 	public synchronized void clear(Resource... ctx) throws SailException {
 		super.clear();
-		this.getIndexManager().clear();
+		for (Indexer indexer : getIndexers()) {
+			indexer.clear();
+		}
 
 	}
 
@@ -293,45 +383,98 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	 *             leaving {@link Sail} and {@link Indexer} in an inconsistent
 	 *             state. See <a
 	 *             href="https://dev.opensahara.com/issues/10">#10</a></strong>
+	 *             With an {@link IndexJournal} configured, the changes of a
+	 *             failed commit are given to the indexes again right away,
+	 *             and after every later commit until they are written.
 	 */
 	@Override
 	public void commit() throws SailException {
+		Collection<Statement> toAdd = this.staged.getAdded();
+		Collection<Statement> toRemove = this.staged.getRemoved();
 
-		// We should commit the writing to RDF repository first so that we can
-		// query it to get all the patterns to be indexed
-		for (Statement statement : this.toAdd) {
-			super.addStatement(statement.getSubject(),
-					statement.getPredicate(), statement.getObject(),
-					statement.getContext());
+		// the changes are journaled first, so they can be given to the indexers
+		// again when the commit is interrupted
+		long journalOffset = this.indexManager.journal(toAdd,
+				toRemove);
 
-			// System.out.println(i++);
-		}
-		super.commit();
-		this.indexManager.addBatch(this.getWrappedConnection(), this.toAdd);
+		try {
+			// We should commit the writing to RDF repository first so that we can
+			// query it to get all the patterns to be indexed
+			for (Statement statement : toAdd) {
+				super.addStatement(statement.getSubject(),
+						statement.getPredicate(), statement.getObject(),
+						statement.getContext());
+
+				// System.out.println(i++);
+			}
+			super.commit();
+			for (Indexer indexer : getIndexers()) {
+				indexer.addBatch(this.getWrappedConnection(), toAdd);
+			}
 
-		// in an inverse way, we should first query the RDF repository to remove
-		// all the index items before we commit the removing to RDF repository.
-		this.indexManager.removeBatch(this.getWrappedConnection(),
-				this.toRemove);
+			// in an inverse way, we should first query the RDF repository to remove
+			// all the index items before we commit the removing to RDF repository.
+			for (Indexer indexer : getIndexers()) {
+				indexer.removeBatch(this.getWrappedConnection(), toRemove);
+			}
 
-		for (Statement statement : this.toRemove) {
-			super.removeStatements(statement.getSubject(),
-					statement.getPredicate(), statement.getObject(),
-					statement.getContext());
+			for (Statement statement : toRemove) {
+				super.removeStatements(statement.getSubject(),
+						statement.getPredicate(), statement.getObject(),
+						statement.getContext());
+			}
+			super.commit();
+			for (Indexer indexer : getIndexers()) {
+				this.committedWatermarks.put(indexer.getName(),
+						indexer.getSubmittedWatermark());
+			}
+		} catch (SailException e) {
+			failCommit(journalOffset);
+			throw e;
+		} catch (RuntimeException e) {
+			failCommit(journalOffset);
+			throw e;
 		}
-		super.commit();
-		if (this.toAdd.size() > 0) {
-			LOG.info(String.valueOf(this.toAdd.size())
+		this.indexManager.acknowledge(journalOffset, this.sessions);
+		this.indexManager.retryFailed(this.getWrappedConnection(),
+				this.sessions);
+		if (toAdd.size() > 0) {
+			LOG.info(String.valueOf(toAdd.size())
 					+ " triples have been loaded.");
 		}
-		if (this.toRemove.size() > 0) {
-			LOG.info(String.valueOf(this.toRemove.size())
+		if (toRemove.size() > 0) {
+			LOG.info(String.valueOf(toRemove.size())
 					+ " triples have been removed.");
 		}
 
-		this.toAdd.clear();
-		this.toRemove.clear();
+		this.staged.clear();
+		this.stagedBytes = 0;
+
+	}
 
+	/**
+	 * Rolls back what a failed commit left in the sail and the indexes, and
+	 * gives its journal record to the indexers again right away. A record
+	 * that still can not be written is tried again after the next commit.
+	 */
+	private void failCommit(long journalOffset) {
+		try {
+			super.rollback();
+		} catch (SailException e) {
+			LOG.warn("could not roll back the sail", e);
+		}
+		for (Indexer indexer : getIndexers()) {
+			try {
+				indexer.rollback();
+			} catch (IndexException e) {
+				LOG.warn("could not roll back indexer " + indexer.getName(), e);
+			}
+		}
+		if (journalOffset >= 0) {
+			this.indexManager.fail(journalOffset, this.sessions);
+			this.indexManager.retryFailed(this.getWrappedConnection(),
+					this.sessions);
+		}
 	}
 
 	/**
@@ -340,8 +483,8 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	 */
 	@Override
 	public void rollback() throws SailException {
-		this.toAdd.clear();
-		this.toRemove.clear();
+		this.staged.clear();
+		this.stagedBytes = 0;
 	}
 
 	/**
@@ -349,7 +492,17 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	 */
 	@Override
 	public void close() throws SailException {
-		super.close();
+		try {
+			super.close();
+		} finally {
+			for (Indexer indexer : getIndexers()) {
+				try {
+					indexer.close();
+				} catch (IndexException e) {
+					LOG.warn("could not close indexer " + indexer.getName(), e);
+				}
+			}
+		}
 		// try {
 		// indexManager.close();
 		// } catch (IndexException e) {
@@ -424,18 +577,51 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 		// query, I have made a lot of change here. The "QueryExtractor" is not
 		// used any more.
 		try {
-			// this is to select the best matched graph from all the indexing
+			// this is to select the matched graphs from all the indexing
 			// graphs defined in the XML
-			MatchedIndexedGraph graph = this.getIndexManager()
-					.findBestIndexGraph(tupleExprClone);
-			if (graph != null) {
+			List<MatchedIndexedGraph> graphs = this.getIndexManager()
+					.findIndexGraphs(tupleExprClone, this.sessions);
+			if (!graphs.isEmpty()) {
 				// tupleExprClone = indexer.optimize(tupleExprClone, dataset,
 				// bindings);
 
-				replaceIndexExpr(graph);
-				graph.setUsedVarNames(getUsedVars(tupleExprClone));
-				graph.setLimit(limit);
-				
+				// the matches refer to the sessions of this connection
+				for (MatchedIndexedGraph graph : graphs) {
+					awaitConsistency(graph.getIndexer());
+				}
+				List<MatchedIndexedGraph> exprGraphs = fuseGraphs(graphs);
+				List<IndexerExpr> exprs = new ArrayList<IndexerExpr>();
+				for (MatchedIndexedGraph graph : exprGraphs) {
+					// the order and the limit can only be pushed down when
+					// one index expression gives all the results
+					if (exprGraphs.size() > 1) {
+						graph.getOrders().clear();
+					}
+					exprs.add(replaceIndexExpr(graph));
+				}
+				if (exprs.size() == 1) {
+					replaceGroup(exprs.get(0));
+				}
+				Collection<String> usedVars = getUsedVars(tupleExprClone);
+				for (MatchedIndexedGraph graph : exprGraphs) {
+					// the variables the other index expressions join on
+					Collection<String> graphVars = new HashSet<String>(usedVars);
+					for (MatchedIndexedGraph other : exprGraphs) {
+						if (other != graph) {
+							graphVars.addAll(getBindingNames(other));
+						}
+					}
+					graph.setUsedVarNames(graphVars);
+					graph.setLimit(exprGraphs.size() == 1
+							&& graph.getGroup() == null ? limit : -1);
+					for (MatchedIndexedGraph fused : graph.getFusedGraphs()) {
+						fused.setUsedVarNames(graphVars);
+					}
+				}
+				if (exprs.size() == 1) {
+					replaceModifiers(exprs.get(0));
+				}
+
 				return queryEvaluator.evaluate(this.getWrappedConnection(),
 						getValueFactory(), dataset, includeInferred,
 						(QueryRoot) tupleExprClone, bindings);
@@ -478,7 +664,10 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 				}
 			}
 		} else if (base instanceof OrderElem) {
-			result.add(((Var) ((OrderElem) base).getExpr()).getName());
+			// the variables of an ordered expression are met as its children
+			if (((OrderElem) base).getExpr() instanceof Var) {
+				result.add(((Var) ((OrderElem) base).getExpr()).getName());
+			}
 
 		} else if (base instanceof StatementPattern) {
 			StatementPattern pattern = (StatementPattern) base;
@@ -505,13 +694,261 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	}
 
 	/**
-	 * After the best matched graph has been found, we should replace all the
+	 * Adds every graph that can be evaluated together with an earlier graph
+	 * to the fused graphs of that graph. Only graphs in the same join scope
+	 * are fused: the index joins them with an inner join, and their patterns
+	 * are removed from the joins they are part of.
+	 * 
+	 * @return the graphs that each become an {@link IndexerExpr}
+	 * @see GraphAnalyzer#getJoinScope(QueryModelNode)
+	 */
+	static List<MatchedIndexedGraph> fuseGraphs(
+			List<MatchedIndexedGraph> graphs) {
+		List<MatchedIndexedGraph> result = new ArrayList<MatchedIndexedGraph>();
+		for (MatchedIndexedGraph graph : graphs) {
+			MatchedIndexedGraph target = null;
+			for (MatchedIndexedGraph candidate : result) {
+				if (GraphAnalyzer.inJoinScope(candidate, graph)
+						&& candidate.getIndexer().canFuse(candidate, graph)) {
+					target = candidate;
+					break;
+				}
+			}
+			if (target == null) {
+				result.add(graph);
+			} else {
+				target.getFusedGraphs().add(graph);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the query variables of a graph and its fused graphs
+	 */
+	private static Collection<String> getBindingNames(MatchedIndexedGraph graph) {
+		Collection<String> result = new HashSet<String>(graph
+				.getNameMappings().values());
+		for (MatchedIndexedGraph fused : graph.getFusedGraphs()) {
+			result.addAll(fused.getNameMappings().values());
+		}
+		return result;
+	}
+
+	/**
+	 * After the matched graphs have been found, we should replace all the
 	 * patterns and filters with {@link IndexerExpr} or "true" boolean
-	 * constants.
+	 * constants. The patterns of the fused graphs are removed, the
+	 * {@link IndexerExpr} of the graph gives their results.
 	 * 
 	 * @param graph
+	 * @return the {@link IndexerExpr} of the graph
+	 */
+	private IndexerExpr replaceIndexExpr(MatchedIndexedGraph graph) {
+		replaceFilters(graph);
+		for (MatchedIndexedGraph fused : graph.getFusedGraphs()) {
+			replaceFilters(fused);
+			for (StatementPattern pattern : fused.getSelectedStatements()) {
+				removePattern(pattern);
+			}
+		}
+
+		IndexerExpr expr = new IndexerExpr(graph, valueFactory);
+		int i = 0;
+		for (StatementPattern pattern : graph.getSelectedStatements()) {
+			if (i == 0) {
+				pattern.replaceWith(expr);
+			} else {
+				removePattern(pattern);
+			}
+
+			i++;
+		}
+		return expr;
+	}
+
+	/**
+	 * Lets the index evaluate the {@link Group} of an aggregate query when
+	 * the index expression gives all the results it groups, that is when
+	 * only filters the index evaluates already are between them. The group
+	 * is replaced with the index expression, which then returns the group
+	 * variables and the aggregates.
+	 */
+	private void replaceGroup(IndexerExpr expr) {
+		QueryModelNode parent = expr.getParentNode();
+		while (parent instanceof Filter
+				&& isTrue(((Filter) parent).getCondition())) {
+			parent = parent.getParentNode();
+		}
+		if (!(parent instanceof Group)) {
+			return;
+		}
+		Group group = (Group) parent;
+		MatchedIndexedGraph graph = expr.getGraph();
+		if (expr.getIndexer().canGroup(graph, group)) {
+			graph.setGroup(group);
+			group.replaceWith(expr);
+		}
+	}
+
+	/**
+	 * Lets the index remove the duplicates of a DISTINCT or REDUCED query and
+	 * skip the offset of the query, when the index expression gives the
+	 * results of the query: only a projection of its variables is above it,
+	 * and filters, an order and aggregates the index evaluates already. The
+	 * duplicates can only be removed when the index selects the projected
+	 * variables only, and orders by some of them.
 	 */
-	private void replaceIndexExpr(MatchedIndexedGraph graph) {
+	private void replaceModifiers(IndexerExpr expr) {
+		QueryModelNode node = expr.getParentNode();
+		while (node instanceof Filter
+				&& isTrue(((Filter) node).getCondition())
+				|| node instanceof Extension && isBound((Extension) node)) {
+			node = node.getParentNode();
+		}
+		if (!(node instanceof Projection)) {
+			return;
+		}
+		Projection projection = (Projection) node;
+		Set<String> names = new HashSet<String>();
+		for (ProjectionElem elem : projection.getProjectionElemList()
+				.getElements()) {
+			names.add(elem.getSourceName());
+		}
+		if (!expr.getBindingNames().containsAll(names)) {
+			return;
+		}
+
+		MatchedIndexedGraph graph = expr.getGraph();
+		node = projection.getParentNode();
+		if (node instanceof Distinct || node instanceof Reduced) {
+			if (!canRemoveDuplicates(graph, names)) {
+				return;
+			}
+			graph.setDistinct(true);
+			if (graph.getGroup() == null) {
+				graph.setUsedVarNames(names);
+				for (MatchedIndexedGraph fused : graph.getFusedGraphs()) {
+					fused.setUsedVarNames(names);
+				}
+			}
+			((UnaryTupleOperator) node).replaceWith(projection);
+			node = projection.getParentNode();
+		}
+		if (node instanceof Slice && ((Slice) node).hasOffset()) {
+			Slice slice = (Slice) node;
+			graph.setOffset(slice.getOffset());
+			if (slice.hasLimit()) {
+				slice.setOffset(0);
+				graph.setLimit(slice.getLimit());
+			} else {
+				slice.replaceWith(slice.getArg());
+				graph.setLimit(-1);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the results of the index are duplicates when their
+	 *         projected variables are, and the index compares the projected
+	 *         variables the way SPARQL does: a geometry column is compared by
+	 *         its bounding box, so no projected variable may be a geometry
+	 */
+	private static boolean canRemoveDuplicates(MatchedIndexedGraph graph,
+			Set<String> names) {
+		if (hasGeometry(graph, names)) {
+			return false;
+		}
+		for (MatchedIndexedGraph fused : graph.getFusedGraphs()) {
+			if (hasGeometry(fused, names)) {
+				return false;
+			}
+		}
+		if (graph.getGroup() != null) {
+			if (!names.containsAll(graph.getGroup().getBindingNames())) {
+				return false;
+			}
+		} else if (names.isEmpty()) {
+			return false;
+		}
+		for (OrderElem order : graph.getOrders()) {
+			if (!(order.getExpr() instanceof Var)
+					|| !names.contains(((Var) order.getExpr()).getName())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if one of the variables is a geometry column of the graph
+	 */
+	private static boolean hasGeometry(MatchedIndexedGraph graph,
+			Set<String> names) {
+		Map<String, String> columns = graph.getVerseNameMappings();
+		Map<String, LiteralDef> literalDefs = graph.getIndexer().getSettings()
+				.getIndexGraph().getLiteralDefMap();
+		for (String name : names) {
+			LiteralDef literalDef = literalDefs.get(columns.get(name));
+			if (literalDef != null
+					&& DataTypeURI.isGeometry(literalDef.getType())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the extension only binds aggregates, which the index
+	 *         evaluates already
+	 */
+	private static boolean isBound(Extension extension) {
+		for (ExtensionElem elem : extension.getElements()) {
+			if (!(elem.getExpr() instanceof AggregateOperator)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true for the constants the filters of the index are replaced
+	 *         with, and conjunctions of them
+	 */
+	private static boolean isTrue(ValueExpr condition) {
+		if (condition instanceof And) {
+			return isTrue(((And) condition).getLeftArg())
+					&& isTrue(((And) condition).getRightArg());
+		}
+		return condition instanceof ValueConstant
+				&& ((ValueConstant) condition).getValue().equals(
+						BooleanLiteralImpl.TRUE);
+	}
+
+	/**
+	 * Removes a pattern from the join it is part of.
+	 */
+	private void removePattern(StatementPattern pattern) {
+		if (pattern.getParentNode() instanceof BinaryTupleOperator) {
+			BinaryTupleOperator join = (BinaryTupleOperator) pattern
+					.getParentNode();
+			TupleExpr theOther = null;
+			if (join.getLeftArg() == pattern) {
+				theOther = join.getRightArg();
+			} else {
+				theOther = join.getLeftArg();
+			}
+			join.replaceWith(theOther);
+		} else {
+			throw new IndexException("no filter to replace");
+		}
+	}
+
+	/**
+	 * Replaces the filters of a graph with "true" and removes its order
+	 * elements, the index evaluates them.
+	 */
+	private void replaceFilters(MatchedIndexedGraph graph) {
 		for (FunctionCall call : graph.getFunctionCalls()) {
 			call.replaceWith(new ValueConstant(valueFactory.createLiteral(true)));
 		}
@@ -538,6 +975,7 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 //		}
 //		
 		//to optimize the "order by"  
+		sortOrders(graph);
 		for (OrderElem orderElem: graph.getOrders()) {
 //			orderElem.replaceWith(new ValueConstant(valueFactory
 //					.createLiteral(true)));
@@ -549,31 +987,42 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 			}
 //			orderElem.re
 		}
+	}
 
-		
-		
-		int i = 0;
-		for (StatementPattern pattern : graph.getSelectedStatements()) {
-			if (i == 0) {
-				pattern.replaceWith(new IndexerExpr(graph, valueFactory));
-			} else {
-				if (pattern.getParentNode() instanceof BinaryTupleOperator) {
-					BinaryTupleOperator join = (BinaryTupleOperator) pattern.getParentNode();
-					TupleExpr theOther = null;
-					if (join.getLeftArg() == pattern) {
-						theOther = join.getRightArg();
-					} else {
-						theOther = join.getLeftArg();
-					}
-					join.replaceWith(theOther);
-				} else {
-					System.out.println(pattern.getParentNode().getClass());
-					throw new IndexException("no filter to replace");
-				}
+	/**
+	 * Puts the order elements of a graph in the order of the query, and keeps
+	 * only the ones at the end of their {@link Order}. The index orders its
+	 * results before the rest of the order is evaluated, which keeps the
+	 * order of the results it finds equal, so the index can only take over
+	 * the last elements of an order.
+	 */
+	private static void sortOrders(MatchedIndexedGraph graph) {
+		if (graph.getOrders().isEmpty()) {
+			return;
+		}
+		List<OrderElem> elements = ((Order) graph.getOrders().iterator()
+				.next().getParentNode()).getElements();
+		List<OrderElem> suffix = new ArrayList<OrderElem>();
+		for (int i = elements.size() - 1; i >= 0; i--) {
+			if (!containsNode(graph.getOrders(), elements.get(i))) {
+				break;
 			}
+			suffix.add(0, elements.get(i));
+		}
+		graph.getOrders().clear();
+		graph.getOrders().addAll(suffix);
+	}
 
-			i++;
+	/**
+	 * @return true if the collection contains the node itself
+	 */
+	private static boolean containsNode(Collection<?> nodes, Object node) {
+		for (Object element : nodes) {
+			if (element == node) {
+				return true;
+			}
 		}
+		return false;
 	}
 
 	/**
@@ -584,6 +1033,8 @@ public class IndexingSailConnection extends SailConnectionWrapper {
 	 * @throws IndexException
 	 */
 	public void reindex() throws SailException, IndexException {
-		this.indexManager.reindex(this.getWrappedConnection());
+		for (Indexer indexer : getIndexers()) {
+			indexer.reindex(this.getWrappedConnection(), this.sail);
+		}
 	}
 }
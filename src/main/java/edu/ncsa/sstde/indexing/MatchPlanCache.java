@@ -0,0 +1,317 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.FunctionCall;
+import org.openrdf.query.algebra.OrderElem;
+import org.openrdf.query.algebra.QueryModelNode;
+import org.openrdf.query.algebra.QueryModelNodeBase;
+import org.openrdf.query.algebra.Regex;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.ValueConstant;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+
+import com.useekm.indexing.internal.Indexer;
+
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
+
+/**
+ * Remembers which index graph matched a query, so the match does not have to
+ * be searched again for the next query of the same shape.
+ * <p>
+ * The shape of a query is its algebra tree with the constants left out,
+ * except the constants that occur in the patterns of an index graph: only
+ * those can decide whether a pattern matches. A constant that does not occur
+ * in any index graph either becomes a {@link GraphAnalyzer.VarFilter} or
+ * makes a pattern fail, whatever its value is. The shape does record if the
+ * constants of a {@link Regex} let the index evaluate it.
+ * <p>
+ * A match is stored as the positions of the selected patterns and filters in
+ * the query, for every graph matched to it. For the next query of the same
+ * shape the patterns at those positions are matched again, one to one, which
+ * binds the constants of that query, and the filters at those positions are
+ * attached. The caller decides what the matches of a key are: the
+ * {@link IndexManager} stores the candidate matches of every round under the
+ * shape and the indexers chosen in the rounds before, and ranks them itself.
+ * <p>
+ * The cache holds a fixed number of shapes, the least recently used shape is
+ * forgotten first. It is safe to use from several threads.
+ *
+ * @author liangyu
+ *
+ */
+class MatchPlanCache {
+	private static final MatchPlan[] NO_MATCH = new MatchPlan[0];
+
+	private final Map<String, Indexer> indexers = new HashMap<String, Indexer>();
+	/** the constants of all the index graphs */
+	private final Set<Value> constants = new HashSet<Value>();
+	private final LinkedHashMap<String, MatchPlan[]> plans;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of query shapes to remember
+	 */
+	MatchPlanCache(Collection<Indexer> indexers, final int capacity) {
+		for (Indexer indexer : indexers) {
+			this.indexers.put(indexer.getName(), indexer);
+			for (StatementPattern pattern : indexer.getSettings()
+					.getIndexGraph().getPatterns()) {
+				for (Var var : pattern.getVarList()) {
+					if (var.hasValue()) {
+						constants.add(var.getValue());
+					}
+				}
+			}
+		}
+		this.plans = new LinkedHashMap<String, MatchPlan[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, MatchPlan[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the shape of a query
+	 */
+	String createKey(TupleExpr tupleExpr) {
+		final StringBuffer key = new StringBuffer();
+		tupleExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
+			@Override
+			protected void meetNode(QueryModelNode node) {
+				key.append(node.getClass().getSimpleName()).append('(');
+				node.visitChildren(this);
+				key.append(')');
+			}
+
+			@Override
+			public void meet(Var node) {
+				if (!node.hasValue()) {
+					key.append('?').append(node.getName());
+				} else if (constants.contains(node.getValue())) {
+					key.append('<').append(node.getValue().stringValue())
+							.append('>');
+				} else {
+					key.append('$');
+				}
+				key.append(' ');
+			}
+
+			@Override
+			public void meet(ValueConstant node) {
+				key.append("$ ");
+			}
+
+			@Override
+			public void meet(FunctionCall node) {
+				key.append(node.getURI());
+				meetNode(node);
+			}
+
+			@Override
+			public void meet(Compare node) {
+				key.append(node.getOperator());
+				meetNode(node);
+			}
+
+			@Override
+			public void meet(OrderElem node) {
+				key.append(node.isAscending() ? "ASC" : "DESC");
+				meetNode(node);
+			}
+
+			@Override
+			public void meet(Regex node) {
+				// the constants decide if the index evaluates it
+				key.append(GraphAnalyzer.isSupportedRegex(node) ? '+' : '-');
+				meetNode(node);
+			}
+		});
+		return key.toString();
+	}
+
+	/**
+	 * @return the matched graphs of a query of a known shape, null if the
+	 *         shape is not known or has no match. Use
+	 *         {@link #isUnmatched(String)} to tell them apart.
+	 */
+	List<MatchedIndexedGraph> find(String key, TupleExpr tupleExpr) {
+		MatchPlan[] matchPlans;
+		synchronized (plans) {
+			matchPlans = plans.get(key);
+		}
+		if (matchPlans == null || matchPlans == NO_MATCH) {
+			return null;
+		}
+		List<MatchedIndexedGraph> graphs = new ArrayList<MatchedIndexedGraph>(
+				matchPlans.length);
+		for (MatchPlan plan : matchPlans) {
+			MatchedIndexedGraph graph = plan.apply(tupleExpr,
+					indexers.get(plan.indexer));
+			if (graph == null) {
+				return null;
+			}
+			graphs.add(graph);
+		}
+		return graphs;
+	}
+
+	/**
+	 * @return true if the shape is known to have no match
+	 */
+	boolean isUnmatched(String key) {
+		synchronized (plans) {
+			return plans.get(key) == NO_MATCH;
+		}
+	}
+
+	/**
+	 * Remembers the matches of a query.
+	 *
+	 * @param graphs
+	 *            the matched graphs of the query, may be empty
+	 */
+	void put(String key, TupleExpr tupleExpr, List<MatchedIndexedGraph> graphs) {
+		MatchPlan[] matchPlans = graphs.isEmpty() ? NO_MATCH
+				: new MatchPlan[graphs.size()];
+		for (int i = 0; i < matchPlans.length; i++) {
+			matchPlans[i] = MatchPlan.create(graphs.get(i), tupleExpr);
+			if (matchPlans[i] == null) {
+				return;
+			}
+		}
+		synchronized (plans) {
+			plans.put(key, matchPlans);
+		}
+	}
+
+	private static final class MatchPlan {
+		private final String indexer;
+		private final int[] selected;
+		private final int[] functionCalls;
+		private final int[] compares;
+		private final int[] regexs;
+		private final int[] orders;
+
+		private MatchPlan(String indexer, int[] selected, int[] functionCalls,
+				int[] compares, int[] regexs, int[] orders) {
+			this.indexer = indexer;
+			this.selected = selected;
+			this.functionCalls = functionCalls;
+			this.compares = compares;
+			this.regexs = regexs;
+			this.orders = orders;
+		}
+
+		/**
+		 * @return the plan of a match, or null if a node of the match is not
+		 *         found in the query
+		 */
+		static MatchPlan create(MatchedIndexedGraph graph, TupleExpr tupleExpr) {
+			List<StatementPattern> patterns = GraphAnalyzer
+					.getStatementPatterns(tupleExpr);
+			List<QueryModelNodeBase> filters = GraphAnalyzer
+					.getFilterNodes(tupleExpr);
+			int[] selected = positions(graph.getSelectedStatements(), patterns);
+			int[] functionCalls = positions(graph.getFunctionCalls(), filters);
+			int[] compares = positions(graph.getCompares(), filters);
+			int[] regexs = positions(graph.getRegexs(), filters);
+			int[] orders = positions(graph.getOrders(), filters);
+			if (selected == null || functionCalls == null || compares == null
+					|| regexs == null || orders == null) {
+				return null;
+			}
+			return new MatchPlan(graph.getIndexer().getName(), selected,
+					functionCalls, compares, regexs, orders);
+		}
+
+		/**
+		 * @return the positions of the nodes in the list, compared by
+		 *         identity, or null if a node is not in the list
+		 */
+		private static int[] positions(Collection<? extends QueryModelNode> nodes,
+				List<? extends QueryModelNode> list) {
+			int[] result = new int[nodes.size()];
+			int i = 0;
+			for (QueryModelNode node : nodes) {
+				result[i] = -1;
+				for (int j = 0; j < list.size(); j++) {
+					if (list.get(j) == node) {
+						result[i] = j;
+						break;
+					}
+				}
+				if (result[i++] < 0) {
+					return null;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @return the match for a query of the same shape, or null if it does
+		 *         not match after all
+		 */
+		MatchedIndexedGraph apply(TupleExpr tupleExpr, Indexer indexer) {
+			if (indexer == null) {
+				return null;
+			}
+			List<StatementPattern> patterns = GraphAnalyzer
+					.getStatementPatterns(tupleExpr);
+			List<QueryModelNodeBase> filters = GraphAnalyzer
+					.getFilterNodes(tupleExpr);
+			List<StatementPattern> selectedPatterns = new ArrayList<StatementPattern>(
+					selected.length);
+			for (int position : selected) {
+				selectedPatterns.add(patterns.get(position));
+			}
+			MatchedIndexedGraph graph = new GraphAnalyzer(indexer.getSettings()
+					.getIndexGraph()).replay(patterns, selectedPatterns);
+			if (graph == null) {
+				return null;
+			}
+			for (int position : functionCalls) {
+				graph.getFunctionCalls().add((FunctionCall) filters.get(position));
+			}
+			for (int position : compares) {
+				graph.getCompares().add((Compare) filters.get(position));
+			}
+			for (int position : regexs) {
+				graph.getRegexs().add((Regex) filters.get(position));
+			}
+			for (int position : orders) {
+				graph.getOrders().add((OrderElem) filters.get(position));
+			}
+			graph.setIndexer(indexer);
+			return graph;
+		}
+	}
+}
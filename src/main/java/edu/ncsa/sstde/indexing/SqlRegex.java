@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+/**
+ * Translates the regular expressions of SPARQL, as the sail evaluates them
+ * with {@link java.util.regex.Pattern}, into PostgreSQL advanced regular
+ * expressions. Only a subset that means the same in both is translated:
+ * <ul>
+ * <li>characters other than the metacharacters, metacharacters escaped with
+ * a backslash, and <code>\n</code>, <code>\r</code> and <code>\t</code></li>
+ * <li><code>.</code>, which does not match a line terminator in the sail</li>
+ * <li><code>$</code>, which also matches before a final line terminator in
+ * the sail</li>
+ * <li><code>^ | * + ?</code>, groups without <code>(?</code>, and bounds
+ * <code>{n}</code>, <code>{n,}</code> and <code>{n,m}</code>, each of which
+ * may be followed by <code>?</code></li>
+ * <li>character classes of characters and ranges, possibly negated</li>
+ * </ul>
+ * The only flag is "i", for a pattern of ASCII characters, which the sail
+ * compares without case the way PostgreSQL does. Anything else, such as back
+ * references, class escapes like <code>\w</code>, whose classes differ, or
+ * class subtraction, is left to the sail.
+ *
+ * @author liangyu
+ *
+ */
+public final class SqlRegex {
+	private static final String ESCAPES = "\\|.-^$?*+{}()[]nrt";
+	private static final String LINE_TERMINATOR = "\\n\\r\\u0085\\u2028\\u2029";
+
+	private SqlRegex() {
+	}
+
+	/**
+	 * @param flags
+	 *            the flags of the regular expression, may be null
+	 * @return the PostgreSQL regular expression, or null if the expression
+	 *         or its flags are not in the subset
+	 */
+	public static String translate(String regex, String flags) {
+		if (isCaseInsensitive(flags)) {
+			for (int i = 0; i < regex.length(); i++) {
+				if (regex.charAt(i) > 127) {
+					return null;
+				}
+			}
+		} else if (flags != null && !"".equals(flags)) {
+			return null;
+		}
+		StringBuffer result = new StringBuffer();
+		int depth = 0;
+		boolean quantifiable = false;
+		int i = 0;
+		while (i < regex.length()) {
+			char c = regex.charAt(i++);
+			switch (c) {
+			case '\\':
+				if (i == regex.length()
+						|| ESCAPES.indexOf(regex.charAt(i)) < 0) {
+					return null;
+				}
+				result.append(c).append(regex.charAt(i++));
+				quantifiable = true;
+				break;
+			case '.':
+				result.append("[^").append(LINE_TERMINATOR).append(']');
+				quantifiable = true;
+				break;
+			case '[':
+				i = translateClass(regex, i, result);
+				if (i < 0) {
+					return null;
+				}
+				quantifiable = true;
+				break;
+			case '(':
+				if (i < regex.length() && regex.charAt(i) == '?') {
+					return null;
+				}
+				depth++;
+				result.append(c);
+				quantifiable = false;
+				break;
+			case ')':
+				if (depth-- == 0) {
+					return null;
+				}
+				result.append(c);
+				quantifiable = true;
+				break;
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				if (!quantifiable) {
+					return null;
+				}
+				if (c == '{') {
+					int end = regex.indexOf('}', i);
+					if (end < 0 || !regex.substring(i, end).matches(
+							"[0-9]+(,[0-9]*)?")) {
+						return null;
+					}
+					result.append(regex.substring(i - 1, end + 1));
+					i = end + 1;
+				} else {
+					result.append(c);
+				}
+				if (i < regex.length() && regex.charAt(i) == '?') {
+					result.append(regex.charAt(i++));
+				}
+				quantifiable = false;
+				break;
+			case '$':
+				result.append("(?=(\\r\\n|[").append(LINE_TERMINATOR)
+						.append("])?$)");
+				quantifiable = false;
+				break;
+			case '^':
+			case '|':
+				result.append(c);
+				quantifiable = false;
+				break;
+			case ']':
+			case '}':
+				return null;
+			default:
+				result.append(c);
+				quantifiable = true;
+			}
+		}
+		return depth == 0 ? result.toString() : null;
+	}
+
+	/**
+	 * @return true if the flags are the "i" flag, for <code>~*</code>
+	 */
+	public static boolean isCaseInsensitive(String flags) {
+		return "i".equals(flags);
+	}
+
+	/**
+	 * Copies a character class, from after its <code>[</code>.
+	 *
+	 * @return the position after the class, or -1 if it is not in the subset
+	 */
+	private static int translateClass(String regex, int i, StringBuffer result) {
+		result.append('[');
+		if (i < regex.length() && regex.charAt(i) == '^') {
+			result.append(regex.charAt(i++));
+		}
+		boolean empty = true;
+		while (i < regex.length()) {
+			char c = regex.charAt(i++);
+			if (c == ']' && !empty) {
+				result.append(c);
+				return i;
+			} else if (c == '\\') {
+				if (i == regex.length()
+						|| ESCAPES.indexOf(regex.charAt(i)) < 0) {
+					return -1;
+				}
+				result.append(c).append(regex.charAt(i++));
+			} else if (c == '[' || c == ']') {
+				return -1;
+			} else if (c == '-' && (empty || i == regex.length()
+					|| regex.charAt(i) == ']' || regex.charAt(i) == '[')) {
+				// a leading or trailing '-', or a subtraction
+				return -1;
+			} else {
+				result.append(c);
+			}
+			empty = false;
+		}
+		return -1;
+	}
+}
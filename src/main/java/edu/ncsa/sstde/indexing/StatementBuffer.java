@@ -0,0 +1,308 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.ContextStatementImpl;
+import org.openrdf.model.impl.StatementImpl;
+
+/**
+ * Holds the statements an {@link IndexingSailConnection} adds and removes
+ * until it commits.
+ * <p>
+ * Every distinct value is stored once and referred to by an integer id, and a
+ * statement is a row of four ids (subject, predicate, object and context) in
+ * parallel arrays, so a staged statement costs a few bytes instead of a few
+ * objects. An open addressing hash table over the rows finds a statement
+ * that is staged already: staging it again only changes its operation, so
+ * duplicates are kept once and the last of an add and a remove of the same
+ * statement wins.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author liangyu
+ *
+ */
+class StatementBuffer {
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private Map<Value, Integer> termIds = new HashMap<Value, Integer>();
+	/** the value of each id, id 0 is null */
+	private List<Value> terms = new ArrayList<Value>();
+
+	private int[] subjects = new int[INITIAL_CAPACITY];
+	private int[] predicates = new int[INITIAL_CAPACITY];
+	private int[] objects = new int[INITIAL_CAPACITY];
+	private int[] contexts = new int[INITIAL_CAPACITY];
+	private byte[] operations = new byte[INITIAL_CAPACITY];
+	private int size = 0;
+	private int added = 0;
+	private int removed = 0;
+
+	/** row + 1 of each slot, 0 for a free slot */
+	private int[] table = new int[INITIAL_CAPACITY * 2];
+
+	StatementBuffer() {
+		terms.add(null);
+	}
+
+	/**
+	 * Stages the addition of a statement, which replaces a staged removal of
+	 * the same statement.
+	 */
+	void add(Resource subj, URI pred, Value obj, Resource ctx) {
+		stage(ADD, subj, pred, obj, ctx);
+	}
+
+	/**
+	 * Stages the removal of a statement, which replaces a staged addition of
+	 * the same statement.
+	 */
+	void remove(Resource subj, URI pred, Value obj, Resource ctx) {
+		stage(REMOVE, subj, pred, obj, ctx);
+	}
+
+	/**
+	 * @return the number of distinct statements staged for addition
+	 */
+	int getAddedCount() {
+		return added;
+	}
+
+	/**
+	 * @return the number of distinct statements staged for removal
+	 */
+	int getRemovedCount() {
+		return removed;
+	}
+
+	int size() {
+		return added + removed;
+	}
+
+	/**
+	 * @return the number of statements the buffer holds before it grows
+	 */
+	int getCapacity() {
+		return subjects.length;
+	}
+
+	/**
+	 * @return a view of the statements staged for addition, it is valid until
+	 *         the buffer changes
+	 */
+	Statements getAdded() {
+		return new Statements(ADD, added);
+	}
+
+	/**
+	 * @return a view of the statements staged for removal, it is valid until
+	 *         the buffer changes
+	 */
+	Statements getRemoved() {
+		return new Statements(REMOVE, removed);
+	}
+
+	/**
+	 * Forgets all the staged statements and values. The arrays are kept for
+	 * the next transaction, unless a large transaction grew them to more than
+	 * four times their initial capacity: then they shrink back, so one bulk
+	 * load does not pin its memory for the life of the connection.
+	 */
+	void clear() {
+		if (subjects.length > INITIAL_CAPACITY * 4) {
+			termIds = new HashMap<Value, Integer>();
+			terms = new ArrayList<Value>();
+			subjects = new int[INITIAL_CAPACITY];
+			predicates = new int[INITIAL_CAPACITY];
+			objects = new int[INITIAL_CAPACITY];
+			contexts = new int[INITIAL_CAPACITY];
+			operations = new byte[INITIAL_CAPACITY];
+			table = new int[INITIAL_CAPACITY * 2];
+		} else {
+			termIds.clear();
+			terms.clear();
+			Arrays.fill(table, 0);
+		}
+		terms.add(null);
+		size = 0;
+		added = 0;
+		removed = 0;
+	}
+
+	private void stage(byte operation, Resource subj, URI pred, Value obj,
+			Resource ctx) {
+		int s = intern(subj);
+		int p = intern(pred);
+		int o = intern(obj);
+		int c = intern(ctx);
+		int slot = find(s, p, o, c);
+		int row = table[slot] - 1;
+		if (row >= 0) {
+			if (operations[row] != operation) {
+				count(operations[row], -1);
+				operations[row] = operation;
+				count(operation, 1);
+			}
+			return;
+		}
+		if (size == subjects.length) {
+			grow();
+			slot = find(s, p, o, c);
+		}
+		subjects[size] = s;
+		predicates[size] = p;
+		objects[size] = o;
+		contexts[size] = c;
+		operations[size] = operation;
+		table[slot] = ++size;
+		count(operation, 1);
+	}
+
+	private void count(byte operation, int delta) {
+		if (operation == ADD) {
+			added += delta;
+		} else {
+			removed += delta;
+		}
+	}
+
+	private int intern(Value value) {
+		if (value == null) {
+			return 0;
+		}
+		Integer id = termIds.get(value);
+		if (id == null) {
+			id = terms.size();
+			terms.add(value);
+			termIds.put(value, id);
+		}
+		return id;
+	}
+
+	/**
+	 * @return the slot of the statement, or the free slot where it belongs
+	 */
+	private int find(int s, int p, int o, int c) {
+		int mask = table.length - 1;
+		int slot = hash(s, p, o, c) & mask;
+		while (true) {
+			int row = table[slot] - 1;
+			if (row < 0
+					|| (subjects[row] == s && predicates[row] == p
+							&& objects[row] == o && contexts[row] == c)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static int hash(int s, int p, int o, int c) {
+		int h = s;
+		h = h * 31 + p;
+		h = h * 31 + o;
+		h = h * 31 + c;
+		return h ^ (h >>> 16);
+	}
+
+	private void grow() {
+		int capacity = subjects.length * 2;
+		subjects = Arrays.copyOf(subjects, capacity);
+		predicates = Arrays.copyOf(predicates, capacity);
+		objects = Arrays.copyOf(objects, capacity);
+		contexts = Arrays.copyOf(contexts, capacity);
+		operations = Arrays.copyOf(operations, capacity);
+		table = new int[capacity * 2];
+		for (int row = 0; row < size; row++) {
+			table[find(subjects[row], predicates[row], objects[row],
+					contexts[row])] = row + 1;
+		}
+	}
+
+	private Statement createStatement(int row) {
+		Resource subject = (Resource) terms.get(subjects[row]);
+		URI predicate = (URI) terms.get(predicates[row]);
+		Value object = terms.get(objects[row]);
+		Resource context = (Resource) terms.get(contexts[row]);
+		return context == null ? new StatementImpl(subject, predicate, object)
+				: new ContextStatementImpl(subject, predicate, object, context);
+	}
+
+	/**
+	 * The staged statements of one operation. The statement objects are
+	 * created while iterating.
+	 */
+	class Statements extends AbstractCollection<Statement> {
+		private final byte operation;
+		private final int count;
+
+		private Statements(byte operation, int count) {
+			this.operation = operation;
+			this.count = count;
+		}
+
+		@Override
+		public int size() {
+			return count;
+		}
+
+		@Override
+		public Iterator<Statement> iterator() {
+			return new Iterator<Statement>() {
+				private int next = advance(0);
+
+				private int advance(int row) {
+					while (row < size && operations[row] != operation) {
+						row++;
+					}
+					return row;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return next < size;
+				}
+
+				@Override
+				public Statement next() {
+					if (next >= size) {
+						throw new NoSuchElementException();
+					}
+					Statement statement = createStatement(next);
+					next = advance(next + 1);
+					return statement;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
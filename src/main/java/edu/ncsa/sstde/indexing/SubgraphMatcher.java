@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openrdf.model.Value;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+
+/**
+ * Finds the ways the patterns of an index graph can be matched to the
+ * patterns of a query: every index pattern to a different query pattern it
+ * subsumes, with every variable of the index graph mapped to one variable of
+ * the query.
+ * <p>
+ * The query patterns are indexed by their constant predicate, so an index
+ * pattern with a constant predicate only tries the query patterns with the
+ * same predicate, and of those only the ones with the same constant subject
+ * and object. The index patterns are matched in the order of their number of
+ * candidates, fewest first, and the search backtracks as soon as a candidate
+ * maps a variable that is mapped already to another variable. The mappings
+ * are kept in one map that is undone on backtracking, nothing is copied
+ * while searching.
+ *
+ * @author liangyu
+ *
+ */
+class SubgraphMatcher {
+	/**
+	 * Receives the matches of a {@link SubgraphMatcher}.
+	 */
+	interface MatchHandler {
+		/**
+		 * @param selected
+		 *            the query pattern of every index pattern, in the order of
+		 *            the index patterns. The list is reused for the next match.
+		 * @return false to stop the search
+		 */
+		boolean match(List<StatementPattern> selected);
+	}
+
+	private final List<StatementPattern> indexPatterns;
+	private final List<StatementPattern> queryPatterns;
+	/** the candidate query patterns of every index pattern */
+	private final int[][] candidates;
+	/** the index patterns in the order they are matched */
+	private final Integer[] order;
+
+	private final boolean[] used;
+	private final StatementPattern[] selected;
+	private final Map<String, String> mappings = new HashMap<String, String>();
+
+	SubgraphMatcher(Collection<StatementPattern> indexPatterns,
+			List<StatementPattern> queryPatterns) {
+		this.indexPatterns = new ArrayList<StatementPattern>(indexPatterns);
+		this.queryPatterns = queryPatterns;
+		this.used = new boolean[queryPatterns.size()];
+		this.selected = new StatementPattern[this.indexPatterns.size()];
+
+		Map<Value, List<Integer>> byPredicate = new HashMap<Value, List<Integer>>();
+		List<Integer> all = new ArrayList<Integer>(queryPatterns.size());
+		for (int i = 0; i < queryPatterns.size(); i++) {
+			Var predicate = queryPatterns.get(i).getPredicateVar();
+			all.add(i);
+			if (predicate.hasValue()) {
+				List<Integer> list = byPredicate.get(predicate.getValue());
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					byPredicate.put(predicate.getValue(), list);
+				}
+				list.add(i);
+			}
+		}
+
+		this.candidates = new int[this.indexPatterns.size()][];
+		this.order = new Integer[this.indexPatterns.size()];
+		for (int i = 0; i < this.indexPatterns.size(); i++) {
+			StatementPattern pattern = this.indexPatterns.get(i);
+			List<Integer> list = all;
+			if (pattern.getPredicateVar().hasValue()) {
+				list = byPredicate.get(pattern.getPredicateVar().getValue());
+				if (list == null) {
+					list = Collections.emptyList();
+				}
+			}
+			int[] result = new int[list.size()];
+			int count = 0;
+			for (Integer position : list) {
+				StatementPattern queryPattern = queryPatterns.get(position);
+				if (sameConstant(pattern.getSubjectVar(),
+						queryPattern.getSubjectVar())
+						&& sameConstant(pattern.getObjectVar(),
+								queryPattern.getObjectVar())) {
+					result[count++] = position;
+				}
+			}
+			candidates[i] = Arrays.copyOf(result, count);
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return candidates[o1].length - candidates[o2].length;
+			}
+		});
+	}
+
+	/**
+	 * Searches all the matches, until the handler stops the search.
+	 */
+	void match(MatchHandler handler) {
+		for (int[] list : candidates) {
+			if (list.length == 0) {
+				return;
+			}
+		}
+		match(0, handler);
+	}
+
+	private boolean match(int depth, MatchHandler handler) {
+		if (depth == order.length) {
+			return handler.match(Arrays.asList(selected));
+		}
+		int index = order[depth];
+		StatementPattern pattern = indexPatterns.get(index);
+		List<String> added = new ArrayList<String>(3);
+		for (int position : candidates[index]) {
+			if (used[position]) {
+				continue;
+			}
+			StatementPattern queryPattern = queryPatterns.get(position);
+			if (map(pattern.getSubjectVar(), queryPattern.getSubjectVar(),
+					added)
+					&& map(pattern.getPredicateVar(),
+							queryPattern.getPredicateVar(), added)
+					&& map(pattern.getObjectVar(), queryPattern.getObjectVar(),
+							added)) {
+				used[position] = true;
+				selected[index] = queryPattern;
+				boolean proceed = match(depth + 1, handler);
+				used[position] = false;
+				selected[index] = null;
+				if (!proceed) {
+					return false;
+				}
+			}
+			for (String name : added) {
+				mappings.remove(name);
+			}
+			added.clear();
+		}
+		return true;
+	}
+
+	/**
+	 * Maps a variable of the index graph to a variable of the query, the same
+	 * way {@link GraphAnalyzer.MatchedIndexedGraph} does.
+	 *
+	 * @param added
+	 *            the variables that are newly mapped, to undo the mapping
+	 * @return false if the variables can not be matched
+	 */
+	private boolean map(Var var1, Var var2, List<String> added) {
+		if (var1.hasValue()) {
+			return var1.getValue().equals(var2.getValue());
+		}
+		if (var2.hasValue()) {
+			return true;
+		}
+		String existedValue = mappings.get(var1.getName());
+		if (existedValue == null) {
+			mappings.put(var1.getName(), var2.getName());
+			added.add(var1.getName());
+			return true;
+		}
+		return existedValue.equals(var2.getName());
+	}
+
+	private static boolean sameConstant(Var var1, Var var2) {
+		return !var1.hasValue() || var1.getValue().equals(var2.getValue());
+	}
+}
@@ -17,6 +17,7 @@ import info.aduna.iteration.CloseableIteration;
 
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.lang.Validate;
@@ -101,7 +102,12 @@ public class IndexerExpr extends ExternalSet implements Cloneable {
      */
     @Override
     public Set<String> getBindingNames() {
-    	return  new HashSet<String>(this.graph.getNameMappings().values());
+    	if (this.graph.getGroup() != null)
+    	    return this.graph.getGroup().getBindingNames();
+    	Set<String> result = new HashSet<String>(this.graph.getNameMappings().values());
+    	for (MatchedIndexedGraph fused: this.graph.getFusedGraphs())
+    	    result.addAll(fused.getNameMappings().values());
+    	return result;
 //        return query.getAllResultBindings();
     }
 
@@ -122,10 +128,14 @@ public class IndexerExpr extends ExternalSet implements Cloneable {
 
     /**
      * See <a href="https://sourceforge.net/apps/trac/opensahara/ticket/7">#7</a>
+     * <p>
+     * The estimate of the indexer, see {@link Indexer#estimateCardinality(IndexerExpr)}. Without an estimate it is 0, which makes the index
+     * expression the first of its join.
      */
     @Override
     public double cardinality() {
-        return 0.0; //See #14
+        double estimate = getIndexer().estimateCardinality(this);
+        return estimate < 0 ? 0.0 : estimate; //See #14
     }
 
     /**
@@ -136,6 +146,14 @@ public class IndexerExpr extends ExternalSet implements Cloneable {
         return getIndexer().iterator(valueFactory, this, bindings);
     }
 
+    /**
+     * Returns an iterator over the results of the contained query for a block of binding sets, see
+     * {@link Indexer#iterator(ValueFactory, IndexerExpr, List)}.
+     */
+    public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(List<BindingSet> block) throws QueryEvaluationException {
+        return getIndexer().iterator(valueFactory, this, block);
+    }
+
     /**
      * Joins all the queries of the given {@link IndexerExpr} to this.
      */
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.useekm.indexing.exception.IndexException;
+
+/**
+ * Writes the index rows of one index table on a background thread, so a
+ * commit on the triple store does not wait for the database of the index.
+ * <p>
+ * The rows of a commit are derived by the committing thread into a
+ * {@link Submission}, in chunks of {@link PostgisIndexerSettings#getBatchSize()}
+ * rows, while other threads derive theirs. When the submission is closed its
+ * chunks are handed over through a queue of
+ * {@link PostgisIndexerSettings#getAsyncQueueSize()} chunks, one submission
+ * at a time. When the queue is full the committing thread waits, so a slow
+ * database slows down the commits instead of filling the memory; a
+ * submission holds the rows of one commit, which the staging limits of the
+ * {@link edu.ncsa.sstde.indexing.IndexManager} bound. Each submission is
+ * written and committed in its own transaction.
+ * <p>
+ * Every closed submission gets a ticket, a number that increases with each
+ * submission. The writer publishes the ticket of the last submission it
+ * committed as its watermark, so a reader can wait for a commit of its own
+ * with {@link #awaitWatermark(long, long)}, or for changes older than some
+ * time with {@link #awaitLag(long, long)}.
+ * <p>
+ * A submission that fails to write is rolled back and logged, and the
+ * watermark moves past it so the waiting readers go on. Its ticket is
+ * remembered as failed until {@link #removeFailed(long)} reports it, so the
+ * {@link edu.ncsa.sstde.indexing.IndexManager} keeps the journal record of
+ * the commit and the changes are given to the index again.
+ * <p>
+ * When the writer thread stops, because it is interrupted, fails
+ * unexpectedly or is stopped with {@link #stop()}, the queued rows are
+ * dropped, its connection is closed, and every thread that queues rows or
+ * waits for a watermark gets an {@link IndexException} instead of blocking.
+ *
+ * @author liangyu
+ *
+ */
+class AsyncIndexWriter implements Runnable {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(AsyncIndexWriter.class);
+
+	private final PostgisIndexer indexer;
+	private final BlockingQueue<Chunk> queue;
+	private final ReentrantLock submitLock = new ReentrantLock();
+	private final Object watermarkLock = new Object();
+	/** ticket and submission time of every submission not yet applied */
+	private final ArrayDeque<long[]> unapplied = new ArrayDeque<long[]>();
+	private long submitted = 0;
+	private long applied = 0;
+	private long failed = 0;
+	/** the tickets of the failed submissions that were not reported yet */
+	private final TreeSet<Long> failedTickets = new TreeSet<Long>();
+	private volatile boolean stopped = false;
+	private Thread thread;
+
+	/**
+	 * @param indexer
+	 *            an indexer of its own, used for its connection and
+	 *            statements on the writer thread only
+	 */
+	AsyncIndexWriter(PostgisIndexer indexer, int queueSize) {
+		this.indexer = indexer;
+		this.queue = new ArrayBlockingQueue<Chunk>(Math.max(queueSize, 2));
+	}
+
+	/**
+	 * Starts the writer thread.
+	 */
+	synchronized void start() {
+		thread = new Thread(this, "index-writer-" + indexer.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the writer thread. The rows that are still queued are not
+	 * written.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * @return true if the writer thread stopped, or is stopping
+	 */
+	boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Starts a submission. Submissions are filled independently, they are
+	 * queued in the order they are closed.
+	 */
+	Submission open(int operation) {
+		checkRunning();
+		return new Submission(operation);
+	}
+
+	/**
+	 * @return the ticket of the last closed submission
+	 */
+	long getSubmittedWatermark() {
+		synchronized (watermarkLock) {
+			return submitted;
+		}
+	}
+
+	/**
+	 * @return the ticket of the last submission that was written
+	 */
+	long getAppliedWatermark() {
+		synchronized (watermarkLock) {
+			return applied;
+		}
+	}
+
+	/**
+	 * Waits until the submission with the given ticket is written.
+	 *
+	 * @param timeoutMillis
+	 *            the maximum time to wait, 0 to wait as long as it takes
+	 * @return false if the time ran out first
+	 */
+	boolean awaitWatermark(long watermark, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (watermarkLock) {
+			while (applied < watermark) {
+				checkRunning();
+				if (!waitUntil(deadline, timeoutMillis)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Waits until every submission that is older than
+	 * <code>maxLagMillis</code> is written.
+	 *
+	 * @return false if the time ran out first
+	 */
+	boolean awaitLag(long maxLagMillis, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (watermarkLock) {
+			while (!unapplied.isEmpty()
+					&& unapplied.peek()[1] < System.currentTimeMillis()
+							- maxLagMillis) {
+				checkRunning();
+				if (!waitUntil(deadline, timeoutMillis)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private boolean waitUntil(long deadline, long timeoutMillis)
+			throws InterruptedException {
+		if (timeoutMillis <= 0) {
+			watermarkLock.wait();
+			return true;
+		}
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			return false;
+		}
+		watermarkLock.wait(remaining);
+		return true;
+	}
+
+	private void checkRunning() {
+		if (stopped) {
+			throw new IndexException("the index writer of " + indexer.getName()
+					+ " stopped, a reindex is needed");
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			write();
+		} catch (InterruptedException e) {
+			LOG.warn("{}: writer interrupted, {} chunks not written",
+					indexer.getName(), queue.size());
+		} catch (RuntimeException e) {
+			LOG.error(indexer.getName() + ": writer failed, " + queue.size()
+					+ " chunks not written", e);
+		} catch (Error e) {
+			LOG.error(indexer.getName() + ": writer failed, " + queue.size()
+					+ " chunks not written", e);
+			throw e;
+		} finally {
+			stopped = true;
+			// wakes up a thread that waits for room in the queue
+			queue.clear();
+			synchronized (watermarkLock) {
+				watermarkLock.notifyAll();
+			}
+			try {
+				indexer.close();
+			} catch (RuntimeException e) {
+				LOG.warn("could not close the connection of the writer", e);
+			}
+		}
+	}
+
+	private void write() throws InterruptedException {
+		boolean broken = false;
+		IndexBatchWriter writer = null;
+		int operation = 0;
+		Submission current = null;
+		while (!stopped) {
+			Chunk chunk = queue.take();
+			if (chunk.submission != current) {
+				if (current != null) {
+					// the thread that closed it failed to queue its end
+					LOG.warn("{}: rolling back an incomplete submission",
+							indexer.getName());
+					rollback();
+				}
+				current = chunk.submission;
+				writer = null;
+				broken = false;
+			}
+			if (chunk.rows == null) {
+				current = null;
+				boolean written = !broken && commit(writer, chunk.ticket);
+				if (!written) {
+					rollback();
+				}
+				publish(chunk.ticket, written);
+				writer = null;
+				broken = false;
+				continue;
+			}
+			if (broken) {
+				continue;
+			}
+			try {
+				if (writer == null || operation != chunk.operation) {
+					if (writer != null) {
+						writer.flush();
+					}
+					operation = chunk.operation;
+					writer = indexer.createBatchWriter(operation);
+				}
+				for (Object[] row : chunk.rows) {
+					writer.add(row);
+				}
+			} catch (SQLException e) {
+				broken = true;
+				writer = null;
+				LOG.error(indexer.getName() + ": could not write index rows", e);
+			} catch (RuntimeException e) {
+				broken = true;
+				writer = null;
+				LOG.error(indexer.getName() + ": could not write index rows", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the last rows of a submission and commits them.
+	 *
+	 * @return false if that failed
+	 */
+	private boolean commit(IndexBatchWriter writer, long ticket) {
+		if (writer == null) {
+			return true;
+		}
+		try {
+			writer.flush();
+			indexer.getConnection().commit();
+			LOG.debug("{}: submission {} wrote {} rows", new Object[] {
+					indexer.getName(), ticket, writer.getWritten() });
+			return true;
+		} catch (SQLException e) {
+			LOG.error(indexer.getName() + ": could not commit index rows", e);
+		} catch (RuntimeException e) {
+			LOG.error(indexer.getName() + ": could not commit index rows", e);
+		}
+		return false;
+	}
+
+	private void rollback() {
+		try {
+			indexer.getConnection().rollback();
+		} catch (SQLException e) {
+			LOG.warn("rollback failed", e);
+		} catch (RuntimeException e) {
+			LOG.warn("rollback failed", e);
+		}
+	}
+
+	private void publish(long ticket, boolean written) {
+		synchronized (watermarkLock) {
+			if (!written) {
+				failed++;
+				failedTickets.add(ticket);
+				LOG.error("{}: submission {} failed, {} submissions failed so"
+						+ " far", new Object[] { indexer.getName(), ticket,
+						failed });
+			}
+			applied = ticket;
+			while (!unapplied.isEmpty() && unapplied.peek()[0] <= ticket) {
+				unapplied.poll();
+			}
+			watermarkLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Tells if a submission failed to write. A failure is reported once, the
+	 * ticket is forgotten then.
+	 *
+	 * @return true if the submission with the ticket could not be written
+	 *         and was rolled back
+	 */
+	boolean removeFailed(long ticket) {
+		synchronized (watermarkLock) {
+			return failedTickets.remove(ticket);
+		}
+	}
+
+	private void put(Chunk chunk) {
+		checkRunning();
+		try {
+			queue.put(chunk);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IndexException("interrupted while queueing index rows",
+					e);
+		}
+	}
+
+	/**
+	 * A group of rows for the writer thread. A chunk without rows ends a
+	 * submission and carries its ticket.
+	 */
+	private static class Chunk {
+		final Submission submission;
+		final int operation;
+		final List<Object[]> rows;
+		final long ticket;
+
+		Chunk(Submission submission, int operation, List<Object[]> rows,
+				long ticket) {
+			this.submission = submission;
+			this.operation = operation;
+			this.rows = rows;
+			this.ticket = ticket;
+		}
+	}
+
+	/**
+	 * The rows of one commit, see {@link AsyncIndexWriter#open(int)}. A
+	 * submission must be closed or aborted by the thread that opened it.
+	 */
+	class Submission implements IndexRowSink {
+		private final int operation;
+		private final int chunkSize;
+		private final List<List<Object[]>> chunks = new ArrayList<List<Object[]>>();
+		private List<Object[]> rows;
+		private boolean ended = false;
+
+		private Submission(int operation) {
+			this.operation = operation;
+			this.chunkSize = indexer.getSettings().getBatchSize();
+			this.rows = new ArrayList<Object[]>(chunkSize);
+		}
+
+		@Override
+		public void add(Object[] row) {
+			rows.add(row);
+			if (rows.size() >= chunkSize) {
+				chunks.add(rows);
+				rows = new ArrayList<Object[]>(chunkSize);
+			}
+		}
+
+		/**
+		 * Queues the rows and the end of the submission. Only the queueing
+		 * waits for the other submissions.
+		 *
+		 * @return the ticket of the submission
+		 */
+		long close() {
+			if (ended) {
+				throw new IllegalStateException("submission already ended");
+			}
+			ended = true;
+			if (!rows.isEmpty()) {
+				chunks.add(rows);
+			}
+			rows = null;
+			submitLock.lock();
+			try {
+				for (List<Object[]> chunk : chunks) {
+					put(new Chunk(this, operation, chunk, 0));
+				}
+				chunks.clear();
+				long ticket;
+				synchronized (watermarkLock) {
+					ticket = ++submitted;
+					unapplied.add(new long[] { ticket,
+							System.currentTimeMillis() });
+				}
+				put(new Chunk(this, operation, null, ticket));
+				return ticket;
+			} finally {
+				submitLock.unlock();
+			}
+		}
+
+		/**
+		 * Discards the rows of this submission.
+		 */
+		void abort() {
+			ended = true;
+			chunks.clear();
+			rows = null;
+		}
+	}
+}
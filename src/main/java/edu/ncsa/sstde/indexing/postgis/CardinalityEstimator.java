@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.useekm.indexing.postgis.IndexedStatement;
+
+import edu.ncsa.sstde.indexing.postgis.PostgisIndexer.Binding;
+
+/**
+ * Estimates the number of rows of an index query with the PostgreSQL
+ * planner: the estimate is the row count of the top node of the
+ * <code>EXPLAIN</code> of the query, with its parameters bound, so the
+ * planner statistics of the table and the selectivity of the spatial and
+ * temporal conditions are taken into account. The total cost of the top node
+ * is kept as well, it also reflects the indexes the plan can use.
+ * <p>
+ * Estimates are cached by the text and the parameters of the query for
+ * {@link PostgisIndexerSettings#getEstimateTTL()} milliseconds, so a query
+ * that is optimized again and again is explained once in a while only. The
+ * cache is shared by all the indexers of an index table.
+ *
+ * @author liangyu
+ *
+ */
+class CardinalityEstimator {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CardinalityEstimator.class);
+	private static final Pattern ROWS = Pattern.compile("rows=(\\d+)");
+	private static final Pattern COST = Pattern
+			.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+
+	private final long ttlMillis;
+	/** the rows, the cost and the time they expire of every query */
+	private final LinkedHashMap<String, double[]> cache;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of estimates to cache
+	 */
+	CardinalityEstimator(long ttlMillis, final int capacity) {
+		this.ttlMillis = ttlMillis;
+		this.cache = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the estimated number of rows of the query, or -1 if the
+	 *         database could not estimate it
+	 */
+	double estimate(Connection connection, String sql, List<Binding> bindings) {
+		return lookup(connection, sql, bindings)[0];
+	}
+
+	/**
+	 * @return the total cost of the query in the units of the planner, or -1
+	 *         if the database could not estimate it
+	 */
+	double estimateCost(Connection connection, String sql,
+			List<Binding> bindings) {
+		return lookup(connection, sql, bindings)[1];
+	}
+
+	private double[] lookup(Connection connection, String sql,
+			List<Binding> bindings) {
+		String key = createKey(sql, bindings);
+		long now = System.currentTimeMillis();
+		synchronized (cache) {
+			double[] entry = cache.get(key);
+			if (entry != null && entry[2] > now) {
+				return entry;
+			}
+		}
+		double[] entry = explain(connection, sql, bindings);
+		if (entry[0] >= 0) {
+			entry[2] = now + ttlMillis;
+			synchronized (cache) {
+				cache.put(key, entry);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Forgets all the estimates.
+	 */
+	void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	private static String createKey(String sql, List<Binding> bindings) {
+		StringBuffer key = new StringBuffer(sql);
+		for (Binding binding : bindings) {
+			key.append('\u0000').append(binding.getValue());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Runs the <code>EXPLAIN</code> in a savepoint when the connection is in
+	 * a transaction, so a failure does not abort the transaction.
+	 * 
+	 * @return the rows, the cost and a slot for the expiry time
+	 */
+	private double[] explain(Connection connection, String sql,
+			List<Binding> bindings) {
+		Savepoint savepoint = null;
+		PreparedStatement ps = null;
+		ResultSet results = null;
+		try {
+			if (!connection.getAutoCommit()) {
+				savepoint = connection.setSavepoint();
+			}
+			ps = connection.prepareStatement("EXPLAIN " + sql);
+			int index = 1;
+			for (Binding binding : bindings) {
+				binding.setParameter(ps, index++);
+			}
+			results = ps.executeQuery();
+			double[] entry = new double[] { -1, -1, 0 };
+			if (results.next()) {
+				String plan = results.getString(1);
+				Matcher matcher = ROWS.matcher(plan);
+				if (matcher.find()) {
+					entry[0] = Double.parseDouble(matcher.group(1));
+				}
+				matcher = COST.matcher(plan);
+				if (matcher.find()) {
+					entry[1] = Double.parseDouble(matcher.group(1));
+				}
+			}
+			if (savepoint != null) {
+				connection.releaseSavepoint(savepoint);
+			}
+			return entry;
+		} catch (SQLException e) {
+			LOG.warn("could not estimate the rows of " + sql, e);
+			if (savepoint != null) {
+				try {
+					connection.rollback(savepoint);
+				} catch (SQLException e1) {
+					LOG.warn("rollback failed", e1);
+				}
+			}
+			return new double[] { -1, -1, 0 };
+		} finally {
+			IndexedStatement.closeQuietly(results);
+			IndexedStatement.closeQuietly(ps);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Value;
+
+import com.useekm.indexing.exception.IndexException;
+
+/**
+ * Computes the identity of one index graph, the value of the
+ * {@link PostgisIndexerSettings#OID} column, as the 128 bit MD5 digest of the
+ * values of its variables, stored in a <code>uuid</code> column.
+ * <p>
+ * The characters of the values are fed to the digest through a scratch
+ * buffer that is reused for every graph, so computing an identity does not
+ * allocate intermediate strings or byte arrays. Each value is written with a
+ * kind tag and the length of each of its parts, so different values can not
+ * produce the same input for the digest.
+ * <p>
+ * Two graphs with the same digest are not told apart by the primary key: the
+ * insert of the second one is skipped, and {@link IndexBatchWriter} logs it
+ * as a collision.
+ * <p>
+ * An instance is not thread-safe, every indexer has its own.
+ *
+ * @author liangyu
+ *
+ */
+class GraphIdentity {
+	private static final byte URI_TAG = 'U';
+	private static final byte BNODE_TAG = 'B';
+	private static final byte LITERAL_TAG = 'L';
+
+	private final MessageDigest digest;
+	private final byte[] scratch = new byte[512];
+	private final byte[] hash = new byte[16];
+	private int position = 0;
+
+	GraphIdentity() {
+		try {
+			this.digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IndexException(e);
+		}
+	}
+
+	/**
+	 * Starts a new identity.
+	 */
+	void reset() {
+		digest.reset();
+		position = 0;
+	}
+
+	/**
+	 * Adds the value of the next variable to the identity.
+	 */
+	void add(Value value) {
+		if (value instanceof Literal) {
+			Literal literal = (Literal) value;
+			put(LITERAL_TAG);
+			putString(literal.getLabel());
+			putString(literal.getLanguage());
+			putString(literal.getDatatype() == null ? null : literal
+					.getDatatype().stringValue());
+		} else if (value instanceof BNode) {
+			put(BNODE_TAG);
+			putString(((BNode) value).getID());
+		} else {
+			put(URI_TAG);
+			putString(value.stringValue());
+		}
+	}
+
+	/**
+	 * @return the identity of the values added since the last
+	 *         {@link #reset()}
+	 */
+	UUID get() {
+		flushScratch();
+		try {
+			digest.digest(hash, 0, hash.length);
+		} catch (DigestException e) {
+			throw new IndexException(e);
+		}
+		long msb = 0;
+		long lsb = 0;
+		for (int i = 0; i < 8; i++) {
+			msb = (msb << 8) | (hash[i] & 0xff);
+			lsb = (lsb << 8) | (hash[i + 8] & 0xff);
+		}
+		position = 0;
+		return new UUID(msb, lsb);
+	}
+
+	private void putString(String string) {
+		if (string == null) {
+			putInt(-1);
+			return;
+		}
+		int length = string.length();
+		putInt(length);
+		for (int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+			put((byte) (c >>> 8));
+			put((byte) c);
+		}
+	}
+
+	private void putInt(int i) {
+		put((byte) (i >>> 24));
+		put((byte) (i >>> 16));
+		put((byte) (i >>> 8));
+		put((byte) i);
+	}
+
+	private void put(byte b) {
+		if (position == scratch.length) {
+			flushScratch();
+		}
+		scratch[position++] = b;
+	}
+
+	private void flushScratch() {
+		digest.update(scratch, 0, position);
+		position = 0;
+	}
+}
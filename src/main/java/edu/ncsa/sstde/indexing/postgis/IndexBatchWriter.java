@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups the rows derived for one index maintenance call into JDBC batches of
+ * {@link PostgisIndexerSettings#getBatchSize()} rows, and sends each group to
+ * the database with a single {@link PreparedStatement#executeBatch()}.
+ * <p>
+ * All batches are executed in the transaction of the statement's connection;
+ * the caller decides when to commit. A group that fails (e.g. because of a
+ * value the database can not parse) is rolled back to a savepoint and
+ * replayed row by row, which logs every row the database rejects. The flush
+ * then fails, so the caller does not commit the transaction without those
+ * rows, and the journal keeps the record of the change.
+ * <p>
+ * An insert the database skips because the identity of its graph is indexed
+ * already is checked with a collision query, which logs a different graph
+ * with the same identity as an error.
+ *
+ * @author liangyu
+ *
+ */
+class IndexBatchWriter implements IndexRowSink {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(IndexBatchWriter.class);
+
+	private final PreparedStatement statement;
+	private final PreparedStatement collisionQuery;
+	private final int batchSize;
+	private final TermDictionary dictionary;
+	private final int[] termColumns;
+	private final List<Object[]> pending;
+	private long written = 0;
+
+	/**
+	 * @param statement
+	 *            the prepared insert or delete statement, its parameters are
+	 *            bound in the order of the rows passed to {@link #add(Object[])}
+	 * @param batchSize
+	 *            the number of rows to collect before they are sent to the
+	 *            database
+	 */
+	IndexBatchWriter(PreparedStatement statement, int batchSize) {
+		this(statement, null, batchSize, null, null);
+	}
+
+	/**
+	 * @param collisionQuery
+	 *            the query that returns a row if the identity of a skipped
+	 *            insert belongs to another graph, it has the parameters of
+	 *            the insert, or null
+	 * @param dictionary
+	 *            the dictionary the terms of a group are encoded with before
+	 *            it is sent, see {@link TermDictionary#encode(List, int[])}
+	 * @param termColumns
+	 *            the columns of the rows that hold a term
+	 */
+	IndexBatchWriter(PreparedStatement statement,
+			PreparedStatement collisionQuery, int batchSize,
+			TermDictionary dictionary, int[] termColumns) {
+		this.statement = statement;
+		this.collisionQuery = collisionQuery;
+		this.dictionary = dictionary;
+		this.termColumns = termColumns;
+		this.batchSize = batchSize > 0 ? batchSize
+				: PostgisIndexerSettings.DEFAULT_BATCH_SIZE;
+		this.pending = new ArrayList<Object[]>(this.batchSize);
+	}
+
+	/**
+	 * Queues one row, and flushes the current group if it is full.
+	 */
+	@Override
+	public void add(Object[] row) throws SQLException {
+		pending.add(row);
+		if (pending.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends all the queued rows to the database.
+	 * 
+	 * @throws SQLException
+	 *             if the database rejected one of the rows
+	 */
+	void flush() throws SQLException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		if (dictionary != null) {
+			try {
+				dictionary.encode(pending, termColumns);
+			} catch (SQLException e) {
+				pending.clear();
+				throw e;
+			}
+		}
+		Connection connection = statement.getConnection();
+		Savepoint savepoint = connection.setSavepoint();
+		try {
+			for (Object[] row : pending) {
+				bind(row);
+				statement.addBatch();
+			}
+			int[] counts = statement.executeBatch();
+			connection.releaseSavepoint(savepoint);
+			for (int i = 0; i < counts.length; i++) {
+				// an insert of an existing graph is skipped by the database
+				if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+					written++;
+				} else if (counts[i] == 0) {
+					checkCollision(pending.get(i));
+				}
+			}
+		} catch (BatchUpdateException e) {
+			statement.clearBatch();
+			connection.rollback(savepoint);
+			replayOneByOne(connection, e);
+		} finally {
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Writes the rows of a failed group one at a time, to find and log the
+	 * rows the database rejects.
+	 * 
+	 * @throws SQLException
+	 *             if a row was rejected, so the transaction is not committed
+	 *             without it
+	 */
+	private void replayOneByOne(Connection connection, BatchUpdateException cause)
+			throws SQLException {
+		LOG.debug("batch failed, retrying row by row", cause.getNextException());
+		SQLException rejected = null;
+		int rejectedRows = 0;
+		for (Object[] row : pending) {
+			Savepoint savepoint = connection.setSavepoint();
+			int count;
+			try {
+				bind(row);
+				count = statement.executeUpdate();
+				connection.releaseSavepoint(savepoint);
+			} catch (SQLException e) {
+				connection.rollback(savepoint);
+				rejectedRows++;
+				if (rejected == null) {
+					rejected = e;
+				}
+				LOG.warn("could not write index row " + row[0] + " (SQLState "
+						+ e.getSQLState() + "): " + e.getMessage());
+				continue;
+			}
+			written += count;
+			if (count == 0) {
+				checkCollision(row);
+			}
+		}
+		if (rejected != null) {
+			throw new SQLException(rejectedRows + " of " + pending.size()
+					+ " index rows were rejected", rejected.getSQLState(),
+					rejected);
+		}
+	}
+
+	/**
+	 * Logs an error if the row was skipped for a graph with the same identity
+	 * and other values. Such a graph is not indexed.
+	 */
+	private void checkCollision(Object[] row) throws SQLException {
+		if (collisionQuery == null) {
+			return;
+		}
+		for (int i = 0; i < row.length; i++) {
+			collisionQuery.setObject(i + 1, row[i]);
+		}
+		ResultSet result = collisionQuery.executeQuery();
+		try {
+			if (result.next()) {
+				LOG.error("graph identity collision: " + row[0]
+						+ " is indexed with other values, the graph is left out"
+						+ " of the index");
+			}
+		} finally {
+			result.close();
+		}
+	}
+
+	private void bind(Object[] row) throws SQLException {
+		for (int i = 0; i < row.length; i++) {
+			statement.setObject(i + 1, row[i]);
+		}
+	}
+
+	/**
+	 * @return the number of rows that were changed in the database so far
+	 */
+	long getWritten() {
+		return written;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Streams index rows to the database through the COPY protocol, in the text
+ * format. The rows are the same as the ones passed to
+ * {@link IndexBatchWriter#add(Object[])}: the graph identity followed by the
+ * value of every variable. Each value is written as its string form, so a
+ * timestamp or geometry is parsed by the server the same way as a literal in
+ * an insert statement.
+ * <p>
+ * The rows are encoded into a buffer which is sent with one
+ * {@link CopyIn#writeToCopy(byte[], int, int)} call whenever it is full. The
+ * terms of a dictionary encoded table are replaced with their ids for
+ * {@link #TERM_BATCH_SIZE} rows at a time.
+ *
+ * @author liangyu
+ *
+ */
+class IndexCopyWriter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+	static final int TERM_BATCH_SIZE = 1000;
+
+	private final CopyIn copyIn;
+	private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+	private final TermDictionary dictionary;
+	private final int[] termColumns;
+	private final List<Object[]> pending = new ArrayList<Object[]>();
+	private long written = 0;
+
+	/**
+	 * @param copyIn
+	 *            an open <code>COPY ... FROM STDIN</code> operation, with
+	 *            the columns in the order of the rows passed to
+	 *            {@link #add(Object[])}
+	 */
+	IndexCopyWriter(CopyIn copyIn) {
+		this(copyIn, null, null);
+	}
+
+	/**
+	 * @param dictionary
+	 *            the dictionary the terms are encoded with, see
+	 *            {@link TermDictionary#encode(List, int[])}
+	 * @param termColumns
+	 *            the columns of the rows that hold a term
+	 */
+	IndexCopyWriter(CopyIn copyIn, TermDictionary dictionary,
+			int[] termColumns) {
+		this.copyIn = copyIn;
+		this.dictionary = dictionary;
+		this.termColumns = termColumns;
+	}
+
+	/**
+	 * Encodes one row, and sends the buffer if it is full.
+	 */
+	void add(Object[] row) throws SQLException {
+		written++;
+		if (dictionary == null) {
+			write(row);
+		} else {
+			pending.add(row);
+			if (pending.size() >= TERM_BATCH_SIZE) {
+				writePending();
+			}
+		}
+	}
+
+	private void writePending() throws SQLException {
+		dictionary.encode(pending, termColumns);
+		for (Object[] row : pending) {
+			write(row);
+		}
+		pending.clear();
+	}
+
+	private void write(Object[] row) throws SQLException {
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0) {
+				buffer.append('\t');
+			}
+			if (row[i] == null) {
+				buffer.append("\\N");
+			} else {
+				escape(row[i].toString());
+			}
+		}
+		buffer.append('\n');
+		if (buffer.length() >= BUFFER_SIZE) {
+			send();
+		}
+	}
+
+	private void escape(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				buffer.append("\\\\");
+				break;
+			case '\t':
+				buffer.append("\\t");
+				break;
+			case '\n':
+				buffer.append("\\n");
+				break;
+			case '\r':
+				buffer.append("\\r");
+				break;
+			default:
+				buffer.append(c);
+			}
+		}
+	}
+
+	private void send() throws SQLException {
+		byte[] bytes = buffer.toString().getBytes(UTF8);
+		copyIn.writeToCopy(bytes, 0, bytes.length);
+		buffer.setLength(0);
+	}
+
+	/**
+	 * Sends the remaining rows and completes the COPY operation.
+	 *
+	 * @return the number of rows the server reports as copied
+	 */
+	long finish() throws SQLException {
+		if (!pending.isEmpty()) {
+			writePending();
+		}
+		if (buffer.length() > 0) {
+			send();
+		}
+		return copyIn.endCopy();
+	}
+
+	/**
+	 * Aborts the COPY operation, nothing of it will be visible in the table.
+	 */
+	void cancel() {
+		try {
+			if (copyIn.isActive()) {
+				copyIn.cancelCopy();
+			}
+		} catch (SQLException e) {
+			// the operation is already broken, nothing left to clean up
+		}
+	}
+
+	/**
+	 * @return the number of rows encoded so far
+	 */
+	long getWritten() {
+		return written;
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.sql.SQLException;
+
+/**
+ * Receives the index rows derived by {@link PostgisIndexer}: the graph
+ * identity, followed by the value of every variable for an insert.
+ *
+ * @author liangyu
+ *
+ */
+interface IndexRowSink {
+	void add(Object[] row) throws SQLException;
+}
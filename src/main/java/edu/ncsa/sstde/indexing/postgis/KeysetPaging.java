@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.useekm.indexing.postgis.IndexedStatement;
+
+import edu.ncsa.sstde.indexing.postgis.PostgisIndexer.Binding;
+
+/**
+ * Prepares the pages after the first one of a query with a limit. The query
+ * is ordered on its ORDER BY columns followed by
+ * {@link PostgisIndexerSettings#OID}, so the key values of the last row of a
+ * page identify where the next page starts. A page selects the rows after
+ * that key:
+ *
+ * <pre>
+ * k1 &gt; ? OR (k1 = ? AND k2 &gt; ?) OR ...
+ * </pre>
+ *
+ * with &lt; for a descending key, so the database can seek to the start of a
+ * page instead of reading and skipping the rows of the pages before it.
+ * <p>
+ * A key can be NULL. The ORDER BY puts NULL last for an ascending key and
+ * first for a descending one, so the rows after a value of an ascending key
+ * include its NULLs, and the rows after a NULL of a descending key are the
+ * ones that are not NULL. A NULL in the key of the last row is compared with
+ * <code>IS NULL</code>, so the condition of a page depends on which values of
+ * that key are NULL.
+ *
+ * @author liangyu
+ *
+ */
+class KeysetPaging {
+	/** the largest page, the page size doubles up to it */
+	static final int MAX_PAGE_SIZE = 1 << 20;
+
+	private final Connection connection;
+	private final String head;
+	private final String where;
+	private final String orderBy;
+	private final List<String> keys;
+	private final List<Boolean> ascending;
+	private final List<Binding> inputBindings;
+	private final List<Binding> keyBindings;
+	private final int[] keyColumns;
+	private final int fetchSize;
+
+	/**
+	 * @param head
+	 *            the query up to its conditions, see
+	 *            {@link #createSQL(String, String, String, List, List, boolean[], List)}
+	 *            for the other parts of the query
+	 * @param keyBindings
+	 *            the parameter of every key that is an expression with a
+	 *            parameter, like a distance, null for a plain column
+	 * @param keyColumns
+	 *            the columns of the result that hold the key values, in key
+	 *            order
+	 */
+	KeysetPaging(Connection connection, String head, String where,
+			String orderBy, List<String> keys, List<Boolean> ascending,
+			List<Binding> inputBindings, List<Binding> keyBindings,
+			int[] keyColumns, int fetchSize) {
+		this.connection = connection;
+		this.head = head;
+		this.where = where;
+		this.orderBy = orderBy;
+		this.keys = keys;
+		this.ascending = ascending;
+		this.inputBindings = inputBindings;
+		this.keyBindings = keyBindings;
+		this.keyColumns = keyColumns;
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Reads the key of the current row of a page.
+	 */
+	Object[] getKey(ResultSet results) throws SQLException {
+		Object[] key = new Object[keyColumns.length];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = results.getObject(keyColumns[i]);
+		}
+		return key;
+	}
+
+	/**
+	 * @return the size of the page after one of the given size
+	 */
+	static int nextPageSize(int pageSize) {
+		return pageSize >= MAX_PAGE_SIZE / 2 ? MAX_PAGE_SIZE : pageSize * 2;
+	}
+
+	/**
+	 * Prepares the page of the rows after a key.
+	 *
+	 * @param after
+	 *            the key of the last row of the previous page
+	 */
+	PreparedStatement prepare(Object[] after, int pageSize)
+			throws SQLException {
+		boolean[] nulls = new boolean[after.length];
+		for (int i = 0; i < after.length; i++) {
+			nulls[i] = after[i] == null;
+		}
+		List<Integer> parameters = new ArrayList<Integer>();
+		String sql = createSQL(head, where, orderBy, keys, ascending, nulls,
+				parameters);
+		PreparedStatement ps = connection.prepareStatement(sql,
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		boolean success = false;
+		try {
+			int index = 1;
+			for (Binding binding : inputBindings) {
+				binding.setParameter(ps, index++);
+			}
+			for (int parameter : parameters) {
+				int key = parameter / 2;
+				if (parameter % 2 == 1) {
+					ps.setObject(index++, after[key]);
+				} else if (keyBindings.get(key) != null) {
+					keyBindings.get(key).setParameter(ps, index++);
+				}
+			}
+			ps.setInt(index, pageSize);
+			ps.setFetchSize(fetchSize > 0 ? Math.min(fetchSize, pageSize)
+					: pageSize);
+			success = true;
+			return ps;
+		} finally {
+			if (!success)
+				IndexedStatement.closeQuietly(ps);
+		}
+	}
+
+	/**
+	 * Creates the query of a page.
+	 *
+	 * @param where
+	 *            the conditions of the query, may be empty
+	 * @param keys
+	 *            the key columns or expressions, the last one must be unique
+	 *            and not NULL
+	 * @param ascending
+	 *            the direction of each key column
+	 * @param nulls
+	 *            which values of the key of the last row are NULL
+	 * @param parameters
+	 *            receives the parameters of the key condition in order:
+	 *            <code>2*i</code> for the parameter of the expression of key
+	 *            <code>i</code>, if it has one, and <code>2*i+1</code> for
+	 *            its value. May be null.
+	 */
+	static String createSQL(String head, String where, String orderBy,
+			List<String> keys, List<Boolean> ascending, boolean[] nulls,
+			List<Integer> parameters) {
+		if (parameters == null) {
+			parameters = new ArrayList<Integer>();
+		}
+		StringBuffer sql = new StringBuffer(head);
+		sql.append(" WHERE ");
+		if (where.length() > 0) {
+			sql.append('(').append(where).append(") AND ");
+		}
+		sql.append('(');
+		boolean first = true;
+		for (int i = 0; i < keys.size(); i++) {
+			// nothing sorts after a NULL of an ascending key
+			if (nulls[i] && ascending.get(i)) {
+				continue;
+			}
+			if (!first) {
+				sql.append(" OR ");
+			}
+			first = false;
+			sql.append('(');
+			for (int j = 0; j < i; j++) {
+				appendKey(sql, keys, j, parameters);
+				if (nulls[j]) {
+					sql.append(" IS NULL AND ");
+				} else {
+					sql.append("=");
+					appendValue(sql, j, parameters);
+					sql.append(" AND ");
+				}
+			}
+			if (nulls[i]) {
+				appendKey(sql, keys, i, parameters);
+				sql.append(" IS NOT NULL");
+			} else if (ascending.get(i) && i < keys.size() - 1) {
+				sql.append('(');
+				appendKey(sql, keys, i, parameters);
+				sql.append('>');
+				appendValue(sql, i, parameters);
+				sql.append(" OR ");
+				appendKey(sql, keys, i, parameters);
+				sql.append(" IS NULL)");
+			} else {
+				appendKey(sql, keys, i, parameters);
+				sql.append(ascending.get(i) ? '>' : '<');
+				appendValue(sql, i, parameters);
+			}
+			sql.append(')');
+		}
+		if (first) {
+			sql.append("false");
+		}
+		sql.append(") ORDER BY ").append(orderBy).append(" limit ?");
+		return sql.toString();
+	}
+
+	private static void appendKey(StringBuffer sql, List<String> keys, int i,
+			List<Integer> parameters) {
+		sql.append(keys.get(i));
+		parameters.add(2 * i);
+	}
+
+	private static void appendValue(StringBuffer sql, int i,
+			List<Integer> parameters) {
+		sql.append('?');
+		parameters.add(2 * i + 1);
+	}
+}
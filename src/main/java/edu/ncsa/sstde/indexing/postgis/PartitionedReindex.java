@@ -0,0 +1,388 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import info.aduna.iteration.CloseableIteration;
+
+import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.Var;
+import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.sail.Sail;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.useekm.indexing.exception.IndexException;
+
+/**
+ * Loads the staging table of a bulk reindex with several threads. The values
+ * of the subject of the first index graph pattern are hashed into
+ * {@link PostgisIndexerSettings#getReindexPartitions()} partitions, and each
+ * partition is evaluated and copied on a worker thread with its own
+ * {@link SailConnection} and its own {@link PostgisIndexer}, and thus its own
+ * database connection.
+ * <p>
+ * The partitions are loaded in rounds of as many partitions as there are
+ * threads. The first pattern is scanned once per round, and every value is
+ * handed to the loader of its partition through a bounded queue. Values that
+ * repeat shortly after each other are handed over once; a value that repeats
+ * later is evaluated again, and its duplicate rows are removed when the
+ * indexes are built.
+ * <p>
+ * A partition is committed as a whole, together with a row in the progress
+ * table <code>&lt;staging&gt;_progress</code>. If the load fails, the staging
+ * and progress tables are kept, and a following reindex with the same number
+ * of partitions and the same index graph skips the partitions that are
+ * already recorded. Both tables are unlogged, so a database crash empties
+ * them together; a resume also checks that the staging table holds the rows
+ * the progress table recorded, and starts over if it does not.
+ *
+ * @author liangyu
+ *
+ */
+class PartitionedReindex {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(PartitionedReindex.class);
+
+	static final String PROGRESS_SUFFIX = "_progress";
+	/** ends the values of a partition */
+	static final Value END = new BNodeImpl("end");
+	private static final int QUEUE_SIZE = 1000;
+
+	private final PostgisIndexer indexer;
+	private final Sail sail;
+	private final String staging;
+	private final String progress;
+	private final int partitions;
+	private final int threads;
+
+	PartitionedReindex(PostgisIndexer indexer, Sail sail, String staging) {
+		this.indexer = indexer;
+		this.sail = sail;
+		this.staging = staging;
+		this.progress = staging + PROGRESS_SUFFIX;
+		PostgisIndexerSettings settings = indexer.getSettings();
+		this.threads = settings.getReindexThreads();
+		this.partitions = Math.max(settings.getReindexPartitions(), threads);
+	}
+
+	/**
+	 * @return the partition of a value of the partition variable. This only
+	 *         depends on the string value, so it is the same for every run.
+	 */
+	static int partitionOf(Value value, int partitions) {
+		return (value.stringValue().hashCode() & Integer.MAX_VALUE)
+				% partitions;
+	}
+
+	/**
+	 * Copies all partitions that are not loaded yet into the staging table.
+	 *
+	 * @return the number of rows in the staging table
+	 */
+	long run() throws SQLException {
+		Set<Integer> done = prepare();
+		List<Integer> todo = new ArrayList<Integer>();
+		for (int i = 0; i < partitions; i++) {
+			if (!done.contains(i)) {
+				todo.add(i);
+			}
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int from = 0; from < todo.size(); from += threads) {
+				load(executor,
+						todo.subList(from, Math.min(from + threads, todo.size())));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IndexException("reindex of " + staging + " interrupted",
+					e);
+		} catch (ExecutionException e) {
+			throw new IndexException("reindex of " + staging + " failed",
+					e.getCause());
+		} catch (SailException e) {
+			throw new IndexException("reindex of " + staging + " failed", e);
+		} catch (QueryEvaluationException e) {
+			throw new IndexException("reindex of " + staging + " failed", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		return countRows();
+	}
+
+	/**
+	 * Loads a round of partitions, each on a thread of its own, from a single
+	 * scan of the first pattern.
+	 */
+	private void load(ExecutorService executor, List<Integer> round)
+			throws InterruptedException, ExecutionException, SailException,
+			QueryEvaluationException {
+		Map<Integer, BlockingQueue<Value>> queues = new LinkedHashMap<Integer, BlockingQueue<Value>>();
+		Map<Integer, Future<Long>> results = new LinkedHashMap<Integer, Future<Long>>();
+		for (int partition : round) {
+			BlockingQueue<Value> queue = new ArrayBlockingQueue<Value>(
+					QUEUE_SIZE);
+			queues.put(partition, queue);
+			results.put(partition,
+					executor.submit(new PartitionLoader(partition, queue)));
+		}
+		Var partitionVar = indexer.getPartitionVar();
+		RecentlySeenFilter<Value> seen = new RecentlySeenFilter<Value>(indexer
+				.getSettings().getDedupCacheSize());
+		SailConnection connection = sail.getConnection();
+		try {
+			CloseableIteration<? extends BindingSet, QueryEvaluationException> subjects = connection
+					.evaluate(indexer.getSettings().getIndexGraph()
+							.getPatterns().iterator().next().clone(), null,
+							new EmptyBindingSet(), false);
+			try {
+				while (subjects.hasNext()) {
+					Value subject = subjects.next().getValue(
+							partitionVar.getName());
+					if (subject == null) {
+						continue;
+					}
+					int partition = partitionOf(subject, partitions);
+					BlockingQueue<Value> queue = queues.get(partition);
+					if (queue != null && seen.add(subject)) {
+						put(queue, subject, results.get(partition));
+					}
+				}
+			} finally {
+				subjects.close();
+			}
+			for (int partition : round) {
+				put(queues.get(partition), END, results.get(partition));
+			}
+		} finally {
+			connection.close();
+		}
+		for (Future<Long> result : results.values()) {
+			result.get();
+		}
+	}
+
+	/**
+	 * Waits until the loader takes the value, or fails with the failure of
+	 * the loader.
+	 */
+	private static void put(BlockingQueue<Value> queue, Value value,
+			Future<Long> loader) throws InterruptedException,
+			ExecutionException {
+		while (!queue.offer(value, 1, TimeUnit.SECONDS)) {
+			if (loader.isDone()) {
+				loader.get();
+				throw new IllegalStateException("partition loader stopped");
+			}
+		}
+	}
+
+	/**
+	 * @return an identifier of the index graph and the columns of the staging
+	 *         table, which a resumed load must have in common with the load it
+	 *         resumes
+	 */
+	private String getDefinition() {
+		try {
+			return UUID.nameUUIDFromBytes(
+					(indexer.getSettings().getIndexGraph().getTupleQuery()
+							.toString() + indexer.getSettings()
+							.getCreateTableSQL(staging, true))
+							.getBytes("UTF-8")).toString();
+		} catch (UnsupportedEncodingException e) {
+			throw new IndexException(e);
+		}
+	}
+
+	/**
+	 * Creates the staging and progress tables, or picks up the ones left by
+	 * an earlier run with the same number of partitions and the same
+	 * definition, if the staging table still holds the rows of the
+	 * partitions that are done.
+	 *
+	 * @return the partitions that are already loaded
+	 */
+	private Set<Integer> prepare() throws SQLException {
+		Connection conn = indexer.getConnection();
+		Statement statement = conn.createStatement();
+		Set<Integer> done = new HashSet<Integer>();
+		String definition = getDefinition();
+		try {
+			if (exists(conn, progress) && hasDefinition(conn)) {
+				ResultSet rs = statement
+						.executeQuery("SELECT partition, partitions, definition FROM "
+								+ progress);
+				boolean compatible = true;
+				while (rs.next()) {
+					done.add(rs.getInt(1));
+					compatible &= rs.getInt(2) == partitions
+							&& definition.equals(rs.getString(3));
+				}
+				rs.close();
+				if (compatible && exists(conn, staging)
+						&& isComplete(statement)) {
+					LOG.info("{}: resuming reindex, {} of {} partitions done",
+							new Object[] { indexer.getName(), done.size(),
+									partitions });
+					return done;
+				}
+				LOG.info("{}: can not resume reindex, starting over",
+						indexer.getName());
+				done.clear();
+			}
+			statement.execute("DROP TABLE IF EXISTS " + progress);
+			statement.execute("DROP TABLE IF EXISTS " + staging);
+			statement.execute(indexer.getSettings().getCreateTableSQL(staging,
+					true));
+			// unlogged like the staging table, so a crash truncates both
+			statement.execute("CREATE UNLOGGED TABLE " + progress
+					+ " (partition integer PRIMARY KEY,"
+					+ " partitions integer NOT NULL, rows bigint NOT NULL,"
+					+ " millis bigint NOT NULL, definition text NOT NULL)");
+			conn.commit();
+			return done;
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * @return false for a progress table of an older version, which can not
+	 *         be resumed
+	 */
+	private boolean hasDefinition(Connection conn) throws SQLException {
+		ResultSet rs = conn.getMetaData().getColumns(null, null, progress,
+				"definition");
+		try {
+			return rs.next();
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * @return true if the staging table holds the rows that the progress
+	 *         table recorded
+	 */
+	private boolean isComplete(Statement statement) throws SQLException {
+		ResultSet rs = statement.executeQuery("SELECT (SELECT count(*) FROM "
+				+ staging + ") = (SELECT coalesce(sum(rows), 0) FROM "
+				+ progress + ")");
+		try {
+			return rs.next() && rs.getBoolean(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	private boolean exists(Connection conn, String table) throws SQLException {
+		ResultSet rs = conn.getMetaData().getTables(null, null, table, null);
+		try {
+			return rs.next();
+		} finally {
+			rs.close();
+		}
+	}
+
+	private long countRows() throws SQLException {
+		Connection conn = indexer.getConnection();
+		Statement statement = conn.createStatement();
+		try {
+			ResultSet rs = statement.executeQuery("SELECT sum(rows) FROM "
+					+ progress);
+			long rows = rs.next() ? rs.getLong(1) : 0;
+			rs.close();
+			conn.commit();
+			return rows;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private class PartitionLoader implements Callable<Long> {
+		private final int partition;
+		private final BlockingQueue<Value> subjects;
+
+		PartitionLoader(int partition, BlockingQueue<Value> subjects) {
+			this.partition = partition;
+			this.subjects = subjects;
+		}
+
+		@Override
+		public Long call() throws Exception {
+			long start = System.currentTimeMillis();
+			PostgisIndexer worker = indexer.getSettings().createIndexer();
+			worker.setName(indexer.getName() + "#" + partition);
+			SailConnection connection = sail.getConnection();
+			try {
+				long rows = worker.copyPartition(connection, staging,
+						subjects);
+				long millis = System.currentTimeMillis() - start;
+				Connection conn = worker.getConnection();
+				PreparedStatement statement = conn.prepareStatement("INSERT INTO "
+						+ progress
+						+ " (partition, partitions, rows, millis, definition)"
+						+ " VALUES (?,?,?,?,?)");
+				try {
+					statement.setInt(1, partition);
+					statement.setInt(2, partitions);
+					statement.setLong(3, rows);
+					statement.setLong(4, millis);
+					statement.setString(5, getDefinition());
+					statement.executeUpdate();
+				} finally {
+					statement.close();
+				}
+				conn.commit();
+				LOG.info("{}: partition {}/{} copied {} rows in {} ms",
+						new Object[] { indexer.getName(), partition,
+								partitions, rows, millis });
+				return rows;
+			} finally {
+				try {
+					connection.close();
+				} finally {
+					worker.close();
+				}
+			}
+		}
+	}
+}
@@ -15,23 +15,28 @@ package edu.ncsa.sstde.indexing.postgis;
 
 import info.aduna.iteration.CloseableIteration;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 
-import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.dbcp.DelegatingConnection;
 import org.apache.commons.lang.Validate;
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
@@ -40,27 +45,42 @@ import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 
 import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.Dataset;
 import org.openrdf.query.QueryEvaluationException;
+import org.openrdf.query.algebra.AggregateOperator;
+import org.openrdf.query.algebra.BindingSetAssignment;
 import org.openrdf.query.algebra.Compare;
+import org.openrdf.query.algebra.Count;
 import org.openrdf.query.algebra.FunctionCall;
+import org.openrdf.query.algebra.Group;
+import org.openrdf.query.algebra.GroupElem;
+import org.openrdf.query.algebra.Max;
+import org.openrdf.query.algebra.Min;
 import org.openrdf.query.algebra.OrderElem;
 import org.openrdf.query.algebra.Regex;
 import org.openrdf.query.algebra.StatementPattern;
 import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.UnaryValueOperator;
 import org.openrdf.query.algebra.ValueConstant;
 import org.openrdf.query.algebra.ValueExpr;
 import org.openrdf.query.algebra.Var;
 import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.helpers.StatementPatternCollector;
 import org.openrdf.query.impl.EmptyBindingSet;
+import org.openrdf.sail.Sail;
 import org.openrdf.sail.SailConnection;
 import org.openrdf.sail.SailException;
 import org.postgis.PGgeometry;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
+import com.useekm.fulltext.FulltextParseException;
 import com.useekm.indexing.algebra.ConstraintOptimizer;
 import com.useekm.indexing.algebra.OrderByOptimizer;
 import com.useekm.indexing.algebra.indexer.AbstractIdxQuery;
@@ -75,12 +95,15 @@ import com.useekm.indexing.internal.Indexer;
 import com.useekm.indexing.postgis.IndexedStatement;
 
 
+import edu.ncsa.sstde.indexing.GraphAnalyzer;
 import edu.ncsa.sstde.indexing.LiteralDef;
+import edu.ncsa.sstde.indexing.SqlRegex;
 import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
 import edu.ncsa.sstde.indexing.GraphAnalyzer.VarFilter;
 import edu.ncsa.sstde.indexing.algebra.IndexerExpr;
 import edu.ncsa.sstde.util.DataTypeURI;
 import edu.ncsa.sstde.util.DateFormatter;
+import edu.ncsa.sstde.util.GeoSPARQLVoc;
 
 /**
  * {@link Indexer} for a Postgres/Postgis backed index.
@@ -123,13 +146,19 @@ public class PostgisIndexer extends AbstractIndexer {
 	private static final String WHERE = " WHERE ";
 	private static final String ORDER_BY = " ORDER BY ";
 	private static final String DESC = " DESC ";
+	private static final String GROUP_BY = " GROUP BY ";
+	private static final String DISTINCT = " DISTINCT";
 	private static final String ASC = " ASC ";
 	private static final String FROM = " FROM ";
 	private static final String ST_PREFIX = "ST_";
+	private static final String STAGING_SUFFIX = "_reindex";
+	private static final String UNIQUE_VIOLATION = "23505";
+	private static final long REINDEX_LOG_INTERVAL = 100000;
 
-	private MessageDigest DIGEST;
+	private final GraphIdentity identity = new GraphIdentity();
 	private PreparedStatement insertStatement;
 	private PreparedStatement removeStatement;
+	private PreparedStatement collisionStatement;
 	private String[] varNames = null;
 
 	private final PostgisIndexerSettings settings;
@@ -143,11 +172,6 @@ public class PostgisIndexer extends AbstractIndexer {
 
 	protected PostgisIndexer(PostgisIndexerSettings settings) {
 		this.settings = settings;
-		try {
-			DIGEST = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
 	}
 
 	/**
@@ -188,6 +212,33 @@ public class PostgisIndexer extends AbstractIndexer {
 		return SQLTypes;
 	}
 
+	private int[] termColumns = null;
+
+	/**
+	 * @return the columns of the rows of {@link #createInsertRow(BindingSet)}
+	 *         that hold a term for the term dictionary
+	 */
+	private int[] getTermColumns() {
+		if (this.termColumns == null) {
+			int[] types = getSQLTypes();
+			int count = 0;
+			for (int type : types) {
+				if (type == Types.BIGINT) {
+					count++;
+				}
+			}
+			int[] columns = new int[count];
+			count = 0;
+			for (int i = 0; i < types.length; i++) {
+				if (types[i] == Types.BIGINT) {
+					columns[count++] = i + 1;
+				}
+			}
+			this.termColumns = columns;
+		}
+		return termColumns;
+	}
+
 	//
 	// private boolean addIndex(SailConnection connection, Resource subj, URI
 	// pred,
@@ -443,11 +494,244 @@ public class PostgisIndexer extends AbstractIndexer {
 
 	/**
 	 * @return An iterator over the result bindings of the provided expression.
+	 *         The variables of the expression that are bound in
+	 *         <code>sparqlBindings</code> are sent to the database as
+	 *         conditions.
 	 */
 	@Override
 	public PostgisIteration iterator(ValueFactory valueFactory,
 			IndexerExpr expr, BindingSet sparqlBindings)
 			throws QueryEvaluationException {
+		return iterator(valueFactory, expr,
+				Collections.singletonList(sparqlBindings), sparqlBindings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A variable that is bound in every binding set of the block becomes a
+	 * condition <code>column = ANY(?)</code> on the array of its values.
+	 */
+	@Override
+	public PostgisIteration iterator(ValueFactory valueFactory,
+			IndexerExpr expr, List<BindingSet> block)
+			throws QueryEvaluationException {
+		return iterator(valueFactory, expr, block, null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The estimate is the number of rows the PostgreSQL planner expects for
+	 * the query of the expression, see {@link CardinalityEstimator}. There is
+	 * no estimate when {@link PostgisIndexerSettings#getEstimateTTL()} is 0.
+	 */
+	@Override
+	public double estimateCardinality(IndexerExpr expr) {
+		if (settings.getEstimateTTL() <= 0) {
+			return -1;
+		}
+		SqlQueryBuilder builder = new SqlQueryBuilder();
+		try {
+			asSql(expr.getGraph(), builder,
+					Collections.<BindingSet> emptyList());
+		} catch (SQLException e) {
+			throw new IndexException(e);
+		}
+		double rows = settings.getCardinalityEstimator().estimate(
+				getConnection(), builder.getSQL(), builder.inputBindings);
+		if (rows >= 0 && builder.limit > 0) {
+			rows = Math.min(rows, builder.limit);
+		}
+		return rows;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The estimate is the number of rows the PostgreSQL planner expects for
+	 * the query of the graph. It is read through the connection of this
+	 * indexer, the session that evaluates the query, so the matching does not
+	 * wait for a second connection from the pool.
+	 */
+	@Override
+	public double estimateCardinality(MatchedIndexedGraph graph) {
+		return estimate(graph, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The estimate is the total cost of the plan the PostgreSQL planner
+	 * chooses for the query of the graph, which accounts for the size of the
+	 * table, the indexes on the columns and the selectivity of the conditions.
+	 */
+	@Override
+	public double estimateCost(MatchedIndexedGraph graph) {
+		return estimate(graph, true);
+	}
+
+	/**
+	 * @return the cost or the rows of the query of a graph, -1 when
+	 *         {@link PostgisIndexerSettings#getEstimateTTL()} is 0
+	 */
+	private double estimate(MatchedIndexedGraph graph, boolean cost) {
+		if (settings.getEstimateTTL() <= 0) {
+			return -1;
+		}
+		SqlQueryBuilder builder = new SqlQueryBuilder();
+		try {
+			asSql(graph, builder, Collections.<BindingSet> emptyList());
+		} catch (SQLException e) {
+			throw new IndexException(e);
+		}
+		CardinalityEstimator estimator = settings.getCardinalityEstimator();
+		return cost ? estimator.estimateCost(getConnection(), builder.getSQL(),
+				builder.inputBindings) : estimator.estimate(getConnection(),
+				builder.getSQL(), builder.inputBindings);
+	}
+
+	/**
+	 * @return the query of a graph for a block of bindings, the parameters of
+	 *         the query are added to <code>parameters</code>
+	 */
+	String createSQL(MatchedIndexedGraph graph, List<BindingSet> block,
+			List<Binding> parameters) throws SQLException {
+		SqlQueryBuilder builder = new SqlQueryBuilder();
+		asSql(graph, builder, block);
+		parameters.addAll(builder.inputBindings);
+		return builder.getSQL();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A graph can be fused when its indexer is a {@link PostgisIndexer} with
+	 * its table in the same database, it has no order, and it shares at least
+	 * one variable with the graph or the graphs fused with it already, on
+	 * columns of the same type other than geometry.
+	 */
+	@Override
+	public boolean canFuse(MatchedIndexedGraph graph, MatchedIndexedGraph other) {
+		if (!(other.getIndexer() instanceof PostgisIndexer)
+				|| !other.getOrders().isEmpty()) {
+			return false;
+		}
+		PostgisIndexerSettings otherSettings = getSettings(other);
+		if (!settings.sharesDataSource(otherSettings)) {
+			return false;
+		}
+		List<MatchedIndexedGraph> graphs = getGraphs(graph);
+		boolean shared = false;
+		for (Map.Entry<String, String> entry : other.getVerseNameMappings()
+				.entrySet()) {
+			String type = otherSettings.getVarType(entry.getValue());
+			for (MatchedIndexedGraph g : graphs) {
+				String column = g.getVerseNameMappings().get(entry.getKey());
+				if (column != null) {
+					String gType = getSettings(g).getVarType(column);
+					if (type == null || "geometry".equals(type)
+							|| !type.equals(gType)) {
+						return false;
+					}
+					shared = true;
+				}
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The group becomes a GROUP BY on the columns of its group variables,
+	 * which can not be geometries. Its aggregates can be COUNT of the rows or
+	 * of a column, and MIN and MAX of a numeric or temporal column, which
+	 * PostgreSQL orders the same way as SPARQL. An order of the graph must be
+	 * on a group variable.
+	 */
+	@Override
+	public boolean canGroup(MatchedIndexedGraph graph, Group group) {
+		for (String name : group.getGroupBindingNames()) {
+			String type = getColumnType(graph, name);
+			if (type == null || "geometry".equals(type)) {
+				return false;
+			}
+		}
+		for (OrderElem order : graph.getOrders()) {
+			if (!(order.getExpr() instanceof Var)
+					|| !group.getGroupBindingNames().contains(
+							((Var) order.getExpr()).getName())) {
+				return false;
+			}
+		}
+		for (GroupElem elem : group.getGroupElements()) {
+			AggregateOperator operator = elem.getOperator();
+			ValueExpr arg = ((UnaryValueOperator) operator).getArg();
+			if (arg != null && !(arg instanceof Var)) {
+				return false;
+			}
+			if (operator instanceof Count) {
+				if (arg == null ? operator.isDistinct() : getColumnType(graph,
+						((Var) arg).getName()) == null) {
+					return false;
+				}
+			} else if (operator instanceof Min || operator instanceof Max) {
+				LiteralDef literalDef = arg == null ? null : getLiteralDef(
+						graph, ((Var) arg).getName());
+				if (literalDef == null
+						|| !DataTypeURI.isNumeric(literalDef.getType())) {
+					return false;
+				}
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the type of the column of a query variable in a graph or its
+	 *         fused graphs, null if it is not mapped
+	 */
+	private String getColumnType(MatchedIndexedGraph graph, String varName) {
+		for (MatchedIndexedGraph g : getGraphs(graph)) {
+			String column = g.getVerseNameMappings().get(varName);
+			if (column != null) {
+				return getSettings(g).getVarType(column);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the literal definition of the column of a query variable in a
+	 *         graph or its fused graphs, null if it is not a literal column
+	 */
+	private LiteralDef getLiteralDef(MatchedIndexedGraph graph, String varName) {
+		for (MatchedIndexedGraph g : getGraphs(graph)) {
+			String column = g.getVerseNameMappings().get(varName);
+			if (column != null) {
+				return getSettings(g).getIndexGraph().getLiteralDefMap()
+						.get(column);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a graph followed by its fused graphs
+	 */
+	private static List<MatchedIndexedGraph> getGraphs(MatchedIndexedGraph graph) {
+		List<MatchedIndexedGraph> graphs = new ArrayList<MatchedIndexedGraph>();
+		graphs.add(graph);
+		graphs.addAll(graph.getFusedGraphs());
+		return graphs;
+	}
+
+	private PostgisIteration iterator(ValueFactory valueFactory,
+			IndexerExpr expr, List<BindingSet> block, BindingSet parent)
+			throws QueryEvaluationException {
 
 		// System.out.println("till postgisindexer, time = " +
 		// (System.currentTimeMillis() - Timer.time));
@@ -459,19 +743,21 @@ public class PostgisIndexer extends AbstractIndexer {
 			// flushInternal(); // make sure the database is synchronized before
 			// we
 			// start a query
-			asSql(expr.getGraph(), builder, sparqlBindings);
+			asSql(expr.getGraph(), builder, block);
 			// List<ResultBinding> resultBindings = new
 			// ArrayList<ResultBinding>(
 			// expr.getBindingNames().size());
 			ps = createSqlQuery(builder);
 
-			if (builder.limit > 0) {
-				result = new PostgisIteration(valueFactory, ps, expr.getGraph()
-						.getNameMappings(), settings, (int) builder.limit,
-						builder.inputBindings.size() + 1);
+			if (builder.paged) {
+				result = new PostgisIteration(valueFactory, ps,
+						builder.nameMapping, builder.literalDefs,
+						settings.getTermCache(), parent, builder.resultColumns,
+						(int) builder.limit, createPaging(builder));
 			} else {
-				result = new PostgisIteration(valueFactory, ps, expr.getGraph()
-						.getNameMappings(), settings);
+				result = new PostgisIteration(valueFactory, ps,
+						builder.nameMapping, builder.literalDefs,
+						settings.getTermCache(), parent);
 
 			}
 			// result = new PostgisIteration(valueFactory, ps, resultBindings,
@@ -486,91 +772,155 @@ public class PostgisIndexer extends AbstractIndexer {
 		}
 	}
 
+	/**
+	 * Composes the query of a graph and its fused graphs. Every graph reads
+	 * its own index table, <code>t0</code> for the graph, <code>t1</code> and
+	 * on for the fused graphs, and the tables are joined on the columns of
+	 * their shared variables. The columns of a fused graph are labeled with
+	 * their table alias, so they do not clash with the columns of the graph.
+	 */
 	private void asSql(MatchedIndexedGraph graph, SqlQueryBuilder builder,
-			BindingSet sparqlBindings) {
-		StringBuffer from = new StringBuffer(SELECT);
+			List<BindingSet> block) throws SQLException {
+		List<MatchedIndexedGraph> graphs = getGraphs(graph);
+		// a grouped graph only selects the group variables
+		Group group = graph.getGroup();
 
-		Map<String, String> verseNameMappings = graph.getVerseNameMappings();
-		for (String varName : graph.getUsedVarNames()) {
-			String name = verseNameMappings.get(varName);
-			if (name != null) {
-				from.append(' ').append(name).append(',');
-			}
-
-		}
-		if (from.length() == SELECT.length()) {
-			for (String varName : verseNameMappings.values()) {
-				from.append(' ').append(varName).append(',');
-			}
+		StringBuffer from = new StringBuffer(SELECT);
+		if (graph.isDistinct()) {
+			from.append(DISTINCT);
 		}
-		// for (String column : graph.getNameMappings().keySet()) {
-		// from.append(' ').append(column).append(',');
-		// }
-
-		Map<String, String> verseMapping = verseNameMappings;
-		from.deleteCharAt(from.length() - 1);
-
-		from.append(FROM);
-		from.append(this.getName());
-
+		List<String> columns = new ArrayList<String>();
+		StringBuffer tables = new StringBuffer();
 		// compose the where clause
 		StringBuffer where = new StringBuffer();
+		// the column of every variable selected so far, to join on
+		Map<String, String> varColumns = new HashMap<String, String>();
+
+		for (int i = 0; i < graphs.size(); i++) {
+			MatchedIndexedGraph g = graphs.get(i);
+			String alias = "t" + i;
+			PostgisIndexerSettings gSettings = getSettings(g);
+			tables.append(g.getIndexer().getName()).append(' ').append(alias)
+					.append(',');
+
+			// the query variables mapped to the qualified columns
+			Map<String, String> verseMapping = new HashMap<String, String>();
+			for (Map.Entry<String, String> entry : g.getVerseNameMappings()
+					.entrySet()) {
+				String column = alias + '.' + entry.getValue();
+				verseMapping.put(entry.getKey(), column);
+				String joined = varColumns.get(entry.getKey());
+				if (joined != null) {
+					where.append(joined).append(EQ).append(column).append(AND);
+				}
+			}
 
-		for (FunctionCall call : graph.getFunctionCalls()) {
-			URIImpl url = new URIImpl(call.getURI());
-			where.append(ST_PREFIX).append(url.getLocalName()).append('(');
-
-			for (int i = 0; i < call.getArgs().size(); i++) {
-				ValueExpr param = call.getArgs().get(i);
-				if (param instanceof Var) {
-					where.append(verseMapping.get(((Var) param).getName()))
-							.append(',');
-				} else if (param instanceof ValueConstant) {
-					where.append('?').append(',');
-					builder.inputBindings.add(new Binding(Types.OTHER,
-							parseLiteral((Literal) ((ValueConstant) param)
-									.getValue())));
+			int selected = columns.size();
+			Collection<String> usedVarNames = group == null ? g
+					.getUsedVarNames() : group.getGroupBindingNames();
+			if (usedVarNames != null) {
+				for (String varName : usedVarNames) {
+					addColumn(from, columns, builder, g, gSettings, alias,
+							varName, varColumns);
+				}
+			}
+			if (i == 0 && columns.size() == selected && group == null) {
+				for (String varName : verseMapping.keySet()) {
+					addColumn(from, columns, builder, g, gSettings, alias,
+							varName, varColumns);
+				}
+			}
+			for (Map.Entry<String, String> entry : verseMapping.entrySet()) {
+				if (!varColumns.containsKey(entry.getKey())) {
+					varColumns.put(entry.getKey(), entry.getValue());
 				}
 			}
-			where.deleteCharAt(where.length() - 1).append(")=true").append(AND);
-		}
 
-		for (Compare compare : graph.getCompares()) {
-			addCompareWhere(where, compare, builder, verseMapping);
-			where.append(AND);
-		}
+			for (FunctionCall call : g.getFunctionCalls()) {
+				if (GeoSPARQLVoc.isTextSearchPred(call.getURI())) {
+					addTextSearchWhere(where, call, gSettings, builder,
+							verseMapping);
+					where.append(AND);
+					continue;
+				}
+				URIImpl url = new URIImpl(call.getURI());
+				where.append(ST_PREFIX).append(url.getLocalName()).append('(');
+
+				for (int j = 0; j < call.getArgs().size(); j++) {
+					ValueExpr param = call.getArgs().get(j);
+					if (param instanceof Var) {
+						where.append(verseMapping.get(((Var) param).getName()))
+								.append(',');
+					} else if (param instanceof ValueConstant) {
+						where.append('?').append(',');
+						builder.inputBindings.add(new Binding(Types.OTHER,
+								parseLiteral((Literal) ((ValueConstant) param)
+										.getValue())));
+					}
+				}
+				where.deleteCharAt(where.length() - 1).append(")=true")
+						.append(AND);
+			}
 
-		for (VarFilter filter : graph.getVarFilters()) {
-			where.append(filter.getVarName()).append("=?").append(AND);
-			builder.inputBindings.add(new Binding(Types.VARCHAR, filter
-					.getValue()));
-			// System.out.println(filter);
-		}
+			for (Compare compare : g.getCompares()) {
+				addCompareWhere(where, compare, builder, verseMapping);
+				where.append(AND);
+			}
 
-		for (@SuppressWarnings("unused") Regex regex : graph.getRegexs()) {
+			for (VarFilter filter : g.getVarFilters()) {
+				where.append(alias).append('.').append(filter.getVarName())
+						.append("=?").append(AND);
+				if (gSettings.isTermColumn(filter.getVarName())) {
+					builder.inputBindings.add(new Binding(Types.BIGINT,
+							getTermId(gSettings, filter.getValue())));
+				} else {
+					builder.inputBindings.add(new Binding(Types.VARCHAR,
+							filter.getValue()));
+				}
+				// System.out.println(filter);
+			}
+
+			addBindingWhere(where, g, gSettings, alias, block, group, builder);
 
+			for (Regex regex : g.getRegexs()) {
+				addRegexWhere(where, regex, builder, verseMapping);
+				where.append(AND);
+			}
 		}
 
 		if (where.length() > 0) {
 			where.delete(where.length() - 5, where.length() - 1);
 		}
 
-		// compose the order by clause
+		StringBuffer groupBy = new StringBuffer();
+		if (group != null) {
+			addAggregates(from, columns, builder, graph, varColumns);
+			for (String name : group.getGroupBindingNames()) {
+				groupBy.append(varColumns.get(name)).append(',');
+			}
+			if (groupBy.length() > 0) {
+				groupBy.deleteCharAt(groupBy.length() - 1);
+			}
+		}
+
+		// compose the order by clause, the fused graphs have no order
 		StringBuffer orderby = new StringBuffer();
 		if (graph.getOrders() != null && graph.getOrders() instanceof List) {
 			List<OrderElem> orders = (List<OrderElem>) graph.getOrders();
+			Map<String, String> verseMapping = graph.getVerseNameMappings();
 			Map<String, LiteralDef> literalDefMap = this.getSettings().getIndexGraph().getLiteralDefMap();
-			for (int i = graph.getOrders().size() - 1; i > -1; i--) {
+			for (int i = 0; i < orders.size(); i++) {
 				OrderElem order = orders.get(i);
 				if (order.getExpr() instanceof Var) {
 					String colName = verseMapping.get(((Var) order.getExpr())
 							.getName());
 					if (literalDefMap.get(colName) != null) {
-						orderby.append(colName);
-						orderby.append(order.isAscending() ? ASC : DESC);
-						orderby.append(',');
-
+						builder.keys.add("t0." + colName);
+						builder.keyBindings.add(null);
+						builder.ascending.add(order.isAscending());
 					}
+				} else {
+					addDistanceKey(order, verseMapping, builder);
 				}
 			}
 		}
@@ -585,20 +935,331 @@ public class PostgisIndexer extends AbstractIndexer {
 //
 //		}
 
+		// a query with a limit is read in pages, which needs a total order,
+		// unless the index gives the distinct results of the query
+		if (graph.getLimit() > 0 && !graph.isDistinct()) {
+			for (int i = 0; i < graphs.size(); i++) {
+				String key = "t" + i + '.' + PostgisIndexerSettings.OID;
+				builder.keys.add(key);
+				builder.keyBindings.add(null);
+				builder.ascending.add(true);
+			}
+		}
+
+		// the key columns that are not bound to a result come last, a
+		// distance is selected with its parameter ahead of the where clause,
+		// and ordered by its column number so it is bound once
+		builder.resultColumns = columns.size();
+		int headBindings = 0;
+		for (int i = 0; i < builder.keys.size(); i++) {
+			String key = builder.keys.get(i);
+			Binding binding = builder.keyBindings.get(i);
+			if (binding != null || !columns.contains(key)) {
+				from.append(' ').append(key).append(',');
+				columns.add(key);
+			}
+			if (binding != null) {
+				builder.inputBindings.add(headBindings++, binding);
+				orderby.append(columns.size());
+			} else {
+				orderby.append(key);
+			}
+			orderby.append(builder.ascending.get(i) ? ASC : DESC).append(',');
+			builder.keyColumns.add(binding != null ? columns.size() : columns
+					.indexOf(key) + 1);
+		}
 		if (orderby.length() > 0) {
 			orderby.deleteCharAt(orderby.length() - 1);
 		}
+		from.deleteCharAt(from.length() - 1);
+		tables.deleteCharAt(tables.length() - 1);
+
+		from.append(FROM);
+		from.append(tables);
+		builder.head = from.toString();
+		builder.whereClause = where.toString().trim();
+		builder.orderByClause = orderby.toString();
 
 		// combine all the query segments
 		if (where.length() > 0) {
 			from.append(WHERE).append(where);
 		}
+		if (groupBy.length() > 0) {
+			from.append(GROUP_BY).append(groupBy);
+		}
 		if (orderby.length() > 0) {
 			from.append(ORDER_BY).append(orderby);
 		}
 
 		builder.setSQL(from.toString());
 		builder.setLimit(graph.getLimit());
+		builder.offset = graph.getOffset();
+		builder.paged = graph.getLimit() > 0 && !graph.isDistinct();
+	}
+
+	/**
+	 * Orders by the distance of a geometry column to a constant geometry with
+	 * the <code>&lt;-&gt;</code> operator, which the GiST index of the column
+	 * answers nearest first, so with a limit only the nearest rows are read.
+	 * The unit of the distance function does not change the order, it is
+	 * left out.
+	 */
+	private void addDistanceKey(OrderElem order,
+			Map<String, String> verseMapping, SqlQueryBuilder builder) {
+		Var var = GraphAnalyzer.getDistanceVar(order.getExpr());
+		if (var == null) {
+			return;
+		}
+		String colName = verseMapping.get(var.getName());
+		List<ValueExpr> args = ((FunctionCall) order.getExpr()).getArgs();
+		ValueExpr other = args.get(args.get(0) == var ? 1 : 0);
+		Value value = other instanceof ValueConstant ? ((ValueConstant) other)
+				.getValue() : ((Var) other).getValue();
+		if (colName == null || !(value instanceof Literal)) {
+			return;
+		}
+		builder.keys.add("(t0." + colName + " <-> ?)");
+		builder.keyBindings.add(new Binding(Types.OTHER,
+				parseLiteral((Literal) value)));
+		builder.ascending.add(order.isAscending());
+	}
+
+	/**
+	 * Selects the column of a query variable, unless it is not mapped by the
+	 * graph or selected already. The column of the first table keeps its name,
+	 * the column of a fused table is labeled <code>alias_column</code>.
+	 */
+	private void addColumn(StringBuffer from, List<String> columns,
+			SqlQueryBuilder builder, MatchedIndexedGraph graph,
+			PostgisIndexerSettings gSettings, String alias, String varName,
+			Map<String, String> varColumns) {
+		String name = graph.getVerseNameMappings().get(varName);
+		if (name == null || builder.nameMapping.containsValue(varName)) {
+			return;
+		}
+		String column = alias + '.' + name;
+		String label = name;
+		if (!"t0".equals(alias)) {
+			label = alias + '_' + name;
+		}
+		if (gSettings.isTermColumn(name)) {
+			// the URI is decoded by the query, not row by row afterwards
+			column = "(SELECT term FROM " + PostgisIndexerSettings.TERM_TABLE
+					+ " WHERE id=" + column + ") AS " + label;
+		} else if (!label.equals(name)) {
+			column += " AS " + label;
+		}
+		from.append(' ').append(column).append(',');
+		columns.add(column);
+		builder.nameMapping.put(label, varName);
+		LiteralDef literalDef = gSettings.getIndexGraph().getLiteralDefMap()
+				.get(name);
+		if (literalDef != null) {
+			builder.literalDefs.put(label, literalDef);
+		}
+		varColumns.put(varName, alias + '.' + name);
+	}
+
+	/**
+	 * Selects the aggregates of the group of a graph, labeled
+	 * <code>_agg0</code> and on. A count is an <code>xsd:integer</code>, a
+	 * minimum or maximum has the type of its column.
+	 */
+	private void addAggregates(StringBuffer from, List<String> columns,
+			SqlQueryBuilder builder, MatchedIndexedGraph graph,
+			Map<String, String> varColumns) {
+		int i = 0;
+		for (GroupElem elem : graph.getGroup().getGroupElements()) {
+			AggregateOperator operator = elem.getOperator();
+			Var arg = (Var) ((UnaryValueOperator) operator).getArg();
+			String label = "_agg" + i++;
+			LiteralDef literalDef;
+			if (operator instanceof Count) {
+				from.append(" count(");
+				literalDef = new LiteralDef(elem.getName(),
+						XMLSchema.INTEGER.stringValue());
+			} else {
+				from.append(operator instanceof Min ? " min(" : " max(");
+				literalDef = getLiteralDef(graph, arg.getName());
+			}
+			if (arg == null) {
+				from.append('*');
+			} else {
+				if (operator.isDistinct()) {
+					from.append("DISTINCT ");
+				}
+				from.append(varColumns.get(arg.getName()));
+			}
+			from.append(") AS ").append(label).append(',');
+			columns.add(label);
+			builder.nameMapping.put(label, elem.getName());
+			builder.literalDefs.put(label, literalDef);
+		}
+	}
+
+	/**
+	 * @return the settings of the indexer of a graph
+	 */
+	private PostgisIndexerSettings getSettings(MatchedIndexedGraph graph) {
+		return graph.getIndexer() instanceof PostgisIndexer ? ((PostgisIndexer) graph
+				.getIndexer()).getSettings() : settings;
+	}
+
+	/**
+	 * Adds a condition for every variable that is bound in all the binding
+	 * sets of a block: <code>column=?</code> when they agree on one value,
+	 * <code>column=ANY(?)</code> on the array of the values otherwise. The
+	 * values are sent as text and cast to the type of the column, or as the
+	 * ids of the URIs for a column of the term dictionary. Geometry columns
+	 * and values that do not fit their column are left to the join. When the
+	 * results are grouped only the group variables are restricted, the other
+	 * variables are not results.
+	 */
+	private void addBindingWhere(StringBuffer where,
+			MatchedIndexedGraph graph, PostgisIndexerSettings gSettings,
+			String alias, List<BindingSet> block, Group group,
+			SqlQueryBuilder builder) throws SQLException {
+		for (Map.Entry<String, String> entry : graph.getVerseNameMappings()
+				.entrySet()) {
+			if (group != null
+					&& !group.getGroupBindingNames().contains(entry.getKey())) {
+				continue;
+			}
+			String type = gSettings.getVarType(entry.getValue());
+			if (type == null || "geometry".equals(type)) {
+				continue;
+			}
+			String column = alias + '.' + entry.getValue();
+			Set<String> values = new LinkedHashSet<String>();
+			for (BindingSet bindings : block) {
+				String value = getBindingValue(
+						bindings.getValue(entry.getKey()), entry.getValue(),
+						gSettings);
+				if (value == null) {
+					values = null;
+					break;
+				}
+				values.add(value);
+			}
+			if (values == null || values.isEmpty()) {
+				continue;
+			}
+			if (gSettings.isTermColumn(entry.getValue())) {
+				addTermWhere(where, column, values, gSettings, builder);
+			} else if (values.size() == 1) {
+				where.append(column).append("=CAST(? AS ").append(type)
+						.append(')').append(AND);
+				builder.inputBindings.add(new Binding(Types.VARCHAR, values
+						.iterator().next()));
+			} else {
+				where.append(column).append("=ANY(CAST(? AS ").append(type)
+						.append("[]))").append(AND);
+				builder.inputBindings.add(new Binding(Types.ARRAY,
+						getConnection().createArrayOf("text",
+								values.toArray())));
+			}
+		}
+	}
+
+	/**
+	 * Adds <code>column=?</code> or <code>column=ANY(?)</code> on the ids of
+	 * URIs. A URI that is not in the dictionary is not in any row, it has no
+	 * id in the array, or {@link TermDictionary#NO_ID} when it is the only one.
+	 */
+	private void addTermWhere(StringBuffer where, String column,
+			Set<String> values, PostgisIndexerSettings gSettings,
+			SqlQueryBuilder builder) throws SQLException {
+		if (values.size() == 1) {
+			where.append(column).append("=?").append(AND);
+			builder.inputBindings.add(new Binding(Types.BIGINT, getTermId(
+					gSettings, values.iterator().next())));
+		} else {
+			where.append(column).append("=ANY(?)").append(AND);
+			builder.inputBindings.add(new Binding(Types.ARRAY,
+					getConnection().createArrayOf("int8",
+							gSettings.getTermDictionary().findIds(values)
+									.values().toArray())));
+		}
+	}
+
+	/**
+	 * @return the id of a URI in the dictionary of an index table, or
+	 *         {@link TermDictionary#NO_ID} if it is not in the dictionary
+	 */
+	private static long getTermId(PostgisIndexerSettings gSettings, String uri)
+			throws SQLException {
+		Long id = gSettings.getTermDictionary()
+				.findIds(Collections.singleton(uri)).get(uri);
+		return id == null ? TermDictionary.NO_ID : id;
+	}
+
+	/**
+	 * @return the text of a bound value as it is stored in a column, or null
+	 *         if the value can not be in the column
+	 */
+	private String getBindingValue(Value value, String column,
+			PostgisIndexerSettings gSettings) {
+		if (value == null) {
+			return null;
+		}
+		LiteralDef literalDef = gSettings.getIndexGraph().getLiteralDefMap()
+				.get(column);
+		if (literalDef == null) {
+			return value instanceof Literal ? null : value.stringValue();
+		}
+		if (!(value instanceof Literal)
+				|| ((Literal) value).getDatatype() == null
+				|| !literalDef.getType().equals(
+						((Literal) value).getDatatype().stringValue())) {
+			return null;
+		}
+		Object data = parseLiteral((Literal) value);
+		return data == null ? null : data.toString();
+	}
+
+	/**
+	 * Adds <code>column ~ ?</code>, or <code>column ~* ?</code> for the "i"
+	 * flag, which can use the trigram index of the column. The pattern is
+	 * translated by {@link SqlRegex}, which accepted it in
+	 * {@link GraphAnalyzer}.
+	 */
+	private void addRegexWhere(StringBuffer where, Regex regex,
+			SqlQueryBuilder builder, Map<String, String> verseMapping) {
+		String flags = regex.getFlagsArg() == null ? null : GraphAnalyzer
+				.getConstant(regex.getFlagsArg());
+		String pattern = SqlRegex.translate(
+				GraphAnalyzer.getConstant(regex.getPatternArg()), flags);
+		if (pattern == null) {
+			throw new IndexException("unsupported regular expression "
+					+ regex);
+		}
+		where.append(verseMapping.get(((Var) regex.getArg()).getName()))
+				.append(SqlRegex.isCaseInsensitive(flags) ? " ~* ?" : " ~ ?");
+		builder.inputBindings.add(new Binding(Types.VARCHAR, pattern));
+	}
+
+	/**
+	 * Adds
+	 * <code>to_tsvector(config, column) @@ to_tsquery(config, ?)</code>,
+	 * which can use the full text index of the column, with the query
+	 * compiled by {@link TsQuery}. The configuration is
+	 * {@link PostgisIndexerSettings#getDefaultSearchConfig()}, written as a
+	 * constant so the expression is the one of the index.
+	 */
+	private void addTextSearchWhere(StringBuffer where, FunctionCall call,
+			PostgisIndexerSettings gSettings, SqlQueryBuilder builder,
+			Map<String, String> verseMapping) {
+		String config = gSettings.getTextSearchConfig();
+		where.append("to_tsvector(").append(config).append(',')
+				.append(verseMapping.get(((Var) call.getArgs().get(0))
+						.getName())).append(") @@ to_tsquery(").append(config)
+				.append(",?)");
+		try {
+			builder.inputBindings.add(new Binding(Types.VARCHAR, TsQuery
+					.compile(GraphAnalyzer.getConstant(call.getArgs().get(1)))));
+		} catch (FulltextParseException e) {
+			throw new IndexException(e);
+		}
 	}
 
 	private void addCompareWhere(StringBuffer where, Compare compare,
@@ -669,6 +1330,12 @@ public class PostgisIndexer extends AbstractIndexer {
 		return null;
 	}
 
+	/**
+	 * Prepares a query that streams its results: a forward-only, read-only
+	 * cursor that reads {@link PostgisIndexerSettings#getFetchSize()} rows at
+	 * a time. The PostgreSQL driver only uses a cursor when the connection is
+	 * not in autocommit mode, otherwise it reads the whole result at once.
+	 */
 	private PreparedStatement createSqlQuery(SqlQueryBuilder builder)
 			throws SQLException {
 		String sql = builder.getSQL();
@@ -676,20 +1343,30 @@ public class PostgisIndexer extends AbstractIndexer {
 		if (builder.limit > 0) {
 			sql += " limit ?";
 		}
-		PreparedStatement ps = getConnection().prepareStatement(sql,
-				ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+		if (builder.offset > 0) {
+			sql += " offset ?";
+		}
+		Connection connection = getConnection();
+		if (connection.getAutoCommit()) {
+			connection.setAutoCommit(false);
+		}
+		PreparedStatement ps = connection.prepareStatement(sql,
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 		try {
 
 			int bindingIdx = 1;
 
 			for (Binding binding : builder.inputBindings)
-				ps.setObject(bindingIdx++, binding.value, binding.type);
+				binding.setParameter(ps, bindingIdx++);
+			if (builder.limit > 0) {
+				ps.setInt(bindingIdx++, (int) Math.min(builder.limit + 1,
+						Integer.MAX_VALUE));
+			}
+			if (builder.offset > 0) {
+				ps.setLong(bindingIdx, builder.offset);
+			}
+			ps.setFetchSize(getFetchSize(builder.limit));
 			success = true;
-
-			// if (builder.limit > 0) {
-
-			// ps.setFetchSize((int)builder.limit + 1);
-			// }
 			return ps;
 		} finally {
 			if (!success)
@@ -697,6 +1374,26 @@ public class PostgisIndexer extends AbstractIndexer {
 		}
 	}
 
+	private KeysetPaging createPaging(SqlQueryBuilder builder) {
+		int[] keyColumns = new int[builder.keyColumns.size()];
+		for (int i = 0; i < keyColumns.length; i++) {
+			keyColumns[i] = builder.keyColumns.get(i);
+		}
+		return new KeysetPaging(getConnection(), builder.head,
+				builder.whereClause, builder.orderByClause, builder.keys,
+				builder.ascending, builder.inputBindings, builder.keyBindings,
+				keyColumns, settings.getFetchSize());
+	}
+
+	private int getFetchSize(long limit) {
+		int fetchSize = Math.max(settings.getFetchSize(), 0);
+		if (limit > 0 && limit < Integer.MAX_VALUE
+				&& (fetchSize == 0 || limit + 1 < fetchSize)) {
+			return (int) limit + 1;
+		}
+		return fetchSize;
+	}
+
 	private void asSql(IdxQuery idxQuery, SqlQueryBuilder builder,
 			BindingSet sparqlBindings) throws QueryEvaluationException,
 			SQLException {
@@ -767,6 +1464,15 @@ public class PostgisIndexer extends AbstractIndexer {
 		public Object getValue() {
 			return value;
 		}
+
+		void setParameter(PreparedStatement ps, int index)
+				throws SQLException {
+			if (type == Types.ARRAY) {
+				ps.setArray(index, (java.sql.Array) value);
+			} else {
+				ps.setObject(index, value, type);
+			}
+		}
 	}
 
 	private static final class SqlQueryBuilder {
@@ -776,6 +1482,24 @@ public class PostgisIndexer extends AbstractIndexer {
 		private final List<String> joins = new ArrayList<String>();
 		private String sql = null;
 		private long limit = -1;
+		/** the rows the query skips, only the first page has an offset */
+		private long offset = 0;
+		/** true if the rows after the limit are read in pages */
+		private boolean paged = false;
+		/** the parts of the query, for the pages after the first */
+		private String head = null;
+		private String whereClause = null;
+		private String orderByClause = null;
+		private final List<String> keys = new ArrayList<String>();
+		/** the parameter of every key, null for a plain column */
+		private final List<Binding> keyBindings = new ArrayList<Binding>();
+		private final List<Boolean> ascending = new ArrayList<Boolean>();
+		private final List<Integer> keyColumns = new ArrayList<Integer>();
+		private int resultColumns = -1;
+		/** the query variable of every result column, by column label */
+		private final Map<String, String> nameMapping = new HashMap<String, String>();
+		/** the literal definition of the literal result columns */
+		private final Map<String, LiteralDef> literalDefs = new HashMap<String, LiteralDef>();
 
 		public void setLimit(long limit) {
 			this.limit = limit;
@@ -823,6 +1547,10 @@ public class PostgisIndexer extends AbstractIndexer {
 			IndexException {
 
 		this.getSettings().getIndexedVars();
+		if (this.getSettings().isBulkReindex()) {
+			bulkReindex(connection, null);
+			return;
+		}
 		CloseableIteration<? extends BindingSet, QueryEvaluationException> iterator = connection
 				.evaluate(this.getSettings().getIndexGraph().getTupleQuery(),
 						null, new EmptyBindingSet(), false);
@@ -838,6 +1566,252 @@ public class PostgisIndexer extends AbstractIndexer {
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * With a bulk reindex and more than one reindex thread, the index graph is
+	 * split into partitions by a hash of the subject of its first pattern, see
+	 * {@link PartitionedReindex}. Otherwise this is the same as
+	 * {@link #reindex(SailConnection)}.
+	 */
+	@Override
+	public void reindex(SailConnection connection, Sail sail)
+			throws SailException, IndexException {
+		PostgisIndexerSettings settings = this.getSettings();
+		if (sail != null && settings.isBulkReindex()
+				&& settings.getReindexThreads() > 1
+				&& getPartitionVar() != null) {
+			bulkReindex(null, sail);
+			return;
+		}
+		reindex(connection);
+	}
+
+	/**
+	 * Rebuilds the index table from scratch. The index graph is streamed with
+	 * COPY into an unlogged staging table without any keys or indexes, which
+	 * are built once the whole table is loaded. The staging table then
+	 * replaces the index table in a single transaction, so queries see either
+	 * the old or the new index, never a partial one.
+	 * <p>
+	 * When a sail is given, the staging table is loaded by a
+	 * {@link PartitionedReindex}. A failed partitioned load leaves the staging
+	 * table in place, and the next reindex only loads the partitions that did
+	 * not finish.
+	 */
+	private void bulkReindex(SailConnection connection, Sail sail)
+			throws SailException, IndexException {
+		PostgisIndexerSettings settings = this.getSettings();
+		String table = settings.getTableName();
+		String staging = table + STAGING_SUFFIX;
+		long start = System.currentTimeMillis();
+		Connection conn = null;
+		java.sql.Statement statement = null;
+		boolean keepStaging = false;
+		try {
+			conn = getConnection();
+			statement = conn.createStatement();
+			long rows;
+			if (sail == null) {
+				statement.execute("DROP TABLE IF EXISTS " + staging);
+				statement.execute(settings.getCreateTableSQL(staging, true));
+				conn.commit();
+				rows = copyIndex(connection, conn, staging);
+			} else {
+				keepStaging = true;
+				rows = new PartitionedReindex(this, sail, staging).run();
+			}
+			LOG.info("{}: copied {} rows in {} ms", new Object[] { name, rows,
+					System.currentTimeMillis() - start });
+
+			statement.execute("ALTER TABLE " + staging + " SET LOGGED");
+			createIndexes(conn, statement, staging);
+			conn.commit();
+			LOG.info("{}: built indexes in {} ms", name,
+					System.currentTimeMillis() - start);
+
+			statement.execute("DROP TABLE IF EXISTS " + table);
+			statement.execute("ALTER TABLE " + staging + " RENAME TO " + table);
+			statement.execute(settings.getRenameIndexSQL(staging, table));
+			statement.execute("DROP TABLE IF EXISTS " + staging
+					+ PartitionedReindex.PROGRESS_SUFFIX);
+			conn.commit();
+			statement.execute("ANALYZE " + table);
+			conn.commit();
+			settings.getCardinalityEstimator().clear();
+			LOG.info("{}: reindexed {} rows in {} ms", new Object[] { name,
+					rows, System.currentTimeMillis() - start });
+		} catch (SQLException e) {
+			this.rollback();
+			if (!keepStaging) {
+				dropQuietly(statement, staging);
+			}
+			throw new IndexException("reindex of " + table + " failed", e);
+		} catch (QueryEvaluationException e) {
+			this.rollback();
+			if (!keepStaging) {
+				dropQuietly(statement, staging);
+			}
+			throw new IndexException("reindex of " + table + " failed", e);
+		} finally {
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					LOG.warn("could not close statement", e);
+				}
+			}
+		}
+	}
+
+	private long copyIndex(SailConnection connection, Connection conn,
+			String table) throws SQLException, SailException,
+			QueryEvaluationException {
+		IndexCopyWriter writer = createCopyWriter(conn, table);
+		CloseableIteration<? extends BindingSet, QueryEvaluationException> iterator = null;
+		boolean success = false;
+		try {
+			iterator = connection.evaluate(this.getSettings().getIndexGraph()
+					.getTupleQuery(), null, new EmptyBindingSet(), false);
+			while (iterator.hasNext()) {
+				writer.add(createInsertRow(iterator.next()));
+				if (writer.getWritten() % REINDEX_LOG_INTERVAL == 0) {
+					LOG.info(this.name + " " + writer.getWritten());
+				}
+			}
+			long rows = writer.finish();
+			success = true;
+			return rows;
+		} finally {
+			if (!success) {
+				writer.cancel();
+			}
+			if (iterator != null) {
+				iterator.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the subject variable of the first pattern of the index graph,
+	 *         which is used to partition a parallel reindex, or null if that
+	 *         subject is a constant
+	 */
+	Var getPartitionVar() {
+		Collection<StatementPattern> patterns = this.getSettings()
+				.getIndexGraph().getPatterns();
+		if (patterns.isEmpty()) {
+			return null;
+		}
+		Var subject = patterns.iterator().next().getSubjectVar();
+		return subject.hasValue() ? null : subject;
+	}
+
+	/**
+	 * Copies the rows of one partition of the index graph into the staging
+	 * table, within the transaction of this indexer's connection. The values
+	 * of {@link #getPartitionVar()} of the partition are taken from the queue
+	 * until {@link PartitionedReindex#END}, and the index graph is evaluated
+	 * once for each of them.
+	 *
+	 * @return the number of rows copied
+	 */
+	long copyPartition(SailConnection connection, String staging,
+			BlockingQueue<Value> subjects) throws SQLException, SailException,
+			QueryEvaluationException, InterruptedException {
+		Var partitionVar = getPartitionVar();
+		TupleExpr graph = this.getSettings().getIndexGraph().getTupleQuery();
+		IndexCopyWriter writer = createCopyWriter(getConnection(), staging);
+		boolean success = false;
+		try {
+			for (Value subject = subjects.take(); subject != PartitionedReindex.END; subject = subjects
+					.take()) {
+				QueryBindingSet bindings = new QueryBindingSet();
+				bindings.addBinding(partitionVar.getName(), subject);
+				CloseableIteration<? extends BindingSet, QueryEvaluationException> iterator = connection
+						.evaluate(graph, null, bindings, false);
+				try {
+					while (iterator.hasNext()) {
+						writer.add(createInsertRow(iterator.next()));
+					}
+				} finally {
+					iterator.close();
+				}
+			}
+			long rows = writer.finish();
+			success = true;
+			return rows;
+		} finally {
+			if (!success) {
+				writer.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Adds the primary key and indexes to a loaded table. The index graph may
+	 * produce the same graph more than once, in which case the duplicates are
+	 * removed and the primary key is built again.
+	 */
+	private void createIndexes(Connection conn, java.sql.Statement statement,
+			String table) throws SQLException {
+		String indexSQL = this.getSettings().getCreateIndexSQL(table);
+		Savepoint savepoint = conn.setSavepoint();
+		try {
+			statement.execute(indexSQL);
+			conn.releaseSavepoint(savepoint);
+		} catch (SQLException e) {
+			if (!UNIQUE_VIOLATION.equals(e.getSQLState())) {
+				throw e;
+			}
+			conn.rollback(savepoint);
+			int removed = statement.executeUpdate("DELETE FROM " + table
+					+ " a USING " + table + " b WHERE a."
+					+ PostgisIndexerSettings.OID + " = b."
+					+ PostgisIndexerSettings.OID + " AND a.ctid < b.ctid");
+			LOG.info("{}: removed {} duplicate rows", name, removed);
+			statement.execute(indexSQL);
+		}
+	}
+
+	private void dropQuietly(java.sql.Statement statement, String table) {
+		if (statement == null) {
+			return;
+		}
+		try {
+			statement.execute("DROP TABLE IF EXISTS " + table);
+			statement.getConnection().commit();
+		} catch (SQLException e) {
+			LOG.warn("could not drop " + table, e);
+		}
+	}
+
+	private static CopyManager getCopyManager(Connection conn)
+			throws SQLException {
+		Connection inner = conn;
+		if (inner instanceof DelegatingConnection) {
+			Connection delegate = ((DelegatingConnection) inner)
+					.getInnermostDelegate();
+			if (delegate != null) {
+				inner = delegate;
+			}
+		}
+		if (inner instanceof PGConnection) {
+			return ((PGConnection) inner).getCopyAPI();
+		}
+		throw new SQLException("COPY is not supported by "
+				+ conn.getClass().getName());
+	}
+
+	private String createCopySQL(String tableName, Object[] varNames) {
+		StringBuffer sql = new StringBuffer("COPY " + tableName + " ("
+				+ PostgisIndexerSettings.OID);
+		for (Object var : varNames) {
+			sql.append(',').append(var);
+		}
+		return sql.append(") FROM STDIN").toString();
+	}
+
 	// private void writeIndex(
 	// CloseableIteration<? extends BindingSet, QueryEvaluationException>
 	// iterator)
@@ -858,7 +1832,6 @@ public class PostgisIndexer extends AbstractIndexer {
 		int cache = 0;
 		int batchsize = this.getSettings().getBatchSize();
 		long count = 0;
-		DIGEST.reset();
 		for (; iterator.hasNext(); cache++) {
 
 			BindingSet bindingSet = iterator.next();
@@ -893,10 +1866,11 @@ public class PostgisIndexer extends AbstractIndexer {
 		statement.getConnection().setAutoCommit(oldAutoCommit);
 	}
 
-	private String setInsertValue(Object[] varNames, int[] types,
+	private UUID setInsertValue(Object[] varNames, int[] types,
 			PreparedStatement statement, BindingSet bindingSet)
 			throws SQLException {
 
+		identity.reset();
 		for (int i = 0; i < varNames.length; i++) {
 			Value value = bindingSet.getValue(varNames[i].toString());
 			statement.setObject(
@@ -904,11 +1878,11 @@ public class PostgisIndexer extends AbstractIndexer {
 					getSQLValue(bindingSet.getValue(varNames[i].toString()),
 							types[i]));
 
-			DIGEST.update(value.toString().getBytes());
+			identity.add(value);
 
 		}
-		String result = new String(Hex.encodeHex(DIGEST.digest()));
-		statement.setString(1, result);
+		UUID result = identity.get();
+		statement.setObject(1, result);
 		return result;
 	}
 
@@ -929,7 +1903,9 @@ public class PostgisIndexer extends AbstractIndexer {
 		for (int i = 0; i < varNames.length; i++) {
 			LiteralDef literalDef = map.get(varNames[i]);
 			if (literalDef == null) {
-				result[i] = Types.VARCHAR;
+				// a URI, or its id in the term dictionary
+				result[i] = this.getSettings().isDictionaryTerms() ? Types.BIGINT
+						: Types.VARCHAR;
 			} else if (DataTypeURI.isGeometry(literalDef.getType())) {
 				result[i] = Types.OTHER;
 			} else if (DataTypeURI.DATETIME.equals(literalDef.getType())) {
@@ -939,9 +1915,12 @@ public class PostgisIndexer extends AbstractIndexer {
 		return result;
 	}
 
-	private Object getSQLValue(Value value, int type) {
+	private Object getSQLValue(Value value, int type) throws SQLException {
 
-		if (type == Types.OTHER) {
+		if (type == Types.BIGINT) {
+			return this.getSettings().getTermDictionary()
+					.getId(value.stringValue());
+		} else if (type == Types.OTHER) {
 			return IndexedStatement.asGeometry((Literal) value, true);
 		} else if (type == Types.TIMESTAMP) {
 			try {
@@ -970,7 +1949,46 @@ public class PostgisIndexer extends AbstractIndexer {
 				.deleteCharAt(leftHalf.length() - 1)
 				.append(") ")
 				.append(rightHalf.deleteCharAt(rightHalf.length() - 1).append(
-						")")).toString();
+						")"))
+				// a graph that is already indexed, by an earlier commit or
+				// another writer, is left as it is, the writer tells a
+				// collision of identities apart, see createCollisionSQL
+				.append(" ON CONFLICT (").append(PostgisIndexerSettings.OID)
+				.append(") DO NOTHING").toString();
+	}
+
+	/**
+	 * @return the prepared query that finds the row of an identity with other
+	 *         values, see {@link #createCollisionSQL(String, Object[])}
+	 */
+	private PreparedStatement getCollisionStatement() throws SQLException {
+		if (collisionStatement == null) {
+			String presql = createCollisionSQL(this.getSettings()
+					.getTableName(), this.getVarNames());
+			collisionStatement = getConnection().prepareStatement(presql);
+		}
+		return collisionStatement;
+	}
+
+	/**
+	 * An insert skipped by <code>ON CONFLICT</code> is either a graph that is
+	 * indexed already, or a different graph with the same identity. This
+	 * query has the parameters of the insert, and returns a row only in the
+	 * second case. Geometries are compared with the <code>=</code> operator
+	 * of PostGIS.
+	 */
+	private String createCollisionSQL(String tableName, Object[] varNames) {
+		StringBuffer columns = new StringBuffer();
+		StringBuffer values = new StringBuffer();
+		for (Object var : varNames) {
+			columns.append(var).append(',');
+			values.append('?').append(',');
+		}
+		return "select 1 from " + tableName + " where "
+				+ PostgisIndexerSettings.OID + " = ? and ("
+				+ columns.deleteCharAt(columns.length() - 1)
+				+ ") is distinct from ("
+				+ values.deleteCharAt(values.length() - 1) + ")";
 	}
 
 	@Override
@@ -1003,23 +2021,109 @@ public class PostgisIndexer extends AbstractIndexer {
 
 	private final int OPERATION_ADD = 1;
 	private final int OPERATION_REMOVE = 2;
+	/** the watermarks of the submissions since {@link #takeSubmittedWatermarks()} */
+	private final List<Long> submittedWatermarks = new ArrayList<Long>();
 
 	@Override
 	public void addBatch(SailConnection connection, Collection<Statement> toAdd) {
 		executeBatch(connection, toAdd, OPERATION_ADD);
 	}
 
+	/**
+	 * Derives the index rows that are affected by the candidate statements,
+	 * and inserts or deletes them in JDBC batches of
+	 * {@link PostgisIndexerSettings#getBatchSize()} rows. All the rows of one
+	 * call are written in a single transaction, which is committed at the end.
+	 * With {@link PostgisIndexerSettings#isAsyncWrites()} the rows are handed
+	 * to the {@link AsyncIndexWriter} of the index table instead, and this
+	 * method returns before they are written.
+	 * 
+	 * @param connection
+	 *            the sail connection used to evaluate the index graph for
+	 *            graphs with more than one pattern
+	 * @param candidateStats
+	 *            the added or removed statements
+	 * @param operation
+	 *            {@link #OPERATION_ADD} or {@link #OPERATION_REMOVE}
+	 */
 	private void executeBatch(SailConnection connection,
 			Collection<Statement> candidateStats, int operation) {
+		if (candidateStats.isEmpty()) {
+			return;
+		}
+		if (this.getSettings().isAsyncWrites()) {
+			submitBatch(connection, candidateStats, operation);
+			return;
+		}
+		long start = System.currentTimeMillis();
+		IndexBatchWriter writer = null;
+		try {
+			PreparedStatement sqlStatement = getStatement(operation);
+			if (sqlStatement.getConnection().getAutoCommit()) {
+				sqlStatement.getConnection().setAutoCommit(false);
+			}
+			writer = createBatchWriter(operation);
+			deriveRows(connection, candidateStats, operation, writer);
+			writer.flush();
+			sqlStatement.getConnection().commit();
+		} catch (SQLException e) {
+			rollback();
+			throw new IndexException("Could not update index " + this.name, e);
+		} catch (SailException e) {
+			rollback();
+			throw new IndexException(e);
+		} catch (QueryEvaluationException e) {
+			rollback();
+			throw new IndexException(e);
+		}
+		reportThroughput(operation, writer, System.currentTimeMillis() - start);
+	}
 
-		HashSet<String> addedIDs = new HashSet<String>();
-		for (Statement statement : candidateStats) {
-			Map<String, Collection<StatementPattern>> patternMap = this
-					.getSettings().getIndexGraph().getStatementPatternMap();
+	private void submitBatch(SailConnection connection,
+			Collection<Statement> candidateStats, int operation) {
+		AsyncIndexWriter.Submission submission = this.getSettings()
+				.getAsyncWriter().open(operation);
+		boolean success = false;
+		try {
+			deriveRows(connection, candidateStats, operation, submission);
+			success = true;
+		} catch (SQLException e) {
+			throw new IndexException("Could not update index " + this.name, e);
+		} catch (SailException e) {
+			throw new IndexException(e);
+		} catch (QueryEvaluationException e) {
+			throw new IndexException(e);
+		} finally {
+			if (success) {
+				submittedWatermarks.add(submission.close());
+			} else {
+				submission.abort();
+			}
+		}
+	}
+
+	/**
+	 * Passes the index rows that are affected by the candidate statements to
+	 * the sink.
+	 */
+	private void deriveRows(SailConnection connection,
+			Collection<Statement> candidateStats, int operation,
+			IndexRowSink sink) throws SQLException, SailException,
+			QueryEvaluationException {
+		RecentlySeenFilter<UUID> addedIDs = new RecentlySeenFilter<UUID>(
+				this.getSettings().getDedupCacheSize());
+		Map<String, Collection<StatementPattern>> patternMap = this
+				.getSettings().getIndexGraph().getStatementPatternMap();
+		boolean singlePattern = this.getSettings().getIndexGraph()
+				.getPatterns().size() == 1;
+		// the changed statements of a multi pattern graph, grouped by the
+		// pattern they match
+		Map<StatementPattern, List<BindingSet>> delta = new LinkedHashMap<StatementPattern, List<BindingSet>>();
 
+		for (Statement statement : candidateStats) {
 			Collection<StatementPattern> patterns = new HashSet<StatementPattern>();
-			
-			//check if the triple is indexed by the triple patterns 
+
+			// check if the triple is indexed by the triple patterns
 			Collection<StatementPattern> p1 = patternMap.get(statement
 					.getSubject().stringValue());
 			if (p1 != null) {
@@ -1036,108 +2140,261 @@ public class PostgisIndexer extends AbstractIndexer {
 				patterns.addAll(p3);
 			}
 
-			if (patterns.size() > 0) {
-				try {
-					PreparedStatement sqlStatement = null;
-					if (operation == OPERATION_ADD) {
-						sqlStatement = getInsertStatment();
-					} else if (operation == OPERATION_REMOVE) {
-						sqlStatement = getRemoveStatment();
+			for (StatementPattern pattern : patterns) {
+				if (!matches(pattern, statement)) {
+					continue;
+				}
+				QueryBindingSet bindingSet = bindPattern(pattern, statement);
+				if (singlePattern) {
+					sink.add(operation == OPERATION_ADD ? createInsertRow(bindingSet)
+							: createRemoveRow(bindingSet));
+				} else {
+					List<BindingSet> group = delta.get(pattern);
+					if (group == null) {
+						group = new ArrayList<BindingSet>();
+						delta.put(pattern, group);
 					}
-					boolean oldAutoCommit = sqlStatement.getConnection()
-							.getAutoCommit();
-					sqlStatement.getConnection().setAutoCommit(true);
-					for (StatementPattern pattern : patterns) {
-						QueryBindingSet bindingSet = new QueryBindingSet(2);
-						if (!pattern.getSubjectVar().hasValue()) {
-							bindingSet.addBinding(pattern.getSubjectVar()
-									.getName(), statement.getSubject());
-						}
-						if (!pattern.getPredicateVar().hasValue()) {
-							bindingSet.addBinding(pattern.getPredicateVar()
-									.getName(), statement.getPredicate());
-						}
-						if (!pattern.getObjectVar().hasValue()) {
-							bindingSet.addBinding(pattern.getObjectVar()
-									.getName(), statement.getObject());
-						}
-						DIGEST.reset();
-
-						if (this.getSettings().getIndexGraph().getPatterns()
-								.size() == 1) {
-							if (operation == OPERATION_ADD) {
-								setInsertValue(this.getVarNames(),
-										this.getSQLTypes(), sqlStatement,
-										bindingSet);
-							} else if (operation == OPERATION_REMOVE) {
-								setRemoveValue(this.getVarNames(),
-										sqlStatement, bindingSet);
-							}
-
-							try {
-								sqlStatement.executeUpdate();
-							} catch (SQLException e) {
-								e.printStackTrace();
-							}
-						} else {
-							CloseableIteration<? extends BindingSet, QueryEvaluationException> iterator = connection
-									.evaluate(this.getSettings()
-											.getIndexGraph().getTupleQuery(),
-											null, bindingSet, false);
-							for (; iterator.hasNext();) {
-								BindingSet resultBinding = iterator.next();
-								if (operation == OPERATION_ADD) {
-									String md5 = setInsertValue(
-											this.getVarNames(),
-											this.getSQLTypes(), sqlStatement,
-											resultBinding);
-									if (!addedIDs.contains(md5)) {
-										addedIDs.add(md5);
-										try {
-											sqlStatement.executeUpdate();
-										} catch (SQLException e) {
-											e.printStackTrace();
-										}
-									}
-								} else if (operation == OPERATION_REMOVE) {
-									setRemoveValue(this.getVarNames(),
-											sqlStatement, resultBinding);
-									try {
-										sqlStatement.executeUpdate();
-									} catch (SQLException e) {
-										e.printStackTrace();
-									}
-								}
-
-							}
-						}
+					group.add(bindingSet);
+				}
+			}
+		}
+		for (Map.Entry<StatementPattern, List<BindingSet>> group : delta
+				.entrySet()) {
+			writeDerivedRows(connection, group.getKey(), group.getValue(),
+					operation, sink, addedIDs);
+		}
+	}
 
-					}
-					sqlStatement.getConnection().setAutoCommit(oldAutoCommit);
-				} catch (SQLException e1) {
-					e1.printStackTrace();
-				} catch (SailException e) {
-					e.printStackTrace();
-				} catch (QueryEvaluationException e) {
-					e.printStackTrace();
+	/**
+	 * @return the prepared insert statement for {@link #OPERATION_ADD}, or
+	 *         the delete statement for {@link #OPERATION_REMOVE}
+	 */
+	PreparedStatement getStatement(int operation) throws SQLException {
+		return operation == OPERATION_ADD ? getInsertStatment()
+				: getRemoveStatment();
+	}
+
+	/**
+	 * @return a writer of the rows of an operation, which encodes the terms
+	 *         of the inserted rows when the table is dictionary encoded, and
+	 *         reports collisions of graph identities
+	 */
+	IndexBatchWriter createBatchWriter(int operation) throws SQLException {
+		if (operation == OPERATION_ADD) {
+			boolean dictionary = this.getSettings().isDictionaryTerms();
+			return new IndexBatchWriter(getStatement(operation),
+					getCollisionStatement(), this.getSettings().getBatchSize(),
+					dictionary ? this.getSettings().getTermDictionary() : null,
+					dictionary ? getTermColumns() : null);
+		}
+		return new IndexBatchWriter(getStatement(operation), this
+				.getSettings().getBatchSize());
+	}
+
+	/**
+	 * @return a writer that copies the inserted rows into a table, and
+	 *         encodes their terms when the table is dictionary encoded
+	 */
+	private IndexCopyWriter createCopyWriter(Connection conn, String table)
+			throws SQLException {
+		CopyIn copyIn = getCopyManager(conn).copyIn(
+				createCopySQL(table, this.getVarNames()));
+		if (this.getSettings().isDictionaryTerms()) {
+			return new IndexCopyWriter(copyIn, this.getSettings()
+					.getTermDictionary(), getTermColumns());
+		}
+		return new IndexCopyWriter(copyIn);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Without asynchronous writes every change is written before the commit
+	 * returns, and the watermarks are always 0.
+	 */
+	@Override
+	public long getSubmittedWatermark() {
+		return this.getSettings().isAsyncWrites() ? this.getSettings()
+				.getAsyncWriter().getSubmittedWatermark() : 0;
+	}
+
+	@Override
+	public long getAppliedWatermark() {
+		return this.getSettings().isAsyncWrites() ? this.getSettings()
+				.getAsyncWriter().getAppliedWatermark() : 0;
+	}
+
+	@Override
+	public long[] takeSubmittedWatermarks() {
+		long[] watermarks = new long[submittedWatermarks.size()];
+		for (int i = 0; i < watermarks.length; i++) {
+			watermarks[i] = submittedWatermarks.get(i);
+		}
+		submittedWatermarks.clear();
+		return watermarks;
+	}
+
+	@Override
+	public boolean removeFailedWatermark(long watermark) {
+		return this.getSettings().isAsyncWrites()
+				&& this.getSettings().getAsyncWriter().removeFailed(watermark);
+	}
+
+	@Override
+	public boolean awaitWatermark(long watermark, long timeoutMillis)
+			throws InterruptedException {
+		return !this.getSettings().isAsyncWrites()
+				|| this.getSettings().getAsyncWriter()
+						.awaitWatermark(watermark, timeoutMillis);
+	}
+
+	@Override
+	public boolean awaitLag(long maxLagMillis, long timeoutMillis)
+			throws InterruptedException {
+		return !this.getSettings().isAsyncWrites()
+				|| this.getSettings().getAsyncWriter()
+						.awaitLag(maxLagMillis, timeoutMillis);
+	}
+
+	/**
+	 * Evaluates the index graph once for all the changed statements that
+	 * match one of its patterns, and queues a row for every (not yet seen)
+	 * result. The pattern is replaced by the bindings of the changed
+	 * statements, so these statements only join with the rest of the graph
+	 * through the pattern they matched.
+	 */
+	private void writeDerivedRows(SailConnection connection,
+			StatementPattern pattern, List<BindingSet> bindingSets,
+			int operation, IndexRowSink writer,
+			RecentlySeenFilter<UUID> addedIDs)
+			throws SailException, QueryEvaluationException, SQLException {
+		BindingSetAssignment values = new BindingSetAssignment();
+		values.setBindingSets(bindingSets);
+		TupleExpr deltaQuery = replacePattern(pattern, values);
+		CloseableIteration<? extends BindingSet, QueryEvaluationException> iterator = connection
+				.evaluate(deltaQuery, null, new EmptyBindingSet(), false);
+		try {
+			while (iterator.hasNext()) {
+				BindingSet resultBinding = iterator.next();
+				Object[] row = operation == OPERATION_ADD ? createInsertRow(resultBinding)
+						: createRemoveRow(resultBinding);
+				if (addedIDs.add((UUID) row[0])) {
+					writer.add(row);
 				}
+			}
+		} finally {
+			iterator.close();
+		}
+	}
 
+	/**
+	 * @return a copy of the index graph query in which the given pattern is
+	 *         replaced by <code>replacement</code>
+	 */
+	private TupleExpr replacePattern(StatementPattern pattern,
+			TupleExpr replacement) {
+		TupleExpr query = this.getSettings().getIndexGraph().getTupleQuery();
+		List<StatementPattern> originals = StatementPatternCollector
+				.process(query);
+		TupleExpr copy = query.clone();
+		List<StatementPattern> copies = StatementPatternCollector.process(copy);
+		for (int i = 0; i < originals.size(); i++) {
+			if (originals.get(i) == pattern || originals.get(i).equals(pattern)) {
+				copies.get(i).replaceWith(replacement);
+				return copy;
 			}
+		}
+		throw new IndexException("pattern " + pattern
+				+ " is not part of index graph " + this.name);
+	}
 
+	/**
+	 * @return true if the constants of the pattern are the values of the
+	 *         statement, and a variable that occurs more than once in the
+	 *         pattern has the same value at each position
+	 */
+	boolean matches(StatementPattern pattern, Statement statement) {
+		Value[] values = { statement.getSubject(), statement.getPredicate(),
+				statement.getObject() };
+		Var[] vars = { pattern.getSubjectVar(), pattern.getPredicateVar(),
+				pattern.getObjectVar() };
+		for (int i = 0; i < vars.length; i++) {
+			if (vars[i].hasValue() && !vars[i].getValue().equals(values[i])) {
+				return false;
+			}
+			for (int j = 0; j < i; j++) {
+				if (!vars[i].hasValue() && !vars[j].hasValue()
+						&& vars[i].getName().equals(vars[j].getName())
+						&& !values[i].equals(values[j])) {
+					return false;
+				}
+			}
 		}
+		return true;
 	}
 
-	private String setRemoveValue(String[] varNames,
-			PreparedStatement statement, BindingSet resultBinding)
+	private QueryBindingSet bindPattern(StatementPattern pattern,
+			Statement statement) {
+		QueryBindingSet bindingSet = new QueryBindingSet(3);
+		if (!pattern.getSubjectVar().hasValue()) {
+			bindingSet.addBinding(pattern.getSubjectVar().getName(),
+					statement.getSubject());
+		}
+		if (!pattern.getPredicateVar().hasValue()) {
+			bindingSet.addBinding(pattern.getPredicateVar().getName(),
+					statement.getPredicate());
+		}
+		if (!pattern.getObjectVar().hasValue()) {
+			bindingSet.addBinding(pattern.getObjectVar().getName(),
+					statement.getObject());
+		}
+		return bindingSet;
+	}
+
+	private void reportThroughput(int operation, IndexBatchWriter writer,
+			long millis) {
+		if (writer.getWritten() == 0) {
+			return;
+		}
+		LOG.info("{}: {} index rows {} in {} ms ({} rows/s)", new Object[] {
+				this.name, writer.getWritten(),
+				operation == OPERATION_ADD ? "inserted" : "deleted", millis,
+				writer.getWritten() * 1000 / Math.max(millis, 1) });
+	}
+
+	/**
+	 * @return the parameters of the insert statement for one result binding:
+	 *         the graph identity followed by the value of every variable. A
+	 *         URI of a dictionary encoded table is left as its text, the
+	 *         writer encodes the terms of many rows at once, see
+	 *         {@link #getTermColumns()}.
+	 */
+	private Object[] createInsertRow(BindingSet bindingSet)
 			throws SQLException {
+		String[] varNames = this.getVarNames();
+		int[] types = this.getSQLTypes();
+		Object[] row = new Object[varNames.length + 1];
+		identity.reset();
 		for (int i = 0; i < varNames.length; i++) {
-			Value value = resultBinding.getValue(varNames[i].toString());
-			DIGEST.update(value.toString().getBytes());
+			Value value = bindingSet.getValue(varNames[i]);
+			row[i + 1] = types[i] == Types.BIGINT ? value.stringValue()
+					: getSQLValue(value, types[i]);
+			identity.add(value);
 		}
-		String result = new String(Hex.encodeHex(DIGEST.digest()));
-		statement.setString(1, result);
-		return result;
+		row[0] = identity.get();
+		return row;
+	}
 
+	/**
+	 * @return the parameters of the delete statement for one result binding
+	 */
+	private Object[] createRemoveRow(BindingSet bindingSet) {
+		String[] varNames = this.getVarNames();
+		identity.reset();
+		for (int i = 0; i < varNames.length; i++) {
+			identity.add(bindingSet.getValue(varNames[i]));
+		}
+		return new Object[] { identity.get() };
 	}
 
 	private PreparedStatement getRemoveStatment() throws SQLException {
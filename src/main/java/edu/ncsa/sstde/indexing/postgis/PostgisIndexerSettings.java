@@ -15,6 +15,7 @@ package edu.ncsa.sstde.indexing.postgis;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -42,6 +43,9 @@ import org.openrdf.query.algebra.ValueConstant;
 import org.openrdf.query.algebra.ValueExpr;
 import org.openrdf.query.algebra.Var;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.useekm.geosparql.Contains;
 import com.useekm.geosparql.ContainsProperly;
 import com.useekm.geosparql.CoveredBy;
@@ -70,9 +74,14 @@ import edu.ncsa.sstde.indexing.LiteralDef;
 import edu.ncsa.sstde.util.DataTypeURI;
 
 /**
- * Settings for {@link PostgisIndexer}.
+ * Settings for {@link PostgisIndexer}. The index tables need PostgreSQL 9.5
+ * or later, for unlogged staging tables that are switched to logged and for
+ * inserts that skip rows already indexed, which {@link #initialize()}
+ * checks.
  */
 public class PostgisIndexerSettings implements IndexerSettings {
+	private static final Logger LOG = LoggerFactory
+			.getLogger(PostgisIndexerSettings.class);
 //	private static final String SQL_BASE_TABLE = "/com/useekm/indexing/postgis/basetable.sql";
 //	private static final String SQL_CHILD_TABLE = "/com/useekm/indexing/postgis/childtable.sql";
 	private static final String DEFAULT_LOOKUP = "$";
@@ -100,6 +109,10 @@ public class PostgisIndexerSettings implements IndexerSettings {
 
 	public static final String OPERATOR_NS = "http://www.ncsa.uiuc.edu/math/operators#";
 	public static final String OID = "_oid";
+	/** the table of the terms of all the dictionary encoded index tables */
+	public static final String TERM_TABLE = "idx_terms";
+	private static final String TRGM_SUFFIX = "_trgm";
+	private static final String FTS_SUFFIX = "_fts";
 	// public static final URI LESSTHAN = new
 	// URIImpl("http://www.ncsa.uiuc.edu/math/operators/lessthan");
 	// public static final URI EQUALS2 = new
@@ -108,6 +121,13 @@ public class PostgisIndexerSettings implements IndexerSettings {
 	public static final int DEFAULT_FETCH_SIZE = 200;
 	public static final int DEFAULT_BATCH_SIZE = 200;
 	public static final int DEFAULT_REINDEX_COMMIT_SIZE = 1000;
+	public static final boolean DEFAULT_BULK_REINDEX = true;
+	public static final int DEFAULT_REINDEX_THREADS = 1;
+	public static final int DEFAULT_DEDUP_CACHE_SIZE = 100000;
+	public static final int DEFAULT_ASYNC_QUEUE_SIZE = 64;
+	public static final long DEFAULT_ESTIMATE_TTL = 60000;
+	public static final int DEFAULT_ESTIMATE_CACHE_SIZE = 1000;
+	public static final int DEFAULT_TERM_CACHE_SIZE = 10000;
 	public static final int DEFAULT_SRID = 4326;
 	public static final int DEFAULT_DIMENSION = 2;
 	public static final GeometryFactory DEFAULT_GEOM_FACTORY = new GeometryFactory(
@@ -138,9 +158,24 @@ public class PostgisIndexerSettings implements IndexerSettings {
 	private Map<String, Map<String, String>> partitionNames;
 	private DataSource dataSource;
 	private String defaultSearchConfig = "simple";
+	private boolean textIndexes = true;
+	private boolean trigramIndexes = false;
 	private int fetchSize = DEFAULT_FETCH_SIZE;
 	private int batchSize = DEFAULT_BATCH_SIZE;
 	private int reindexBatchSize = DEFAULT_REINDEX_COMMIT_SIZE;
+	private boolean bulkReindex = DEFAULT_BULK_REINDEX;
+	private int reindexThreads = DEFAULT_REINDEX_THREADS;
+	private int reindexPartitions = 0;
+	private int dedupCacheSize = DEFAULT_DEDUP_CACHE_SIZE;
+	private boolean asyncWrites = false;
+	private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+	private AsyncIndexWriter asyncWriter = null;
+	private long estimateTTL = DEFAULT_ESTIMATE_TTL;
+	private CardinalityEstimator cardinalityEstimator = null;
+	private int termCacheSize = DEFAULT_TERM_CACHE_SIZE;
+	private TermCache<Value> termCache = null;
+	private boolean dictionaryTerms = false;
+	private TermDictionary termDictionary = null;
 //	private String baseTable = DEFAULT_BASE_TABLE;
 	private Collection<StatementPattern> matchSatatments = null;
 //	private Collection<Var> indexedVars = null;
@@ -165,6 +200,39 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		this.defaultSearchConfig = defaultSearchConfig;
 	}
 
+	/**
+	 * @return the default search configuration as an SQL constant, the way
+	 *         it is written in the full text indexes
+	 */
+	String getTextSearchConfig() {
+		return "'" + defaultSearchConfig.replace("'", "''") + "'::regconfig";
+	}
+
+	/**
+	 * @return true if the string columns get a full text index
+	 */
+	public boolean isTextIndexes() {
+		return textIndexes;
+	}
+
+	public void setTextIndexes(boolean textIndexes) {
+		this.textIndexes = textIndexes;
+	}
+
+	/**
+	 * @return true if the string columns also get a trigram index for
+	 *         regular expressions. It needs the pg_trgm extension, which is
+	 *         created if it is not there, so it is off by default; without it
+	 *         a regular expression scans the table.
+	 */
+	public boolean isTrigramIndexes() {
+		return trigramIndexes;
+	}
+
+	public void setTrigramIndexes(boolean trigramIndexes) {
+		this.trigramIndexes = trigramIndexes;
+	}
+
 	public String getBaseTable() {
 		// return baseTable;
 		return "idxst2";
@@ -198,6 +266,183 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		this.reindexBatchSize = reindexBatchSize;
 	}
 
+	/**
+	 * @return true if a reindex should load the index graph into a staging
+	 *         table with COPY and swap it in, false if the rows should be
+	 *         inserted one by one into the existing table
+	 */
+	public boolean isBulkReindex() {
+		return bulkReindex;
+	}
+
+	public void setBulkReindex(boolean bulkReindex) {
+		this.bulkReindex = bulkReindex;
+	}
+
+	/**
+	 * @return the number of threads that load a bulk reindex in parallel, 1
+	 *         to load it on the calling thread
+	 */
+	public int getReindexThreads() {
+		return reindexThreads;
+	}
+
+	public void setReindexThreads(int reindexThreads) {
+		this.reindexThreads = reindexThreads;
+	}
+
+	/**
+	 * @return the number of partitions a parallel reindex is split into,
+	 *         which is never less than {@link #getReindexThreads()}. More
+	 *         partitions balance the threads better, and lose less work when
+	 *         a reindex fails and is resumed.
+	 */
+	public int getReindexPartitions() {
+		return Math.max(reindexPartitions, reindexThreads);
+	}
+
+	public void setReindexPartitions(int reindexPartitions) {
+		this.reindexPartitions = reindexPartitions;
+	}
+
+	/**
+	 * @return the number of recently written graph identities an indexer
+	 *         remembers within one commit, to avoid writing the same graph
+	 *         twice, 0 to send every row. Duplicates beyond this window are
+	 *         ignored by the database.
+	 */
+	public int getDedupCacheSize() {
+		return dedupCacheSize;
+	}
+
+	public void setDedupCacheSize(int dedupCacheSize) {
+		this.dedupCacheSize = dedupCacheSize;
+	}
+
+	/**
+	 * @return true if the index rows of a commit are written by a background
+	 *         thread, after the commit returns
+	 * @see AsyncIndexWriter
+	 */
+	public boolean isAsyncWrites() {
+		return asyncWrites;
+	}
+
+	public void setAsyncWrites(boolean asyncWrites) {
+		this.asyncWrites = asyncWrites;
+	}
+
+	/**
+	 * @return the number of chunks of {@link #getBatchSize()} rows that can
+	 *         wait for the background writer before a commit blocks
+	 */
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	public void setAsyncQueueSize(int asyncQueueSize) {
+		this.asyncQueueSize = asyncQueueSize;
+	}
+
+	/**
+	 * @return the background writer of the index table, which is started on
+	 *         first use
+	 */
+	synchronized AsyncIndexWriter getAsyncWriter() {
+		if (asyncWriter == null) {
+			PostgisIndexer writerIndexer = createIndexer();
+			writerIndexer.setName(getTableName());
+			asyncWriter = new AsyncIndexWriter(writerIndexer,
+					getAsyncQueueSize());
+			asyncWriter.start();
+		}
+		return asyncWriter;
+	}
+
+	@Override
+	public synchronized void shutDown() {
+		if (asyncWriter != null) {
+			asyncWriter.stop();
+			asyncWriter = null;
+		}
+		if (termDictionary != null) {
+			termDictionary.close();
+			termDictionary = null;
+		}
+	}
+
+	/**
+	 * @return the time in milliseconds a cardinality estimate of a query is
+	 *         reused, 0 to not estimate queries
+	 */
+	public long getEstimateTTL() {
+		return estimateTTL;
+	}
+
+	public void setEstimateTTL(long estimateTTL) {
+		this.estimateTTL = estimateTTL;
+	}
+
+	/**
+	 * @return the estimator of the index table, with its cache of estimates
+	 */
+	synchronized CardinalityEstimator getCardinalityEstimator() {
+		if (cardinalityEstimator == null) {
+			cardinalityEstimator = new CardinalityEstimator(getEstimateTTL(),
+					DEFAULT_ESTIMATE_CACHE_SIZE);
+		}
+		return cardinalityEstimator;
+	}
+
+	/**
+	 * @return the maximum number of terms of query results that are cached,
+	 *         0 to not cache them
+	 */
+	public int getTermCacheSize() {
+		return termCacheSize;
+	}
+
+	public void setTermCacheSize(int termCacheSize) {
+		this.termCacheSize = termCacheSize;
+	}
+
+	/**
+	 * @return the cache of the terms of the query results of the index
+	 *         table, or null if they are not cached
+	 */
+	synchronized TermCache<Value> getTermCache() {
+		if (termCache == null && getTermCacheSize() > 0) {
+			termCache = new TermCache<Value>(getTermCacheSize());
+		}
+		return termCache;
+	}
+
+	/**
+	 * @return true if the URI columns of the index table hold the bigint id
+	 *         of the URI in {@link #TERM_TABLE} instead of its text. A change
+	 *         takes effect for an existing table after a reindex.
+	 */
+	public boolean isDictionaryTerms() {
+		return dictionaryTerms;
+	}
+
+	public void setDictionaryTerms(boolean dictionaryTerms) {
+		this.dictionaryTerms = dictionaryTerms;
+	}
+
+	/**
+	 * @return the dictionary of the URIs of the index table, with a cache of
+	 *         {@link #getTermCacheSize()} ids, or null if the URIs are stored
+	 *         as text
+	 */
+	synchronized TermDictionary getTermDictionary() {
+		if (termDictionary == null && isDictionaryTerms()) {
+			termDictionary = new TermDictionary(getDataSource(),
+					getTermCacheSize());
+		}
+		return termDictionary;
+	}
+
 	public int getBatchSize() {
 		return batchSize;
 	}
@@ -206,6 +451,10 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		this.batchSize = batchSize;
 	}
 
+	/**
+	 * @return the number of rows a query reads from the database at a time, 0
+	 *         to read all the rows of a query at once
+	 */
 	public int getFetchSize() {
 		return fetchSize;
 	}
@@ -222,6 +471,25 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		return dataSource;
 	}
 
+	/**
+	 * @return true if the tables of both settings are in the same database,
+	 *         so one query can read them both
+	 */
+	public boolean sharesDataSource(PostgisIndexerSettings other) {
+		if (this.dataSource == other.dataSource) {
+			return true;
+		}
+		if (!(this.dataSource instanceof BasicDataSource)
+				|| !(other.dataSource instanceof BasicDataSource)) {
+			return false;
+		}
+		BasicDataSource ds1 = (BasicDataSource) this.dataSource;
+		BasicDataSource ds2 = (BasicDataSource) other.dataSource;
+		return ds1.getUrl() != null && ds1.getUrl().equals(ds2.getUrl())
+				&& (ds1.getUsername() == null ? ds2.getUsername() == null : ds1
+						.getUsername().equals(ds2.getUsername()));
+	}
+
 	public String getTableName(String predicate, String lang) {
 		if (partitionNames == null)
 			validateAndInitPartitions();
@@ -443,8 +711,15 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		Connection conn = null;
 		try {
 			conn = getDataSource().getConnection();
+			checkServerVersion(conn);
+			if (isDictionaryTerms())
+				createTermTable(conn);
 			if (!isInitialized(conn))
 				createTables(conn);
+			else {
+				checkIdentityColumn(conn);
+				checkTermColumns(conn);
+			}
 			conn.close();
 			conn = null;
 		} catch (SQLException e) {
@@ -456,6 +731,20 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		}
 	}
 
+	/**
+	 * Fails unless the server supports <code>ALTER TABLE ... SET LOGGED</code>
+	 * and <code>INSERT ... ON CONFLICT</code>, which came with 9.5.
+	 */
+	private void checkServerVersion(Connection conn) throws SQLException {
+		DatabaseMetaData metaData = conn.getMetaData();
+		int major = metaData.getDatabaseMajorVersion();
+		int minor = metaData.getDatabaseMinorVersion();
+		if (major < 9 || major == 9 && minor < 5) {
+			throw new IndexException("PostgreSQL 9.5 or later is required, "
+					+ getTableName() + " is on " + major + "." + minor);
+		}
+	}
+
 	private boolean isInitialized(Connection conn) throws SQLException {
 		ResultSet tables = conn.getMetaData().getTables(null, null, null,
 				new String[] { "TABLE" });
@@ -473,37 +762,73 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		}
 	}
 
-	private void createTables(Connection conn) throws IOException, SQLException {
-
-		Collection<String> varNames = this.getIndexGraph().getVarNames();
-
-		String createClause = "create table " + getTableName() + "(";
-		StringBuffer indexClause = new StringBuffer();
-//		StringBuffer uniqueClause = new StringBuffer("ALTER TABLE "
-//				+ getTableName()
-//				+ " ADD CONSTRAINT unique_index_constraint_" + getTableName() + " UNIQUE(");
-		
-		//add the first column as the primary, which is a 32 characters MD5 code to indicate the unique graph
-		createClause += OID + " character(32) NOT NULL,CONSTRAINT " + getTableName() + "_pk PRIMARY KEY (" + OID + "),";
-		for (String varname : varNames) {
-			String sqlType = getVarType(varname);
-			createClause += varname + " " + sqlType + " NOT NULL,";
-			String indexName = "index_" + getTableName() + "_" + varname;
-			String indexType = sqlType.equals("geometry") ? "gist" : "btree";
+	/**
+	 * Tables created before the graph identity became a uuid still have a
+	 * character(32) column, which can not be maintained incrementally any
+	 * more: the rows of such a table would never be found again to be
+	 * removed.
+	 * 
+	 * @throws IndexException
+	 *             if the table has the old column, the table has to be
+	 *             dropped, and filled again with a reindex
+	 */
+	private void checkIdentityColumn(Connection conn) throws SQLException {
+		ResultSet columns = conn.getMetaData().getColumns(null, null,
+				getTableName(), OID);
+		try {
+			if (columns.next() && !"uuid".equals(columns.getString("TYPE_NAME"))) {
+				throw new IndexException(getTableName() + ": column " + OID
+						+ " is of type " + columns.getString("TYPE_NAME")
+						+ " instead of uuid. Drop the table, it is created "
+						+ "again on the next start, and reindex it.");
+			}
+		} finally {
+			columns.close();
+		}
+	}
 
-			indexClause.append("CREATE INDEX " + indexName + " ON "
-					+ getTableName() + " USING " + indexType + " (" + varname
-					+ ");");
+	/**
+	 * The URI columns of a table hold ids or text as
+	 * {@link #isDictionaryTerms()} was when the table was created, a reindex
+	 * replaces a table in the other layout.
+	 */
+	private void checkTermColumns(Connection conn) throws SQLException {
+		String expected = isDictionaryTerms() ? "int8" : "text";
+		for (String varname : this.getIndexGraph().getVarNames()) {
+			if (this.getIndexGraph().getLiteralType(varname) != null) {
+				continue;
+			}
+			ResultSet columns = conn.getMetaData().getColumns(null, null,
+					getTableName(), varname);
+			try {
+				if (columns.next()
+						&& !expected.equals(columns.getString("TYPE_NAME"))) {
+					LOG.warn("{}: column {} is of type {} instead of {}, "
+							+ "a reindex is needed", new Object[] {
+							getTableName(), varname,
+							columns.getString("TYPE_NAME"), expected });
+					return;
+				}
+			} finally {
+				columns.close();
+			}
+		}
+	}
 
-//			uniqueClause.append(varname).append(',');
+	private void createTermTable(Connection conn) throws SQLException {
+		Statement stat = conn.createStatement();
+		try {
+			stat.execute(TermDictionary.getCreateTableSQL());
+		} finally {
+			stat.close();
 		}
+	}
 
-		createClause = createClause.substring(0, createClause.length() - 1)
-				+ ") WITH (OIDS=FALSE);";
-//		uniqueClause.deleteCharAt(uniqueClause.length()-1).append(")");
+	private void createTables(Connection conn) throws IOException, SQLException {
 		Statement stat = conn.createStatement();
 		try {
-			stat.execute(createClause + indexClause.toString());
+			stat.execute(getCreateTableSQL(getTableName(), false)
+					+ getCreateIndexSQL(getTableName()));
 			// for (Entry<String, String> childTable:
 			// getPartitionCheckConstraints().entrySet()) {
 			// String tableName = getTableName(childTable.getKey());
@@ -515,10 +840,149 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		}
 	}
 
-	private String getVarType(String varname) {
+	/**
+	 * @param table
+	 *            the name of the table to create
+	 * @param unlogged
+	 *            if the table should be created without write-ahead logging.
+	 *            This is used for the staging table of a bulk reindex.
+	 * @return the statement that creates an index table for the index graph,
+	 *         with a column for the graph identity and one for each variable.
+	 *         The table has no primary key or indexes, see
+	 *         {@link #getCreateIndexSQL(String)}.
+	 */
+	String getCreateTableSQL(String table, boolean unlogged) {
+		StringBuffer createClause = new StringBuffer("create ");
+		if (unlogged) {
+			createClause.append("unlogged ");
+		}
+		// the first column is the MD5 digest of the graph, see GraphIdentity
+		createClause.append("table ").append(table).append("(").append(OID)
+				.append(" uuid NOT NULL,");
+		for (String varname : this.getIndexGraph().getVarNames()) {
+			createClause.append(varname).append(" ")
+					.append(getVarType(varname)).append(" NOT NULL,");
+		}
+		return createClause.deleteCharAt(createClause.length() - 1)
+				.append(") WITH (OIDS=FALSE);").toString();
+	}
+
+	/**
+	 * @return the statements that add the primary key on the graph identity
+	 *         and an index for every variable column to the table. A
+	 *         geometry column gets a gist index, all other columns a btree.
+	 *         With {@link #isTextIndexes()}, a string column also gets a gin
+	 *         full text index on <code>to_tsvector</code> with the default
+	 *         search configuration, and with {@link #isTrigramIndexes()} a
+	 *         gin trigram index, for regular expressions. The names of the key and the indexes are derived
+	 *         from the table name.
+	 */
+	String getCreateIndexSQL(String table) {
+		StringBuffer indexClause = new StringBuffer("ALTER TABLE ")
+				.append(table).append(" ADD CONSTRAINT ")
+				.append(getPrimaryKeyName(table)).append(" PRIMARY KEY (")
+				.append(OID).append(");");
+		boolean trgm = false;
+		for (String varname : this.getIndexGraph().getVarNames()) {
+			String indexType = "geometry".equals(getVarType(varname)) ? "gist"
+					: "btree";
+			indexClause.append("CREATE INDEX ")
+					.append(getIndexName(table, varname)).append(" ON ")
+					.append(table).append(" USING ").append(indexType)
+					.append(" (").append(varname).append(");");
+			if (isTrigramColumn(varname)) {
+				if (!trgm) {
+					indexClause.append("CREATE EXTENSION IF NOT EXISTS pg_trgm;");
+					trgm = true;
+				}
+				indexClause.append("CREATE INDEX ")
+						.append(getIndexName(table, varname)).append(TRGM_SUFFIX)
+						.append(" ON ").append(table).append(" USING gin (")
+						.append(varname).append(" gin_trgm_ops);");
+			}
+			if (isTextColumn(varname)) {
+				indexClause.append("CREATE INDEX ")
+						.append(getIndexName(table, varname)).append(FTS_SUFFIX)
+						.append(" ON ").append(table)
+						.append(" USING gin (to_tsvector(")
+						.append(getTextSearchConfig()).append(',')
+						.append(varname).append("));");
+			}
+		}
+		return indexClause.toString();
+	}
+
+	/**
+	 * @return true if the column of a variable gets the full text index
+	 */
+	private boolean isTextColumn(String varname) {
+		return isTextIndexes()
+				&& "character varying".equals(getVarType(varname));
+	}
+
+	/**
+	 * @return true if the column of a variable gets the trigram index
+	 */
+	private boolean isTrigramColumn(String varname) {
+		return isTrigramIndexes()
+				&& "character varying".equals(getVarType(varname));
+	}
+
+	/**
+	 * @return the statements that rename the primary key and indexes created
+	 *         by {@link #getCreateIndexSQL(String)} for table <code>from</code>
+	 *         to the names they would have for table <code>to</code>.
+	 */
+	String getRenameIndexSQL(String from, String to) {
+		StringBuffer renameClause = new StringBuffer("ALTER INDEX ")
+				.append(getPrimaryKeyName(from)).append(" RENAME TO ")
+				.append(getPrimaryKeyName(to)).append(";");
+		for (String varname : this.getIndexGraph().getVarNames()) {
+			renameClause.append("ALTER INDEX ")
+					.append(getIndexName(from, varname)).append(" RENAME TO ")
+					.append(getIndexName(to, varname)).append(";");
+			if (isTrigramColumn(varname)) {
+				appendRenameIndex(renameClause, from, to, varname, TRGM_SUFFIX);
+			}
+			if (isTextColumn(varname)) {
+				appendRenameIndex(renameClause, from, to, varname, FTS_SUFFIX);
+			}
+		}
+		return renameClause.toString();
+	}
+
+	private void appendRenameIndex(StringBuffer renameClause, String from,
+			String to, String varname, String suffix) {
+		renameClause.append("ALTER INDEX ")
+				.append(getIndexName(from, varname)).append(suffix)
+				.append(" RENAME TO ").append(getIndexName(to, varname))
+				.append(suffix).append(";");
+	}
+
+	private String getPrimaryKeyName(String table) {
+		return table + "_pk";
+	}
+
+	private String getIndexName(String table, String varname) {
+		return "index_" + table + "_" + varname;
+	}
+
+	/**
+	 * @return true if the column of a variable holds the ids of
+	 *         {@link #TERM_TABLE}
+	 */
+	boolean isTermColumn(String varname) {
+		return isDictionaryTerms()
+				&& this.getIndexGraph().getLiteralType(varname) == null;
+	}
+
+	/**
+	 * @return the SQL type of the column of a variable
+	 */
+	String getVarType(String varname) {
 		LiteralDef literalDef = this.getIndexGraph().getLiteralType(varname);
 		if (literalDef == null) {
-			return "text";
+			return isDictionaryTerms() ? "bigint" : "text";
 		} else {
 			if (literalDef.getType().equals(DataTypeURI.DATETIME)) {
 				return "timestamp without time zone";
@@ -688,9 +1152,79 @@ public class PostgisIndexerSettings implements IndexerSettings {
 		dataSource.setUrl(properties.getProperty("url"));
 		dataSource.setUsername(properties.getProperty("username"));
 		dataSource.setPassword(properties.getProperty("password"));
+		// needed to reach the CopyManager of the postgres connection
+		dataSource.setAccessToUnderlyingConnectionAllowed(true);
+		if (properties.getProperty("reindex-threads") != null) {
+			this.setReindexThreads(Integer.parseInt(properties.getProperty(
+					"reindex-threads").trim()));
+		}
+		if (properties.getProperty("reindex-partitions") != null) {
+			this.setReindexPartitions(Integer.parseInt(properties.getProperty(
+					"reindex-partitions").trim()));
+		}
+		if (properties.getProperty("dedup-cache-size") != null) {
+			this.setDedupCacheSize(Integer.parseInt(properties.getProperty(
+					"dedup-cache-size").trim()));
+		}
+		if (properties.getProperty("async-writes") != null) {
+			this.setAsyncWrites(Boolean.parseBoolean(properties.getProperty(
+					"async-writes").trim()));
+		}
+		if (properties.getProperty("async-queue-size") != null) {
+			this.setAsyncQueueSize(Integer.parseInt(properties.getProperty(
+					"async-queue-size").trim()));
+		}
+		if (properties.getProperty("estimate-ttl") != null) {
+			this.setEstimateTTL(Long.parseLong(properties.getProperty(
+					"estimate-ttl").trim()));
+		}
+		if (properties.getProperty("term-cache-size") != null) {
+			this.setTermCacheSize(Integer.parseInt(properties.getProperty(
+					"term-cache-size").trim()));
+		}
+		if (properties.getProperty("dictionary-terms") != null) {
+			this.setDictionaryTerms(Boolean.parseBoolean(properties
+					.getProperty("dictionary-terms").trim()));
+		}
+		// every connection of the sail borrows its own database connection
+		if (properties.getProperty("max-connections") != null) {
+			dataSource.setMaxActive(Integer.parseInt(properties.getProperty(
+					"max-connections").trim()));
+		}
+		// every reindex thread holds a connection of its own
+		// and so do the background writer and the term dictionary
+		int connections = this.getReindexThreads()
+				+ (this.isDictionaryTerms() ? 3 : 2);
+		if (connections > dataSource.getMaxActive()) {
+			dataSource.setMaxActive(connections);
+		}
 		this.setDataSource(dataSource);
 		this.setIndexGraph((IndexGraph) properties.get("index-graph"));
 		this.tableName = properties.getProperty("index-table");
+		if (properties.getProperty("fetch-size") != null) {
+			this.setFetchSize(Integer.parseInt(properties.getProperty(
+					"fetch-size").trim()));
+		}
+		if (properties.getProperty("batch-size") != null) {
+			this.setBatchSize(Integer.parseInt(properties.getProperty(
+					"batch-size").trim()));
+		}
+		if (properties.getProperty("bulk-reindex") != null) {
+			this.setBulkReindex(Boolean.parseBoolean(properties.getProperty(
+					"bulk-reindex").trim()));
+		}
+		if (properties.getProperty("text-indexes") != null) {
+			this.setTextIndexes(Boolean.parseBoolean(properties.getProperty(
+					"text-indexes").trim()));
+		}
+		if (properties.getProperty("trigram-indexes") != null) {
+			this.setTrigramIndexes(Boolean.parseBoolean(properties.getProperty(
+					"trigram-indexes").trim()));
+		}
+		if (properties.getProperty("search-config") != null) {
+			this.setDefaultSearchConfig(properties.getProperty(
+					"search-config").trim());
+		}
 	}
 
 	public String getTableName() {
@@ -20,6 +20,7 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Date;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
@@ -41,38 +42,71 @@ public class PostgisIteration implements
 	private boolean hasNext;
 	private boolean closed;
 	private int toFetchsize = -1;
-	private int limitIndex;
-//	private int fetchTimes = 0;
 	private int fetchedSize = 0;
+	private KeysetPaging paging;
+	private Object[] lastKey;
+	private BindingSet parent;
 	private ValueFactory valueFactory;
 	// List<? extends ResultBinding> bindings;
 //	private Map<String, String> nameMapping;
 	private Map<String, LiteralDef> literalMaps;
 	private ValueCreator[] creators;
-
-
+	private TermCache<Value> termCache;
+
+
+	/**
+	 * Iterates a query with a limit, that is read in pages when more rows are
+	 * needed than the limit.
+	 * 
+	 * @param ps
+	 *            the first page, limited to <code>limit + 1</code> rows
+	 * @param parent
+	 *            the bindings the results extend, may be null
+	 * @param resultColumns
+	 *            the number of columns that are bound to a result, the key
+	 *            columns of the paging may follow them
+	 */
 	public PostgisIteration(ValueFactory valueFactory, PreparedStatement ps,
-			Map<String, String> nameMapping, PostgisIndexerSettings settings, int fetchsize, int limitiIndex )
-			throws SQLException {
-		this.toFetchsize = fetchsize + 1;
-		this.limitIndex = limitiIndex;
-		ps.setInt(this.limitIndex, this.toFetchsize);
-		init(valueFactory, ps, nameMapping, settings);
+			Map<String, String> nameMapping, Map<String, LiteralDef> literalDefs,
+			TermCache<Value> termCache, BindingSet parent, int resultColumns,
+			int limit, KeysetPaging paging) throws SQLException {
+		this.toFetchsize = limit + 1;
+		this.paging = paging;
+		this.parent = parent;
+		this.termCache = termCache;
+		init(valueFactory, ps, nameMapping, literalDefs, resultColumns);
 	}
 
+	/**
+	 * @param nameMapping
+	 *            the query variable of every result column, by column label
+	 * @param literalDefs
+	 *            the literal definition of the literal columns, by column
+	 *            label, the other columns hold URIs
+	 * @param termCache
+	 *            the values of the terms that were read before, may be null.
+	 *            The URI columns hold the text of the URIs, the query decodes
+	 *            the ids of a dictionary encoded table.
+	 * @param parent
+	 *            the bindings the results extend, may be null. A row with a
+	 *            different value for a variable that is bound in the parent
+	 *            is skipped.
+	 */
 	public PostgisIteration(ValueFactory valueFactory, PreparedStatement ps,
-			Map<String, String> nameMapping, PostgisIndexerSettings settings)
-			throws SQLException {
+			Map<String, String> nameMapping, Map<String, LiteralDef> literalDefs,
+			TermCache<Value> termCache, BindingSet parent) throws SQLException {
 
 		// ------------------------------------------------------
-		init(valueFactory, ps, nameMapping, settings);
+		this.parent = parent;
+		this.termCache = termCache;
+		init(valueFactory, ps, nameMapping, literalDefs, -1);
 
 		// this.bindings = bindings;
 	}
 	
 	private void init(ValueFactory valueFactory, PreparedStatement ps,
-			Map<String, String> nameMapping, PostgisIndexerSettings settings)
-			throws SQLException {
+			Map<String, String> nameMapping, Map<String, LiteralDef> literalDefs,
+			int resultColumns) throws SQLException {
 		// long t1 = System.currentTimeMillis();
 		this.results = ps.executeQuery();
 		// int count =0;
@@ -86,10 +120,9 @@ public class PostgisIteration implements
 		// ------------------------------------------------------
 
 //		this.nameMapping = nameMapping;
-		this.literalMaps = settings.getIndexGraph().getLiteralDefMap();
+		this.literalMaps = literalDefs;
 
 		try {
-			// this.results.setFetchSize(settings.getFetchSize());
 			// System.out.println(ps.toString());
 			this.hasNext = results.next();
 		} catch (SQLException e) {
@@ -101,7 +134,8 @@ public class PostgisIteration implements
 		this.valueFactory = valueFactory;
 
 		ResultSetMetaData metaData = results.getMetaData();
-		int columns = metaData.getColumnCount();
+		int columns = resultColumns < 0 ? metaData.getColumnCount()
+				: resultColumns;
 		this.creators = new ValueCreator[columns];
 
 		for (int i = 0; i < columns; i++) {
@@ -114,6 +148,14 @@ public class PostgisIteration implements
 						nameMapping.get(columnName));
 			}
 		}
+		try {
+			if (hasNext && !isCompatible()) {
+				advance();
+			}
+		} catch (SQLException e) {
+			internalQuietClose();
+			throw e;
+		}
 	}
 
 	@Override
@@ -155,7 +197,18 @@ public class PostgisIteration implements
 		@Override
 		public Value createValue(ResultSet resultSet, int i)
 				throws SQLException {
-			return valueFactory.createURI(resultSet.getString(i));
+			String uri = resultSet.getString(i);
+			if (uri == null) {
+				return null;
+			}
+			if (termCache == null) {
+				return valueFactory.createURI(uri);
+			}
+			Value value = termCache.get(uri);
+			if (value == null) {
+				value = termCache.put(uri, valueFactory.createURI(uri));
+			}
+			return value;
 		}
 	}
 
@@ -178,6 +231,25 @@ public class PostgisIteration implements
 		public Value createValue(ResultSet resultSet, int i)
 				throws SQLException {
 			Object object = resultSet.getObject(i);
+			// the minimum or maximum of no rows
+			if (object == null) {
+				return null;
+			}
+			// geometries rarely repeat, they are not cached
+			if (termCache == null
+					|| !(object instanceof String || object instanceof Number
+							|| object instanceof Date)) {
+				return createLiteral(object);
+			}
+			Object key = TermCache.literalKey(typeURI, object);
+			Value value = termCache.get(key);
+			if (value == null) {
+				value = termCache.put(key, createLiteral(object));
+			}
+			return value;
+		}
+
+		private Value createLiteral(Object object) {
 			if (object instanceof Timestamp) {
 				return valueFactory.createLiteral(DateFormatter.getInstance().format(object),
 						typeURI);
@@ -192,18 +264,19 @@ public class PostgisIteration implements
 		if (!hasNext || closed)
 			throw new NoSuchElementException();
 		try {
-			QueryBindingSet result = new QueryBindingSet(this.creators.length);
+			QueryBindingSet result = parent == null ? new QueryBindingSet(
+					this.creators.length) : new QueryBindingSet(parent);
 			for (int i = 0; i < this.creators.length; i++) {
 				ValueCreator creator = creators[i];
 
-				result.addBinding(creator.getName(),
-						creator.createValue(results, i + 1));
-			}
-			fetchedSize ++;
-			hasNext = results.next();
-			if (!hasNext && toFetchsize > 0) {
-				fetchNext();
+				if (!result.hasBinding(creator.getName())) {
+					Value value = creator.createValue(results, i + 1);
+					if (value != null) {
+						result.addBinding(creator.getName(), value);
+					}
+				}
 			}
+			advance();
 			if (!hasNext)
 				internalClose();
 			return result;
@@ -216,23 +289,61 @@ public class PostgisIteration implements
 		}
 	}
 
+	/**
+	 * Moves to the next row that agrees with the parent bindings.
+	 */
+	private void advance() throws SQLException {
+		do {
+			fetchedSize++;
+			if (paging != null) {
+				lastKey = paging.getKey(results);
+			}
+			hasNext = results.next();
+			if (!hasNext && toFetchsize > 0) {
+				fetchNext();
+			}
+		} while (hasNext && !isCompatible());
+	}
+
+	/**
+	 * @return false if the current row has a different value for a variable
+	 *         that is bound in the parent bindings
+	 */
+	private boolean isCompatible() throws SQLException {
+		if (parent == null || parent.size() == 0) {
+			return true;
+		}
+		for (int i = 0; i < this.creators.length; i++) {
+			Value bound = parent.getValue(creators[i].getName());
+			if (bound != null
+					&& !bound.equals(creators[i].createValue(results, i + 1))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the next page when the current one was full, which means the
+	 * query may have more rows. The next page starts after the key of the
+	 * last row and is twice as large, so a query needs a few pages even when
+	 * most of its rows are filtered out after it.
+	 */
 	private void fetchNext() throws SQLException {
-		
-//		ps.setInt(this.limitIndex, ((int) (Math.pow(2, ++fetchTimes)) * toFetchsize));
-		if (fetchedSize == this.toFetchsize) {
-			ps.setInt(limitIndex, Integer.MAX_VALUE);
-			results.close();
-			results = ps.executeQuery();	
-			hasNext = results.absolute(fetchedSize + 1);
-			
+		if (fetchedSize == this.toFetchsize && paging != null) {
+			int pageSize = KeysetPaging.nextPageSize(toFetchsize);
+			PreparedStatement next = paging.prepare(lastKey, pageSize);
+			try {
+				results.close();
+				ps.close();
+			} finally {
+				ps = next;
+			}
+			results = ps.executeQuery();
+			fetchedSize = 0;
+			toFetchsize = pageSize;
+			hasNext = results.next();
 		}
-		
-//		if (fetchedSize == ((int) (Math.pow(2, fetchTimes)) * toFetchsize )) {
-//			ps.setInt(this.limitIndex, ((int) (Math.pow(2, ++fetchTimes)) * toFetchsize));
-//			results.close();
-//			results = ps.executeQuery();	
-//			hasNext = results.absolute(fetchedSize + 1);
-//		}
 	}
 
 	@Override
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the most recently seen keys, up to a fixed number. It is only
+ * used to avoid sending the same index row to the database twice in a short
+ * time; correctness never depends on it, since a key that is forgotten is
+ * simply written again and ignored by the database.
+ *
+ * @author liangyu
+ *
+ */
+class RecentlySeenFilter<K> {
+	private final LinkedHashMap<K, Boolean> seen;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of keys to remember, 0 to remember none
+	 *            and let every key pass
+	 */
+	RecentlySeenFilter(final int capacity) {
+		if (capacity <= 0) {
+			this.seen = null;
+			return;
+		}
+		this.seen = new LinkedHashMap<K, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Boolean> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return true if the key was not seen recently
+	 */
+	boolean add(K key) {
+		return seen == null || seen.put(key, Boolean.TRUE) == null;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the values that are built from the columns of the results of index
+ * queries, so a term that repeats in many rows, like the URI of a sensor, is
+ * built once and the same instance is returned for all the rows of all the
+ * iterations of an index table. The {@link TermDictionary} keeps the ids of
+ * terms in a cache of its own.
+ * <p>
+ * The cache holds a fixed number of terms and counts the hits of every term.
+ * When it is full, the least frequently hit quarter of the terms is evicted,
+ * terms with as many hits as the last one evicted staying cached, and the
+ * hits of the others are halved, so a term that was hit often a
+ * long time ago is evicted in the end. Lookups do not lock, it is safe to
+ * use from several threads.
+ *
+ * @author liangyu
+ *
+ */
+class TermCache<V> {
+	private final int capacity;
+	private final ConcurrentHashMap<Object, Entry<V>> terms;
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * @param capacity
+	 *            the maximum number of terms to cache
+	 */
+	TermCache(int capacity) {
+		this.capacity = capacity;
+		this.terms = new ConcurrentHashMap<Object, Entry<V>>(Math.min(capacity,
+				1024));
+	}
+
+	/**
+	 * @return the key of a literal column value, which only has to be
+	 *         formatted once
+	 */
+	static Object literalKey(String type, Object object) {
+		return Arrays.asList(type, object);
+	}
+
+	/**
+	 * @param key
+	 *            the text of a URI, or a {@link #literalKey(String, Object)}
+	 * @return the cached value, or null if it is not cached
+	 */
+	V get(Object key) {
+		Entry<V> entry = terms.get(key);
+		if (entry == null) {
+			return null;
+		}
+		entry.hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Caches a value, unless another thread cached one for the key first.
+	 *
+	 * @return the cached value of the key
+	 */
+	V put(Object key, V value) {
+		Entry<V> existing = terms.putIfAbsent(key, new Entry<V>(value));
+		if (existing != null) {
+			return existing.value;
+		}
+		if (terms.size() > capacity) {
+			evict();
+		}
+		return value;
+	}
+
+	/**
+	 * @return the number of cached terms
+	 */
+	int size() {
+		return terms.size();
+	}
+
+	/**
+	 * Evicts the terms with the fewest hits, by one thread at a time; the
+	 * other threads do not wait for it.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int[] hits = new int[terms.size()];
+			int count = 0;
+			for (Entry<V> entry : terms.values()) {
+				if (count == hits.length) {
+					break;
+				}
+				hits[count++] = entry.hits.get();
+			}
+			int evict = Math.min(count, Math.max(count / 4, count - capacity));
+			if (evict == 0) {
+				return;
+			}
+			Arrays.sort(hits, 0, count);
+			int threshold = hits[evict - 1];
+			// the terms with fewer hits than the threshold go first, then as
+			// many of the ones at the threshold as are needed
+			int ties = evict;
+			for (int i = 0; i < evict; i++) {
+				if (hits[i] < threshold) {
+					ties--;
+				}
+			}
+			for (Iterator<Entry<V>> iterator = terms.values().iterator(); iterator
+					.hasNext();) {
+				Entry<V> entry = iterator.next();
+				int entryHits = entry.hits.get();
+				if (evict > 0 && (entryHits < threshold
+						|| entryHits == threshold && ties-- > 0)) {
+					iterator.remove();
+					evict--;
+				} else {
+					// hits counted meanwhile may be lost, they only rank
+					// the terms
+					entry.hits.set(entryHits / 2);
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	private static final class Entry<V> {
+		private final V value;
+		private final AtomicInteger hits = new AtomicInteger();
+
+		Entry(V value) {
+			this.value = value;
+		}
+	}
+}
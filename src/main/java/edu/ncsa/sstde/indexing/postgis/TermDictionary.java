@@ -0,0 +1,258 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import com.useekm.indexing.postgis.IndexedStatement;
+
+/**
+ * Maps the URIs of the index tables with
+ * {@link PostgisIndexerSettings#isDictionaryTerms()} to the bigint ids their
+ * columns hold. The terms of all the index tables of a database are kept in
+ * one table, {@link PostgisIndexerSettings#TERM_TABLE}, so the id columns of
+ * different index tables can be joined.
+ * <p>
+ * The terms of the rows that are written are encoded a batch at a time: the
+ * terms that are not cached are added with one multi-row insert that skips
+ * the terms that exist, and their ids are read with one lookup. The results
+ * of queries are decoded by the queries themselves, with a subquery on the
+ * term table.
+ * <p>
+ * The ids of the terms that are written or looked up are cached, only a miss
+ * goes to the database. The dictionary has a connection of its own in
+ * auto-commit mode: a new term is committed at once, so an id that is cached
+ * is never rolled back with the rows that use it, and the connection is free
+ * while another one copies rows into a table, until {@link #close()} gives it
+ * back. The database is accessed by one thread at a time.
+ *
+ * @author liangyu
+ *
+ */
+class TermDictionary {
+	/** no term has this id, it matches no row */
+	static final long NO_ID = 0;
+
+	private final DataSource dataSource;
+	private final TermCache<Long> ids;
+	private Connection connection;
+	private boolean closed = false;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of ids to cache
+	 */
+	TermDictionary(DataSource dataSource, int capacity) {
+		this.dataSource = dataSource;
+		this.ids = new TermCache<Long>(capacity);
+	}
+
+	/**
+	 * @return the statement that creates the term table, if it does not
+	 *         exist. The unique constraint on the term is the index the ids
+	 *         are looked up with.
+	 */
+	static String getCreateTableSQL() {
+		return "CREATE TABLE IF NOT EXISTS " + PostgisIndexerSettings.TERM_TABLE
+				+ " (id bigserial PRIMARY KEY, term text NOT NULL UNIQUE);";
+	}
+
+	/**
+	 * @return the id of a term, the term is added to the dictionary if it is
+	 *         not in it yet
+	 */
+	long getId(String term) throws SQLException {
+		Long id = ids.get(term);
+		if (id == null) {
+			id = getIds(Collections.singleton(term)).get(term);
+		}
+		return id;
+	}
+
+	/**
+	 * Replaces the terms in some columns of rows with their ids, the terms
+	 * are added to the dictionary if they are not in it yet.
+	 *
+	 * @param columns
+	 *            the columns that hold a term
+	 */
+	void encode(List<Object[]> rows, int[] columns) throws SQLException {
+		Set<String> terms = new HashSet<String>();
+		for (Object[] row : rows) {
+			for (int column : columns) {
+				if (row[column] instanceof String) {
+					terms.add((String) row[column]);
+				}
+			}
+		}
+		if (terms.isEmpty()) {
+			return;
+		}
+		Map<String, Long> termIds = getIds(terms);
+		for (Object[] row : rows) {
+			for (int column : columns) {
+				if (row[column] instanceof String) {
+					row[column] = termIds.get(row[column]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the ids of the terms by term, the terms that are not in the
+	 *         dictionary yet are added to it
+	 */
+	Map<String, Long> getIds(Collection<String> terms) throws SQLException {
+		Map<String, Long> result = new HashMap<String, Long>();
+		List<String> missing = new ArrayList<String>();
+		for (String term : terms) {
+			Long id = ids.get(term);
+			if (id == null) {
+				missing.add(term);
+			} else {
+				result.put(term, id);
+			}
+		}
+		if (!missing.isEmpty()) {
+			// in the same order for all writers, so they do not deadlock
+			Collections.sort(missing);
+			Map<String, Long> added = addTerms(missing);
+			for (String term : missing) {
+				Long id = added.get(term);
+				if (id == null) {
+					throw new SQLException("could not add term " + term
+							+ " to " + PostgisIndexerSettings.TERM_TABLE);
+				}
+				result.put(term, ids.put(term, id));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the ids of the terms that are in the dictionary, by term. A term
+	 *         that is not in the dictionary is not in any index table either.
+	 */
+	Map<String, Long> findIds(Collection<String> terms) throws SQLException {
+		Map<String, Long> result = new HashMap<String, Long>();
+		List<String> missing = new ArrayList<String>();
+		for (String term : terms) {
+			Long id = ids.get(term);
+			if (id == null) {
+				missing.add(term);
+			} else {
+				result.put(term, id);
+			}
+		}
+		if (!missing.isEmpty()) {
+			for (Map.Entry<String, Long> entry : selectIds(missing).entrySet()) {
+				result.put(entry.getKey(),
+						ids.put(entry.getKey(), entry.getValue()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Inserts the terms, skipping the ones another writer inserted already,
+	 * and looks up the ids of all of them.
+	 */
+	private synchronized Map<String, Long> addTerms(List<String> terms)
+			throws SQLException {
+		PreparedStatement ps = null;
+		try {
+			ps = getConnection().prepareStatement(
+					"INSERT INTO " + PostgisIndexerSettings.TERM_TABLE
+							+ " (term) SELECT unnest(?::text[])"
+							+ " ON CONFLICT (term) DO NOTHING");
+			ps.setArray(1, getConnection().createArrayOf("text",
+					terms.toArray()));
+			ps.executeUpdate();
+		} catch (SQLException e) {
+			reset();
+			throw e;
+		} finally {
+			IndexedStatement.closeQuietly(ps);
+		}
+		return selectIds(terms);
+	}
+
+	private synchronized Map<String, Long> selectIds(List<String> terms)
+			throws SQLException {
+		Map<String, Long> result = new HashMap<String, Long>();
+		PreparedStatement ps = null;
+		ResultSet results = null;
+		try {
+			ps = getConnection().prepareStatement(
+					"SELECT term, id FROM " + PostgisIndexerSettings.TERM_TABLE
+							+ " WHERE term=ANY(?)");
+			ps.setArray(1, getConnection().createArrayOf("text",
+					terms.toArray()));
+			results = ps.executeQuery();
+			while (results.next()) {
+				result.put(results.getString(1), results.getLong(2));
+			}
+			return result;
+		} catch (SQLException e) {
+			reset();
+			throw e;
+		} finally {
+			IndexedStatement.closeQuietly(results);
+			IndexedStatement.closeQuietly(ps);
+		}
+	}
+
+	private Connection getConnection() throws SQLException {
+		if (closed) {
+			throw new SQLException("the term dictionary is closed");
+		}
+		if (connection == null) {
+			connection = dataSource.getConnection();
+			connection.setAutoCommit(true);
+		}
+		return connection;
+	}
+
+	/**
+	 * Gives the connection back after a failure, the next access borrows a
+	 * new one.
+	 */
+	private void reset() {
+		IndexedStatement.closeQuietly(connection);
+		connection = null;
+	}
+
+	/**
+	 * Gives the connection back to the data source. A thread that still
+	 * writes rows, such as the {@link AsyncIndexWriter} that is stopping,
+	 * can not borrow a new one: the dictionary fails from now on.
+	 */
+	synchronized void close() {
+		closed = true;
+		reset();
+	}
+}
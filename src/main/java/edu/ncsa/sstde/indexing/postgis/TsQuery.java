@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import com.useekm.fulltext.And;
+import com.useekm.fulltext.Binary;
+import com.useekm.fulltext.FulltextParser;
+import com.useekm.fulltext.FulltextSearch;
+import com.useekm.fulltext.Prefix;
+import com.useekm.fulltext.Word;
+
+/**
+ * Compiles a full text query, see {@link FulltextParser}, into the text of a
+ * PostgreSQL <code>tsquery</code>, which is passed to
+ * <code>to_tsquery</code>. Every word is quoted, so it is normalized by the
+ * text search configuration but never read as an operator.
+ * 
+ * @author liangyu
+ * 
+ */
+class TsQuery {
+	private TsQuery() {
+	}
+
+	/**
+	 * @throws com.useekm.fulltext.FulltextParseException
+	 *             if the query is invalid
+	 */
+	static String compile(String query) {
+		StringBuffer result = new StringBuffer();
+		compile(FulltextParser.parse(query), result);
+		return result.toString();
+	}
+
+	private static void compile(FulltextSearch search, StringBuffer result) {
+		if (search instanceof Word) {
+			quote(((Word) search).getWord(), result);
+		} else if (search instanceof Prefix) {
+			quote(((Prefix) search).getArg().getWord(), result);
+			result.append(":*");
+		} else {
+			Binary binary = (Binary) search;
+			result.append('(');
+			compile(binary.getLhs(), result);
+			result.append(binary instanceof And ? " & " : " | ");
+			compile(binary.getRhs(), result);
+			result.append(')');
+		}
+	}
+
+	private static void quote(String word, StringBuffer result) {
+		result.append('\'');
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (c == '\'' || c == '\\') {
+				result.append(c);
+			}
+			result.append(c);
+		}
+		result.append('\'');
+	}
+}
@@ -4,9 +4,15 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
 public class DateFormatter {
-	private static SimpleDateFormat FORMAT = new SimpleDateFormat(
-			"yyyy-MM-dd'T'HH:mm:ss.SSS");
+	// SimpleDateFormat is not thread-safe, every thread gets its own
+	private static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		}
+	};
+
 	public static DateFormat getInstance(){
-		return FORMAT;
+		return FORMAT.get();
 	}
 }
@@ -13,4 +13,20 @@ public class GeoSPARQLVoc {
 	public static boolean isGeoSPARQLPred(String uri) {
 		return uri.startsWith("http://rdf.opensahara.com/search#");
 	}
+
+	/**
+	 * @return true for the full text search function, which shares the
+	 *         namespace of the spatial functions
+	 */
+	public static boolean isTextSearchPred(String uri) {
+		return "http://rdf.opensahara.com/search#text".equals(uri);
+	}
+
+	/**
+	 * @return true for the distance function, which is not a filter but can
+	 *         order the results of a nearest neighbour query
+	 */
+	public static boolean isDistancePred(String uri) {
+		return "http://rdf.opensahara.com/search#distance".equals(uri);
+	}
 }
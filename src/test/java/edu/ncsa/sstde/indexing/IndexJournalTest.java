@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+public class IndexJournalTest {
+	private static final ValueFactory VF = ValueFactoryImpl.getInstance();
+
+	private File directory;
+	private IndexJournal journal;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		journal = new IndexJournal(directory, IndexJournal.DEFAULT_SEGMENT_SIZE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		journal.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private static Statement statement(int i) {
+		return VF.createStatement(VF.createURI("urn:s" + i),
+				VF.createURI("urn:p"), VF.createLiteral(i));
+	}
+
+	private long append(int i) throws IOException {
+		return journal.append(Collections.singletonList(statement(i)),
+				Collections.<Statement> emptyList());
+	}
+
+	private List<Statement> replay(long from) throws IOException {
+		final List<Statement> result = new ArrayList<Statement>();
+		journal.replay(from, VF, new IndexJournal.RecordHandler() {
+			@Override
+			public void handle(long end, List<Statement> added,
+					List<Statement> removed) {
+				result.addAll(added);
+				result.addAll(removed);
+			}
+		});
+		return result;
+	}
+
+	@Test
+	public void replaysAllKindsOfTerms() throws IOException {
+		List<Statement> added = Arrays.asList(
+				VF.createStatement(VF.createURI("urn:a"), VF.createURI("urn:p"),
+						VF.createLiteral("plain")),
+				VF.createStatement(VF.createBNode("b1"), VF.createURI("urn:p"),
+						VF.createLiteral("taal", "nl")),
+				VF.createStatement(VF.createURI("urn:a"), VF.createURI("urn:p"),
+						VF.createLiteral("1.5", XMLSchema.DOUBLE)));
+		List<Statement> removed = Collections.singletonList(VF
+				.createStatement(VF.createURI("urn:a"), VF.createURI("urn:p"),
+						VF.createURI("urn:o")));
+		journal.sync(journal.append(added, removed));
+		List<Statement> expected = new ArrayList<Statement>(added);
+		expected.addAll(removed);
+		assertEquals(expected, replay(0));
+	}
+
+	@Test
+	public void acknowledgementWaitsForEarlierRecords() throws IOException {
+		long first = append(1);
+		long second = append(2);
+		long third = append(3);
+		journal.acknowledge("i", second);
+		assertEquals(0, journal.getAcknowledged("i"));
+		journal.acknowledge("i", first);
+		assertEquals(second, journal.getAcknowledged("i"));
+		journal.acknowledge("i", third);
+		assertEquals(third, journal.getAcknowledged("i"));
+	}
+
+	@Test
+	public void failedRecordIsReplayedAfterRestart() throws IOException {
+		long first = append(1);
+		long second = append(2);
+		journal.sync(second);
+		// the commit of the first record failed, the second one succeeded
+		journal.acknowledge("i", second);
+		journal.close();
+		journal = new IndexJournal(directory,
+				IndexJournal.DEFAULT_SEGMENT_SIZE);
+		long from = journal.getAcknowledged("i");
+		assertEquals(0, from);
+		assertEquals(Arrays.asList(statement(1), statement(2)), replay(from));
+		journal.acknowledge("i", first);
+		journal.acknowledge("i", second);
+		assertEquals(second, journal.getAcknowledged("i"));
+	}
+
+	@Test
+	public void readsOneRecordAgain() throws IOException {
+		append(1);
+		long second = append(2);
+		append(3);
+		final List<Statement> read = new ArrayList<Statement>();
+		journal.read(second, VF, new IndexJournal.RecordHandler() {
+			@Override
+			public void handle(long end, List<Statement> added,
+					List<Statement> removed) {
+				read.addAll(added);
+			}
+		});
+		assertEquals(Collections.singletonList(statement(2)), read);
+	}
+
+	@Test
+	public void syncCoversRolledSegments() throws IOException {
+		journal.close();
+		journal = new IndexJournal(directory, 64);
+		long first = append(1);
+		long second = append(2);
+		journal.sync(first);
+		journal.sync(second);
+		assertEquals(Arrays.asList(statement(1), statement(2)), replay(0));
+	}
+
+	@Test
+	public void compactKeepsUnacknowledgedSegments() throws IOException {
+		journal.close();
+		journal = new IndexJournal(directory, 64);
+		long first = append(1);
+		long second = append(2);
+		long third = append(3);
+		journal.acknowledge("i", second);
+		assertEquals(0, journal.compact(Collections.singleton("i")));
+		journal.acknowledge("i", first);
+		journal.acknowledge("i", third);
+		assertEquals(2, journal.compact(Collections.singleton("i")));
+		assertEquals(Collections.emptyList(), replay(third));
+	}
+
+	@Test
+	public void damagedTailIsDropped() throws IOException {
+		long first = append(1);
+		journal.sync(first);
+		journal.close();
+		File segment = directory.listFiles()[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			file.seek(file.length());
+			file.writeInt(1000);
+			file.writeInt(0);
+		} finally {
+			file.close();
+		}
+		journal = new IndexJournal(directory,
+				IndexJournal.DEFAULT_SEGMENT_SIZE);
+		assertEquals(first, journal.getEnd());
+		assertEquals(Collections.singletonList(statement(1)), replay(0));
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import info.aduna.iteration.CloseableIteratorIteration;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+import org.openrdf.sail.SailConnection;
+import org.openrdf.sail.SailException;
+
+import com.useekm.indexing.exception.IndexException;
+import com.useekm.indexing.internal.Indexer;
+
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
+
+public class IndexManagerTest {
+	private static final ValueFactory VF = ValueFactoryImpl.getInstance();
+
+	private File directory;
+	private IndexManager manager;
+	private final Indexer indexer = mock(Indexer.class);
+	private final Indexer session = mock(Indexer.class);
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		manager = new IndexManager();
+		manager.configure(new ByteArrayInputStream(("<indexing><journal directory=\""
+				+ directory.getPath() + "\"/></indexing>").getBytes("UTF-8")));
+		when(indexer.getName()).thenReturn("idx");
+		manager.getIndexers().add(indexer);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		manager.getJournal().close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private static Statement statement(int i) {
+		return VF.createStatement(VF.createURI("urn:s" + i),
+				VF.createURI("urn:p"), VF.createLiteral(i));
+	}
+
+	private long journal(int i) throws Exception {
+		return manager.journal(Collections.singletonList(statement(i)),
+				Collections.<Statement> emptyList());
+	}
+
+	/**
+	 * @return a connection to a store that holds every statement
+	 */
+	private static SailConnection createStore() {
+		return mock(SailConnection.class, new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				if (!invocation.getMethod().getName().equals("getStatements")) {
+					return null;
+				}
+				Object[] arguments = invocation.getArguments();
+				List<Statement> found = Collections.singletonList(VF
+						.createStatement((Resource) arguments[0],
+								(URI) arguments[1], (Value) arguments[2]));
+				return new CloseableIteratorIteration<Statement, SailException>(
+						found.iterator());
+			}
+		});
+	}
+
+	/**
+	 * Acknowledges a record whose changes were written in the background
+	 * with the watermark.
+	 */
+	private void acknowledge(long offset, long watermark, boolean failed)
+			throws Exception {
+		when(session.takeSubmittedWatermarks()).thenReturn(
+				new long[] { watermark });
+		when(indexer.getAppliedWatermark()).thenReturn(watermark);
+		when(indexer.removeFailedWatermark(watermark)).thenReturn(failed);
+		manager.acknowledge(offset,
+				Collections.singletonMap("idx", session));
+	}
+
+	@Test
+	public void acknowledgesWrittenRecords() throws Exception {
+		long first = journal(1);
+		acknowledge(first, 1, false);
+		assertEquals(first, manager.getJournal().getAcknowledged("idx"));
+	}
+
+	@Test
+	public void acknowledgesSynchronousWrites() throws Exception {
+		long first = journal(1);
+		when(session.takeSubmittedWatermarks()).thenReturn(new long[0]);
+		manager.acknowledge(first, Collections.singletonMap("idx", session));
+		assertEquals(first, manager.getJournal().getAcknowledged("idx"));
+	}
+
+	@Test
+	public void keepsRecordOfFailedSubmission() throws Exception {
+		long first = journal(1);
+		long second = journal(2);
+		acknowledge(first, 1, true);
+		acknowledge(second, 2, false);
+		// the record of the failed submission holds the journal back, so it
+		// is replayed
+		assertEquals(0, manager.getJournal().getAcknowledged("idx"));
+	}
+
+	@Test
+	public void waitsForTheWatermark() throws Exception {
+		long first = journal(1);
+		when(session.takeSubmittedWatermarks()).thenReturn(new long[] { 1 });
+		when(indexer.getAppliedWatermark()).thenReturn(0L);
+		Map<String, Indexer> sessions = Collections.singletonMap("idx",
+				session);
+		manager.acknowledge(first, sessions);
+		assertEquals(0, manager.getJournal().getAcknowledged("idx"));
+		when(indexer.getAppliedWatermark()).thenReturn(1L);
+		manager.acknowledge(-1);
+		assertEquals(first, manager.getJournal().getAcknowledged("idx"));
+	}
+
+	@Test
+	public void writesTheRecordOfAFailedCommitAgain() throws Exception {
+		long first = journal(1);
+		long second = journal(2);
+		Map<String, Indexer> sessions = Collections.singletonMap("idx",
+				session);
+		when(session.takeSubmittedWatermarks()).thenReturn(new long[0]);
+		SailConnection store = createStore();
+		doThrow(new IndexException("index is gone")).when(session).addBatch(
+				any(SailConnection.class), anyCollectionOf(Statement.class));
+		manager.fail(first, sessions);
+		manager.retryFailed(store, sessions);
+		manager.acknowledge(second, sessions);
+		assertEquals(0, manager.getJournal().getAcknowledged("idx"));
+
+		// the next commit writes the record
+		reset(session);
+		when(session.takeSubmittedWatermarks()).thenReturn(new long[0]);
+		manager.retryFailed(store, sessions);
+		verify(session).addBatch(store, Collections.singletonList(statement(1)));
+		assertEquals(second, manager.getJournal().getAcknowledged("idx"));
+	}
+
+	private static TupleExpr parse(String where) throws Exception {
+		return new SPARQLParser().parseQuery("SELECT * WHERE {" + where + "}",
+				null).getTupleExpr();
+	}
+
+	/**
+	 * @return an indexer whose graph is a single pattern
+	 */
+	private static Indexer createIndexer(String name) throws Exception {
+		IndexGraph indexGraph = mock(IndexGraph.class);
+		when(indexGraph.getPatterns()).thenReturn(
+				new ArrayList<StatementPattern>(GraphAnalyzer
+						.getStatementPatterns(parse("?x <urn:p> ?y"))));
+		IndexerSettings settings = mock(IndexerSettings.class);
+		when(settings.getIndexGraph()).thenReturn(indexGraph);
+		Indexer indexer = mock(Indexer.class);
+		when(indexer.getName()).thenReturn(name);
+		when(indexer.getSettings()).thenReturn(settings);
+		return indexer;
+	}
+
+	@Test
+	public void ranksCachedMatchesAgain() throws Exception {
+		IndexManager ranking = new IndexManager();
+		ranking.getIndexers().add(createIndexer("a"));
+		ranking.getIndexers().add(createIndexer("b"));
+		final String[] cheapest = { "a" };
+		IndexCostEstimator estimator = mock(IndexCostEstimator.class);
+		when(estimator.estimateCost(any(MatchedIndexedGraph.class),
+				any(TupleExpr.class))).thenAnswer(new Answer<Double>() {
+			@Override
+			public Double answer(InvocationOnMock invocation) {
+				MatchedIndexedGraph graph = (MatchedIndexedGraph) invocation
+						.getArguments()[0];
+				return graph.getIndexer().getName().equals(cheapest[0]) ? 1.0
+						: 2.0;
+			}
+		});
+		ranking.setCostEstimator(estimator);
+
+		List<MatchedIndexedGraph> graphs = ranking.findIndexGraphs(
+				parse("?s <urn:p> \"1\""), null);
+		assertEquals(1, graphs.size());
+		assertEquals("a", graphs.get(0).getIndexer().getName());
+
+		// the same shape with other constants is ranked by its own estimates
+		cheapest[0] = "b";
+		graphs = ranking.findIndexGraphs(parse("?s <urn:p> \"2\""), null);
+		assertEquals(1, graphs.size());
+		assertEquals("b", graphs.get(0).getIndexer().getName());
+		verify(estimator, times(4)).estimateCost(
+				any(MatchedIndexedGraph.class), any(TupleExpr.class));
+	}
+
+	@Test
+	public void createsSessionsOfEveryIndexer() throws Exception {
+		IndexManager sessions = new IndexManager();
+		Indexer a = createIndexer("a");
+		Indexer b = createIndexer("b");
+		sessions.getIndexers().add(a);
+		sessions.getIndexers().add(b);
+		Indexer sessionA = mock(Indexer.class);
+		Indexer sessionB = mock(Indexer.class);
+		when(a.getSettings().createIndexer()).thenReturn(sessionA);
+		when(b.getSettings().createIndexer()).thenReturn(sessionB);
+
+		Map<String, Indexer> created = sessions.createSessions();
+		assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(created
+				.keySet()));
+		assertSame(sessionA, created.get("a"));
+		verify(sessionA).setName("a");
+		verify(sessionB).setName("b");
+	}
+
+	@Test
+	public void matchesGraphsToTheSessions() throws Exception {
+		IndexManager matching = new IndexManager();
+		matching.getIndexers().add(createIndexer("a"));
+		Indexer session = createIndexer("a");
+		List<MatchedIndexedGraph> graphs = matching.findIndexGraphs(
+				parse("?s <urn:p> \"1\""), Collections.singletonMap("a",
+						session));
+		assertEquals(1, graphs.size());
+		assertSame(session, graphs.get(0).getIndexer());
+	}
+}
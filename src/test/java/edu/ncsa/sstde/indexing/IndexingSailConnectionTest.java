@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+import org.openrdf.sail.SailConnection;
+
+import com.useekm.indexing.internal.Indexer;
+
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
+
+public class IndexingSailConnectionTest {
+	private final Indexer indexer = mock(Indexer.class);
+
+	private static List<StatementPattern> parse(String where)
+			throws Exception {
+		return GraphAnalyzer.getStatementPatterns(new SPARQLParser()
+				.parseQuery("SELECT * WHERE {" + where + "}", null)
+				.getTupleExpr());
+	}
+
+	/**
+	 * @return a graph of the mocked indexer that selects one pattern
+	 */
+	private MatchedIndexedGraph match(List<StatementPattern> patterns,
+			int selected) throws Exception {
+		IndexGraph indexGraph = mock(IndexGraph.class);
+		when(indexGraph.getPatterns()).thenReturn(
+				new ArrayList<StatementPattern>(parse("?x ?p ?y")));
+		MatchedIndexedGraph graph = new GraphAnalyzer(indexGraph).replay(
+				patterns, Collections.singletonList(patterns.get(selected)));
+		graph.setIndexer(indexer);
+		return graph;
+	}
+
+	/**
+	 * @return the graphs of two patterns of a query after fusing them
+	 */
+	private List<MatchedIndexedGraph> fuse(String where, int first,
+			int second) throws Exception {
+		when(indexer.canFuse(any(MatchedIndexedGraph.class),
+				any(MatchedIndexedGraph.class))).thenReturn(true);
+		List<StatementPattern> patterns = parse(where);
+		return IndexingSailConnection.fuseGraphs(Arrays.asList(
+				match(patterns, first), match(patterns, second)));
+	}
+
+	@Test
+	public void fusesJoinedGraphs() throws Exception {
+		List<MatchedIndexedGraph> graphs = fuse(
+				"?s <urn:a> ?a . ?s <urn:b> ?b . ?s <urn:c> ?c", 0, 2);
+		assertEquals(1, graphs.size());
+		assertEquals(1, graphs.get(0).getFusedGraphs().size());
+	}
+
+	@Test
+	public void doesNotFuseUnionBranches() throws Exception {
+		List<MatchedIndexedGraph> graphs = fuse(
+				"{ ?s <urn:a> ?a } UNION { ?s <urn:b> ?b }", 0, 1);
+		assertEquals(2, graphs.size());
+		assertEquals(0, graphs.get(0).getFusedGraphs().size());
+	}
+
+	@Test
+	public void doesNotFuseOptionalSide() throws Exception {
+		List<MatchedIndexedGraph> graphs = fuse(
+				"?s <urn:a> ?a OPTIONAL { ?s <urn:b> ?b }", 0, 1);
+		assertEquals(2, graphs.size());
+		assertEquals(0, graphs.get(0).getFusedGraphs().size());
+	}
+
+	@Test
+	public void fusesInsideOneOptional() throws Exception {
+		List<MatchedIndexedGraph> graphs = fuse(
+				"?s <urn:a> ?a OPTIONAL { ?s <urn:b> ?b . ?s <urn:c> ?c }", 1, 2);
+		assertEquals(1, graphs.size());
+		assertEquals(1, graphs.get(0).getFusedGraphs().size());
+	}
+
+	@Test
+	public void commitsChunksOfStagedStatements() throws Exception {
+		SailConnection wrapped = mock(SailConnection.class);
+		IndexManager manager = new IndexManager();
+		manager.setMaxStagedStatements(2);
+		IndexingSailConnection connection = new IndexingSailConnection(
+				wrapped, manager, ValueFactoryImpl.getInstance(), null);
+		URI s = new URIImpl("urn:s");
+		URI p = new URIImpl("urn:p");
+		connection.addStatement(s, p, new LiteralImpl("1"));
+		verify(wrapped, never()).commit();
+		connection.addStatement(s, p, new LiteralImpl("2"));
+		verify(wrapped).addStatement(s, p, new LiteralImpl("1"),
+				(Resource) null);
+		verify(wrapped).addStatement(s, p, new LiteralImpl("2"),
+				(Resource) null);
+		verify(wrapped, times(2)).commit();
+
+		// a rollback only discards the statements staged after the chunk
+		connection.addStatement(s, p, new LiteralImpl("3"));
+		connection.rollback();
+		connection.commit();
+		verify(wrapped, never()).addStatement(s, p, new LiteralImpl("3"),
+				(Resource) null);
+	}
+
+	@Test
+	public void commitsChunksOfStagedBytes() throws Exception {
+		SailConnection wrapped = mock(SailConnection.class);
+		IndexManager manager = new IndexManager();
+		manager.setMaxStagedBytes(1000);
+		IndexingSailConnection connection = new IndexingSailConnection(
+				wrapped, manager, ValueFactoryImpl.getInstance(), null);
+		URI s = new URIImpl("urn:s");
+		URI p = new URIImpl("urn:p");
+		connection.addStatement(s, p, new LiteralImpl("short"));
+		verify(wrapped, never()).commit();
+		StringBuffer value = new StringBuffer();
+		for (int i = 0; i < 500; i++) {
+			value.append('x');
+		}
+		connection.addStatement(s, p, new LiteralImpl(value.toString()));
+		verify(wrapped, times(2)).commit();
+	}
+}
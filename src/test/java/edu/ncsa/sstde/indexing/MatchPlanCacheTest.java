@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+
+import com.useekm.indexing.internal.Indexer;
+
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
+
+public class MatchPlanCacheTest {
+	private final MatchPlanCache cache = new MatchPlanCache(
+			Collections.<Indexer> emptyList(), 10);
+
+	private static TupleExpr parse(String where) throws Exception {
+		return new SPARQLParser().parseQuery("SELECT * WHERE {" + where + "}",
+				null).getTupleExpr();
+	}
+
+	private String key(String where) throws Exception {
+		return cache.createKey(parse(where));
+	}
+
+	/**
+	 * @return a cache of one indexer, whose graph is a single pattern
+	 */
+	private static MatchPlanCache createCache(Indexer indexer, int capacity)
+			throws Exception {
+		IndexGraph indexGraph = mock(IndexGraph.class);
+		when(indexGraph.getPatterns()).thenReturn(
+				new ArrayList<StatementPattern>(GraphAnalyzer
+						.getStatementPatterns(parse("?x <urn:p> ?y"))));
+		IndexerSettings settings = mock(IndexerSettings.class);
+		when(settings.getIndexGraph()).thenReturn(indexGraph);
+		when(indexer.getName()).thenReturn("idx");
+		when(indexer.getSettings()).thenReturn(settings);
+		return new MatchPlanCache(Collections.singletonList(indexer), capacity);
+	}
+
+	private static MatchedIndexedGraph match(Indexer indexer,
+			TupleExpr tupleExpr, int selected) {
+		List<StatementPattern> patterns = GraphAnalyzer
+				.getStatementPatterns(tupleExpr);
+		MatchedIndexedGraph graph = new GraphAnalyzer(indexer.getSettings()
+				.getIndexGraph()).replay(patterns,
+				Collections.singletonList(patterns.get(selected)));
+		graph.setIndexer(indexer);
+		return graph;
+	}
+
+	@Test
+	public void replaysMatchesOnTheSameShape() throws Exception {
+		Indexer indexer = mock(Indexer.class);
+		MatchPlanCache plans = createCache(indexer, 10);
+		String where = "?s <urn:q> ?a . ?s <urn:p> ?o";
+		TupleExpr first = parse(where);
+		String key = plans.createKey(first);
+		assertNull(plans.find(key, first));
+		plans.put(key, first, Collections.singletonList(match(indexer, first,
+				1)));
+
+		TupleExpr second = parse(where);
+		List<MatchedIndexedGraph> graphs = plans.find(key, second);
+		assertEquals(1, graphs.size());
+		assertSame(indexer, graphs.get(0).getIndexer());
+		// the match refers to the nodes of the second query
+		assertSame(GraphAnalyzer.getStatementPatterns(second).get(1), graphs
+				.get(0).getSelectedStatements().iterator().next());
+		assertFalse(plans.isUnmatched(key));
+	}
+
+	@Test
+	public void remembersShapesWithoutMatch() throws Exception {
+		MatchPlanCache plans = createCache(mock(Indexer.class), 10);
+		TupleExpr tupleExpr = parse("?s <urn:q> ?a");
+		String key = plans.createKey(tupleExpr);
+		assertFalse(plans.isUnmatched(key));
+		plans.put(key, tupleExpr, Collections.<MatchedIndexedGraph> emptyList());
+		assertTrue(plans.isUnmatched(key));
+		assertNull(plans.find(key, tupleExpr));
+	}
+
+	@Test
+	public void evictsTheLeastRecentShape() throws Exception {
+		MatchPlanCache plans = createCache(mock(Indexer.class), 1);
+		TupleExpr first = parse("?s <urn:q> ?a");
+		TupleExpr second = parse("?s <urn:q> ?a . ?s <urn:r> ?b");
+		plans.put(plans.createKey(first), first,
+				Collections.<MatchedIndexedGraph> emptyList());
+		plans.put(plans.createKey(second), second,
+				Collections.<MatchedIndexedGraph> emptyList());
+		assertFalse(plans.isUnmatched(plans.createKey(first)));
+		assertTrue(plans.isUnmatched(plans.createKey(second)));
+	}
+
+	@Test
+	public void leavesOutConstants() throws Exception {
+		assertEquals(key("?s <urn:p> \"a\" FILTER(?s != <urn:x>)"),
+				key("?s <urn:p> \"b\" FILTER(?s != <urn:y>)"));
+	}
+
+	@Test
+	public void keepsRegexPushdown() throws Exception {
+		assertEquals(key("?s <urn:p> ?o FILTER regex(?o, \"a\", \"i\")"),
+				key("?s <urn:p> ?o FILTER regex(?o, \"b\", \"i\")"));
+		assertFalse(key("?s <urn:p> ?o FILTER regex(?o, \"a\", \"i\")").equals(
+				key("?s <urn:p> ?o FILTER regex(?o, \"a\", \"s\")")));
+		assertFalse(key("?s <urn:p> ?o FILTER regex(?o, \"a\")").equals(
+				key("?s <urn:p> ?o FILTER regex(?o, \"\\\\w\")")));
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SqlRegexTest {
+	@Test
+	public void keepsCommonSyntax() {
+		assertEquals("^ab?(c|d)+[a-z0-9]{2,3}\\.x*?",
+				SqlRegex.translate("^ab?(c|d)+[a-z0-9]{2,3}\\.x*?", null));
+		assertEquals("[^\\]]", SqlRegex.translate("[^\\]]", ""));
+	}
+
+	@Test
+	public void translatesLineTerminators() {
+		assertEquals("a[^\\n\\r\\u0085\\u2028\\u2029]",
+				SqlRegex.translate("a.", null));
+		assertEquals("a(?=(\\r\\n|[\\n\\r\\u0085\\u2028\\u2029])?$)",
+				SqlRegex.translate("a$", null));
+	}
+
+	@Test
+	public void rejectsOtherSyntax() {
+		assertNull(SqlRegex.translate("(a)\\1", null));
+		assertNull(SqlRegex.translate("\\w+", null));
+		assertNull(SqlRegex.translate("(?i)a", null));
+		assertNull(SqlRegex.translate("[[:alpha:]]", null));
+		assertNull(SqlRegex.translate("[a-z-[aeiou]]", null));
+		assertNull(SqlRegex.translate("a**", null));
+		assertNull(SqlRegex.translate("a{x}", null));
+		assertNull(SqlRegex.translate("(a", null));
+		assertNull(SqlRegex.translate("***:a", null));
+	}
+
+	@Test
+	public void acceptsOnlyCaseInsensitiveFlag() {
+		assertEquals("abc", SqlRegex.translate("abc", "i"));
+		assertNull(SqlRegex.translate("abc", "s"));
+		assertNull(SqlRegex.translate("abc", "ix"));
+		assertNull(SqlRegex.translate("\u00e9", "i"));
+		assertEquals("\u00e9", SqlRegex.translate("\u00e9", null));
+	}
+}
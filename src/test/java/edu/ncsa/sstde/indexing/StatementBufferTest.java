@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.impl.ContextStatementImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+
+public class StatementBufferTest {
+	private static final URI S = new URIImpl("http://example.org/s");
+	private static final URI P = new URIImpl("http://example.org/p");
+	private static final URI G = new URIImpl("http://example.org/g");
+
+	private static List<Statement> list(Iterable<Statement> statements) {
+		List<Statement> result = new ArrayList<Statement>();
+		for (Statement statement : statements) {
+			result.add(statement);
+		}
+		return result;
+	}
+
+	@Test
+	public void keepsDuplicatesOnce() {
+		StatementBuffer buffer = new StatementBuffer();
+		buffer.add(S, P, new LiteralImpl("a"), null);
+		buffer.add(S, P, new LiteralImpl("a"), null);
+		buffer.add(S, P, new LiteralImpl("a"), G);
+		assertEquals(2, buffer.getAddedCount());
+		List<Statement> added = list(buffer.getAdded());
+		assertEquals(new StatementImpl(S, P, new LiteralImpl("a")),
+				added.get(0));
+		assertEquals(G, added.get(1).getContext());
+		assertTrue(added.get(1) instanceof ContextStatementImpl);
+	}
+
+	@Test
+	public void lastOperationWins() {
+		StatementBuffer buffer = new StatementBuffer();
+		buffer.add(S, P, new LiteralImpl("a"), null);
+		buffer.remove(S, P, new LiteralImpl("a"), null);
+		buffer.remove(S, P, new LiteralImpl("b"), null);
+		buffer.add(S, P, new LiteralImpl("b"), null);
+		assertEquals(1, buffer.getAddedCount());
+		assertEquals(1, buffer.getRemovedCount());
+		assertEquals(new LiteralImpl("b"), list(buffer.getAdded()).get(0)
+				.getObject());
+		assertEquals(new LiteralImpl("a"), list(buffer.getRemoved()).get(0)
+				.getObject());
+	}
+
+	@Test
+	public void growsAndShrinksOnClear() {
+		StatementBuffer buffer = new StatementBuffer();
+		int initial = buffer.getCapacity();
+		for (int i = 0; i < initial * 8; i++) {
+			buffer.add(S, P, new LiteralImpl(Integer.toString(i)), null);
+		}
+		assertEquals(initial * 8, buffer.size());
+		assertEquals(initial * 8, list(buffer.getAdded()).size());
+		buffer.clear();
+		assertEquals(0, buffer.size());
+		assertEquals(initial, buffer.getCapacity());
+		buffer.add(S, P, new LiteralImpl("a"), null);
+		assertEquals(new LiteralImpl("a"), list(buffer.getAdded()).get(0)
+				.getObject());
+	}
+}
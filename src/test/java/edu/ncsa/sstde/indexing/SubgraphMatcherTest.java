@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.helpers.StatementPatternCollector;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+
+public class SubgraphMatcherTest {
+	private static List<StatementPattern> parse(String where) throws Exception {
+		return StatementPatternCollector.process(new SPARQLParser()
+				.parseQuery("SELECT * WHERE {" + where + "}", null)
+				.getTupleExpr());
+	}
+
+	/**
+	 * @return the object variable names of the selected query patterns of
+	 *         every match
+	 */
+	private static List<String> match(String index, String query)
+			throws Exception {
+		final List<StatementPattern> queryPatterns = parse(query);
+		final List<String> matches = new ArrayList<String>();
+		new SubgraphMatcher(parse(index), queryPatterns)
+				.match(new SubgraphMatcher.MatchHandler() {
+					@Override
+					public boolean match(List<StatementPattern> selected) {
+						StringBuffer names = new StringBuffer();
+						for (StatementPattern pattern : selected) {
+							names.append(pattern.getObjectVar().getName())
+									.append(' ');
+						}
+						matches.add(names.toString().trim());
+						return true;
+					}
+				});
+		return matches;
+	}
+
+	@Test
+	public void matchesEveryPatternOnce() throws Exception {
+		List<String> matches = match("?s <urn:p> ?a . ?s <urn:q> ?b",
+				"?x <urn:q> ?qb . ?x <urn:p> ?pa . ?y <urn:p> ?pc");
+		assertEquals(1, matches.size());
+		assertEquals("pa qb", matches.get(0));
+	}
+
+	@Test
+	public void findsAllMatches() throws Exception {
+		List<String> matches = match("?s <urn:p> ?a",
+				"?x <urn:p> ?o1 . ?y <urn:p> ?o2");
+		assertEquals(2, matches.size());
+		assertTrue(matches.contains("o1"));
+		assertTrue(matches.contains("o2"));
+	}
+
+	@Test
+	public void keepsVariablesConsistent() throws Exception {
+		// ?s must map to the same query variable in both patterns
+		assertEquals(0, match("?s <urn:p> ?a . ?s <urn:q> ?b",
+				"?x <urn:p> ?o1 . ?y <urn:q> ?o2").size());
+		// a constant of the index graph needs the same constant
+		assertEquals(0, match("?s <urn:p> <urn:a>", "?x <urn:p> <urn:b>")
+				.size());
+		assertEquals(1, match("?s <urn:p> <urn:a>", "?x <urn:p> <urn:a>")
+				.size());
+	}
+
+	@Test
+	public void stopsWhenTheHandlerSaysSo() throws Exception {
+		final int[] calls = new int[1];
+		new SubgraphMatcher(parse("?s <urn:p> ?a"),
+				parse("?x <urn:p> ?o1 . ?y <urn:p> ?o2"))
+				.match(new SubgraphMatcher.MatchHandler() {
+					@Override
+					public boolean match(List<StatementPattern> selected) {
+						calls[0]++;
+						return false;
+					}
+				});
+		assertEquals(1, calls[0]);
+	}
+}
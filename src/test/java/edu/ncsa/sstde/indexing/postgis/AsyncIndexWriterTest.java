@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+import com.useekm.indexing.exception.IndexException;
+
+public class AsyncIndexWriterTest {
+	private AsyncIndexWriter createWriter(PostgisIndexer indexer) {
+		PostgisIndexerSettings settings = mock(PostgisIndexerSettings.class);
+		when(settings.getBatchSize()).thenReturn(1);
+		when(indexer.getName()).thenReturn("test");
+		when(indexer.getSettings()).thenReturn(settings);
+		return new AsyncIndexWriter(indexer, 2);
+	}
+
+	@Test
+	public void releasesWaitersWhenStopped() throws Exception {
+		PostgisIndexer indexer = mock(PostgisIndexer.class);
+		final AsyncIndexWriter writer = createWriter(indexer);
+		final Object[] result = new Object[1];
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.awaitWatermark(1, 0);
+					result[0] = "returned";
+				} catch (IndexException e) {
+					result[0] = e;
+				} catch (InterruptedException e) {
+					result[0] = e;
+				}
+			}
+		};
+		writer.start();
+		waiter.start();
+		writer.stop();
+		waiter.join(5000);
+		assertTrue(result[0] instanceof IndexException);
+		assertTrue(writer.isStopped());
+		// the writer thread closes its connection on the way out
+		for (int i = 0; i < 50; i++) {
+			try {
+				verify(indexer).close();
+				return;
+			} catch (AssertionError e) {
+				Thread.sleep(100);
+			}
+		}
+		verify(indexer).close();
+	}
+
+	@Test
+	public void refusesRowsWhenStopped() {
+		AsyncIndexWriter writer = createWriter(mock(PostgisIndexer.class));
+		writer.start();
+		writer.stop();
+		try {
+			writer.open(1);
+			fail();
+		} catch (IndexException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void reportsFailedSubmissionOnce() throws Exception {
+		PostgisIndexer indexer = mock(PostgisIndexer.class);
+		when(indexer.createBatchWriter(anyInt())).thenThrow(
+				new IllegalStateException("database is gone"));
+		AsyncIndexWriter writer = createWriter(indexer);
+		writer.start();
+		AsyncIndexWriter.Submission submission = writer.open(1);
+		submission.add(new Object[] { "row" });
+		long ticket = submission.close();
+		assertTrue(writer.awaitWatermark(ticket, 5000));
+		assertEquals(ticket, writer.getAppliedWatermark());
+		assertTrue(writer.removeFailed(ticket));
+		assertFalse(writer.removeFailed(ticket));
+		writer.stop();
+	}
+
+	@Test
+	public void fillsSubmissionsConcurrently() throws Exception {
+		PostgisIndexer indexer = mock(PostgisIndexer.class);
+		IndexBatchWriter batchWriter = mock(IndexBatchWriter.class);
+		Connection connection = mock(Connection.class);
+		when(indexer.createBatchWriter(anyInt())).thenReturn(batchWriter);
+		when(indexer.getConnection()).thenReturn(connection);
+		final AsyncIndexWriter writer = createWriter(indexer);
+		writer.start();
+		AsyncIndexWriter.Submission first = writer.open(1);
+		first.add(new Object[] { "a" });
+		final long[] ticket = new long[1];
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				AsyncIndexWriter.Submission second = writer.open(1);
+				second.add(new Object[] { "b" });
+				ticket[0] = second.close();
+			}
+		};
+		other.start();
+		other.join(5000);
+		// the open submission does not hold the other one back
+		assertEquals(1, ticket[0]);
+		assertEquals(2, first.close());
+		assertTrue(writer.awaitWatermark(2, 5000));
+		assertFalse(writer.removeFailed(1));
+		assertFalse(writer.removeFailed(2));
+		writer.stop();
+	}
+}
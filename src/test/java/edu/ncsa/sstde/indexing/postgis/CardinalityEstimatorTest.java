@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ncsa.sstde.indexing.postgis.PostgisIndexer.Binding;
+
+public class CardinalityEstimatorTest {
+	private static final String SQL = "SELECT t0.x FROM idx t0 WHERE t0.y=?";
+
+	private final Connection connection = mock(Connection.class);
+	private final PreparedStatement statement = mock(PreparedStatement.class);
+	private final ResultSet plan = mock(ResultSet.class);
+
+	@Before
+	public void setUp() throws SQLException {
+		when(connection.getAutoCommit()).thenReturn(true);
+		when(connection.prepareStatement("EXPLAIN " + SQL)).thenReturn(
+				statement);
+		when(statement.executeQuery()).thenReturn(plan);
+		when(plan.next()).thenReturn(true);
+		when(plan.getString(1)).thenReturn(
+				"Index Scan using idx_y on idx t0  (cost=0.29..8.31 rows=42"
+						+ " width=32)");
+	}
+
+	private static List<Binding> bind(String value) {
+		return Collections.singletonList(new Binding(Types.VARCHAR, value));
+	}
+
+	@Test
+	public void readsRowsAndCostOfThePlan() throws SQLException {
+		CardinalityEstimator estimator = new CardinalityEstimator(60000, 10);
+		assertEquals(42, estimator.estimate(connection, SQL, bind("a")), 0);
+		assertEquals(8.31, estimator.estimateCost(connection, SQL, bind("a")),
+				0.001);
+		verify(statement).setObject(1, "a", Types.VARCHAR);
+		// the cost comes from the cached plan
+		verify(statement, times(1)).executeQuery();
+	}
+
+	@Test
+	public void explainsOtherParametersAgain() throws SQLException {
+		CardinalityEstimator estimator = new CardinalityEstimator(60000, 10);
+		estimator.estimate(connection, SQL, bind("a"));
+		estimator.estimate(connection, SQL, bind("b"));
+		verify(statement, times(2)).executeQuery();
+	}
+
+	@Test
+	public void explainsAgainAfterTheTTL() throws SQLException {
+		CardinalityEstimator estimator = new CardinalityEstimator(-1, 10);
+		estimator.estimate(connection, SQL, bind("a"));
+		estimator.estimate(connection, SQL, bind("a"));
+		verify(statement, times(2)).executeQuery();
+	}
+
+	@Test
+	public void keepsTheTransactionOnFailure() throws SQLException {
+		Savepoint savepoint = mock(Savepoint.class);
+		when(connection.getAutoCommit()).thenReturn(false);
+		when(connection.setSavepoint()).thenReturn(savepoint);
+		when(statement.executeQuery()).thenThrow(
+				new SQLException("relation does not exist"));
+		CardinalityEstimator estimator = new CardinalityEstimator(60000, 10);
+		assertEquals(-1, estimator.estimate(connection, SQL, bind("a")), 0);
+		verify(connection).rollback(savepoint);
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.UUID;
+
+import org.junit.Test;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+public class GraphIdentityTest {
+	private static UUID identify(GraphIdentity identity, Value... values) {
+		identity.reset();
+		for (Value value : values) {
+			identity.add(value);
+		}
+		return identity.get();
+	}
+
+	@Test
+	public void isStable() {
+		GraphIdentity identity = new GraphIdentity();
+		Value[] values = { new URIImpl("http://example.org/s"),
+				new LiteralImpl("1.5") };
+		assertEquals(identify(identity, values), identify(identity, values));
+		assertEquals(identify(identity, values),
+				identify(new GraphIdentity(), values));
+	}
+
+	@Test
+	public void separatesKindsAndParts() {
+		GraphIdentity identity = new GraphIdentity();
+		URIImpl type = new URIImpl("http://example.org/t");
+		assertFalse(identify(identity, new URIImpl("urn:a")).equals(
+				identify(identity, new LiteralImpl("urn:a"))));
+		assertFalse(identify(identity, new BNodeImpl("a")).equals(
+				identify(identity, new LiteralImpl("a"))));
+		assertFalse(identify(identity, new LiteralImpl("a", "en")).equals(
+				identify(identity, new LiteralImpl("a"))));
+		assertFalse(identify(identity, new LiteralImpl("a", type)).equals(
+				identify(identity, new LiteralImpl("a"))));
+		assertFalse(identify(identity, new LiteralImpl("ab"),
+				new LiteralImpl("c")).equals(
+				identify(identity, new LiteralImpl("a"), new LiteralImpl("bc"))));
+	}
+
+	@Test
+	public void digestsValuesLongerThanTheScratchBuffer() {
+		GraphIdentity identity = new GraphIdentity();
+		StringBuffer label = new StringBuffer();
+		for (int i = 0; i < 1000; i++) {
+			label.append('x');
+		}
+		UUID full = identify(identity, new LiteralImpl(label.toString()));
+		label.setCharAt(999, 'y');
+		assertFalse(full.equals(identify(identity,
+				new LiteralImpl(label.toString()))));
+		label.setCharAt(999, 'x');
+		assertEquals(full, identify(identity,
+				new LiteralImpl(label.toString())));
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexBatchWriterTest {
+	private final Connection connection = mock(Connection.class);
+	private final PreparedStatement statement = mock(PreparedStatement.class);
+	private final Savepoint savepoint = mock(Savepoint.class);
+
+	@Before
+	public void setUp() throws SQLException {
+		when(statement.getConnection()).thenReturn(connection);
+		when(connection.setSavepoint()).thenReturn(savepoint);
+	}
+
+	@Test
+	public void writesGroups() throws SQLException {
+		when(statement.executeBatch()).thenReturn(new int[] { 1, 1 });
+		IndexBatchWriter writer = new IndexBatchWriter(statement, 2);
+		writer.add(new Object[] { "g1" });
+		writer.add(new Object[] { "g2" });
+		verify(statement).executeBatch();
+		assertEquals(2, writer.getWritten());
+	}
+
+	@Test
+	public void failsOnRejectedRow() throws SQLException {
+		when(statement.executeBatch()).thenThrow(
+				new BatchUpdateException("batch failed", new int[0]));
+		when(statement.executeUpdate()).thenReturn(1).thenThrow(
+				new SQLException("invalid input syntax", "22P02"));
+		IndexBatchWriter writer = new IndexBatchWriter(statement, 10);
+		writer.add(new Object[] { "g1" });
+		writer.add(new Object[] { "g2" });
+		try {
+			writer.flush();
+			fail("the rejected row must fail the flush");
+		} catch (SQLException e) {
+			assertEquals("22P02", e.getSQLState());
+		}
+		// the group and the rejected row are rolled back, the good row is
+		// kept until the caller rolls back the transaction
+		verify(connection, times(2)).rollback(savepoint);
+		assertEquals(1, writer.getWritten());
+	}
+
+	@Test
+	public void checksSkippedInsertsForCollisions() throws SQLException {
+		PreparedStatement collisionQuery = mock(PreparedStatement.class);
+		ResultSet result = mock(ResultSet.class);
+		when(result.next()).thenReturn(true);
+		when(collisionQuery.executeQuery()).thenReturn(result);
+		when(statement.executeBatch()).thenReturn(new int[] { 1, 0 });
+		IndexBatchWriter writer = new IndexBatchWriter(statement,
+				collisionQuery, 10, null, null);
+		writer.add(new Object[] { "g1", "a" });
+		writer.add(new Object[] { "g2", "b" });
+		writer.flush();
+		assertEquals(1, writer.getWritten());
+		// only the skipped row is looked up
+		verify(collisionQuery, never()).setObject(1, "g1");
+		verify(collisionQuery).setObject(1, "g2");
+		verify(collisionQuery).setObject(2, "b");
+		verify(collisionQuery).executeQuery();
+		verify(result).close();
+	}
+}
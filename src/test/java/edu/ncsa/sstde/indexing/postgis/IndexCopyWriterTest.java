@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.SQLException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.postgresql.copy.CopyIn;
+
+public class IndexCopyWriterTest {
+	private final CopyIn copyIn = mock(CopyIn.class);
+	private final ByteArrayOutputStream copied = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws SQLException {
+		doAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				Object[] arguments = invocation.getArguments();
+				copied.write((byte[]) arguments[0], (Integer) arguments[1],
+						(Integer) arguments[2]);
+				return null;
+			}
+		}).when(copyIn).writeToCopy(any(byte[].class), anyInt(), anyInt());
+		when(copyIn.endCopy()).thenReturn(2L);
+	}
+
+	@Test
+	public void writesTheTextFormat() throws Exception {
+		IndexCopyWriter writer = new IndexCopyWriter(copyIn);
+		writer.add(new Object[] { "g1", "a\tb", null });
+		writer.add(new Object[] { "g2", "c\\d\ne", "f\r" });
+		assertEquals(2, writer.getWritten());
+		assertEquals(2, writer.finish());
+		assertEquals("g1\ta\\tb\t\\N\ng2\tc\\\\d\\ne\tf\\r\n", new String(
+				copied.toByteArray(), "UTF-8"));
+	}
+
+	@Test
+	public void buffersUntilFinish() throws Exception {
+		IndexCopyWriter writer = new IndexCopyWriter(copyIn);
+		writer.add(new Object[] { "g1", "a" });
+		verify(copyIn, never()).writeToCopy(any(byte[].class), anyInt(),
+				anyInt());
+		writer.finish();
+		assertEquals("g1\ta\n", new String(copied.toByteArray(), "UTF-8"));
+	}
+
+	@Test
+	public void cancelsAnActiveCopy() throws Exception {
+		when(copyIn.isActive()).thenReturn(true);
+		new IndexCopyWriter(copyIn).cancel();
+		verify(copyIn).cancelCopy();
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class KeysetPagingTest {
+	private static final String HEAD = "SELECT t0.a,t0._oid FROM t t0";
+	private static final List<String> KEYS = Arrays.asList("t0.a", "t0._oid");
+
+	private static String createSQL(String where, boolean ascending,
+			boolean... nulls) {
+		return KeysetPaging.createSQL(HEAD, where, "t0.a,t0._oid", KEYS,
+				Arrays.asList(ascending, true), nulls, null);
+	}
+
+	@Test
+	public void selectsRowsAfterKey() {
+		assertEquals(HEAD + " WHERE (t0.b=?) AND (((t0.a>? OR t0.a IS NULL))"
+				+ " OR (t0.a=? AND t0._oid>?)) ORDER BY t0.a,t0._oid limit ?",
+				createSQL("t0.b=?", true, false, false));
+		assertEquals(HEAD + " WHERE ((t0.a<?) OR (t0.a=? AND t0._oid>?))"
+				+ " ORDER BY t0.a,t0._oid limit ?",
+				createSQL("", false, false, false));
+	}
+
+	@Test
+	public void nullOfAscendingKeyIsLast() {
+		assertEquals(HEAD + " WHERE ((t0.a IS NULL AND t0._oid>?))"
+				+ " ORDER BY t0.a,t0._oid limit ?",
+				createSQL("", true, true, false));
+	}
+
+	@Test
+	public void nullOfDescendingKeyIsFirst() {
+		assertEquals(HEAD + " WHERE ((t0.a IS NOT NULL)"
+				+ " OR (t0.a IS NULL AND t0._oid>?))"
+				+ " ORDER BY t0.a,t0._oid limit ?",
+				createSQL("", false, true, false));
+	}
+
+	@Test
+	public void listsParametersInOrder() {
+		List<Integer> parameters = new ArrayList<Integer>();
+		KeysetPaging.createSQL(HEAD, "", "1,t0._oid",
+				Arrays.asList("(t0.g <-> ?)", "t0._oid"),
+				Arrays.asList(true, true), new boolean[2], parameters);
+		assertEquals(Arrays.asList(0, 1, 0, 0, 1, 2, 3), parameters);
+	}
+}
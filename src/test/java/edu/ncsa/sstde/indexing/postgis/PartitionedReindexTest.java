@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.URIImpl;
+
+public class PartitionedReindexTest {
+	@Test
+	public void partitionsAreStable() {
+		// a resumed reindex must find the values in the same partitions
+		assertEquals(PartitionedReindex.partitionOf(new URIImpl("urn:s1"), 8),
+				PartitionedReindex.partitionOf(new URIImpl("urn:s1"), 8));
+		assertEquals(("urn:s1".hashCode() & Integer.MAX_VALUE) % 8,
+				PartitionedReindex.partitionOf(new URIImpl("urn:s1"), 8));
+	}
+
+	@Test
+	public void coversAllPartitions() {
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			int partition = PartitionedReindex.partitionOf(new URIImpl(
+					"urn:s" + i), 8);
+			assertTrue(partition >= 0 && partition < 8);
+			seen.add(partition);
+		}
+		assertEquals(8, seen.size());
+	}
+
+	@Test
+	public void hashesOfMinValueStayInRange() {
+		// "polygenelubricants" hashes to Integer.MIN_VALUE
+		assertEquals(Integer.MIN_VALUE, "polygenelubricants".hashCode());
+		assertEquals(0, PartitionedReindex.partitionOf(new LiteralImpl(
+				"polygenelubricants"), 8));
+	}
+}
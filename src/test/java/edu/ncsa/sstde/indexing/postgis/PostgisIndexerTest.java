@@ -0,0 +1,391 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.algebra.Group;
+import org.openrdf.query.algebra.OrderElem;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.TupleExpr;
+import org.openrdf.query.algebra.evaluation.QueryBindingSet;
+import org.openrdf.query.algebra.helpers.QueryModelVisitorBase;
+import org.openrdf.query.parser.sparql.SPARQLParser;
+
+import edu.ncsa.sstde.indexing.GraphAnalyzer;
+import edu.ncsa.sstde.indexing.GraphAnalyzer.MatchedIndexedGraph;
+import edu.ncsa.sstde.indexing.IndexGraph;
+import edu.ncsa.sstde.indexing.LiteralDef;
+import edu.ncsa.sstde.indexing.algebra.IndexerExpr;
+import edu.ncsa.sstde.indexing.postgis.PostgisIndexer.Binding;
+import edu.ncsa.sstde.util.DataTypeURI;
+
+public class PostgisIndexerTest {
+	private final Connection connection = mock(Connection.class);
+	private final ResultSet ids = mock(ResultSet.class);
+	private final Map<String, LiteralDef> literalDefs = new HashMap<String, LiteralDef>();
+	private final PostgisIndexerSettings settings = new PostgisIndexerSettings();
+	private PostgisIndexer indexer;
+
+	@Before
+	public void setUp() throws Exception {
+		DataSource dataSource = mock(DataSource.class);
+		when(dataSource.getConnection()).thenReturn(connection);
+		PreparedStatement statement = mock(PreparedStatement.class);
+		when(connection.prepareStatement(anyString())).thenReturn(statement);
+		Array array = mock(Array.class);
+		when(connection.createArrayOf(anyString(), (Object[]) anyObject()))
+				.thenReturn(array);
+		when(statement.executeQuery()).thenReturn(ids);
+		settings.setDataSource(dataSource);
+
+		IndexGraph indexGraph = mock(IndexGraph.class);
+		when(indexGraph.getPatterns()).thenReturn(
+				new ArrayList<StatementPattern>(GraphAnalyzer
+						.getStatementPatterns(parse("?x <urn:p> ?y"))));
+		when(indexGraph.getLiteralDefMap()).thenReturn(literalDefs);
+		when(indexGraph.getLiteralType(anyString())).thenAnswer(
+				new Answer<LiteralDef>() {
+					@Override
+					public LiteralDef answer(InvocationOnMock invocation) {
+						return literalDefs.get(invocation.getArguments()[0]);
+					}
+				});
+		settings.setIndexGraph(indexGraph);
+		indexer = new PostgisIndexer(settings);
+		indexer.setName("idx");
+	}
+
+	private static TupleExpr parse(String where) throws Exception {
+		return new SPARQLParser().parseQuery("SELECT * WHERE {" + where + "}",
+				null).getTupleExpr();
+	}
+
+	/**
+	 * @return the graph of the index matched to the single pattern of a query
+	 */
+	private MatchedIndexedGraph match(String where) throws Exception {
+		return match(parse(where));
+	}
+
+	private MatchedIndexedGraph match(TupleExpr tupleExpr) {
+		List<StatementPattern> patterns = GraphAnalyzer
+				.getStatementPatterns(tupleExpr);
+		MatchedIndexedGraph graph = new GraphAnalyzer(settings.getIndexGraph())
+				.replay(patterns, patterns);
+		graph.setIndexer(indexer);
+		return graph;
+	}
+
+	private static QueryBindingSet bind(String name, String uri) {
+		QueryBindingSet bindings = new QueryBindingSet();
+		bindings.addBinding(name, new URIImpl(uri));
+		return bindings;
+	}
+
+	@Test
+	public void filtersTermColumnsById() throws Exception {
+		settings.setDictionaryTerms(true);
+		when(ids.next()).thenReturn(true, false);
+		when(ids.getString(1)).thenReturn("urn:o");
+		when(ids.getLong(2)).thenReturn(7L);
+		List<Binding> parameters = new ArrayList<Binding>();
+		assertEquals("SELECT (SELECT term FROM idx_terms WHERE id=t0.x) AS x"
+				+ " FROM idx t0 WHERE t0.y=? ", indexer.createSQL(
+				match("?s <urn:p> <urn:o>"),
+				Collections.<BindingSet> emptyList(), parameters));
+		assertEquals(1, parameters.size());
+		assertEquals(Types.BIGINT, parameters.get(0).getType());
+		assertEquals(7L, parameters.get(0).getValue());
+	}
+
+	@Test
+	public void filtersUnknownTermsByNoId() throws Exception {
+		settings.setDictionaryTerms(true);
+		when(ids.next()).thenReturn(false);
+		MatchedIndexedGraph graph = match("?s <urn:p> ?o");
+		graph.setUsedVarNames(Collections.singleton("o"));
+		List<Binding> parameters = new ArrayList<Binding>();
+		assertEquals("SELECT (SELECT term FROM idx_terms WHERE id=t0.y) AS y"
+				+ " FROM idx t0 WHERE t0.x=? ", indexer.createSQL(graph,
+				Collections.<BindingSet> singletonList(bind("s", "urn:a")),
+				parameters));
+		assertEquals(Types.BIGINT, parameters.get(0).getType());
+		assertEquals(TermDictionary.NO_ID, parameters.get(0).getValue());
+	}
+
+	@Test
+	public void filtersBlocksByIdArray() throws Exception {
+		settings.setDictionaryTerms(true);
+		when(ids.next()).thenReturn(false);
+		MatchedIndexedGraph graph = match("?s <urn:p> ?o");
+		graph.setUsedVarNames(Collections.singleton("o"));
+		List<Binding> parameters = new ArrayList<Binding>();
+		assertEquals("SELECT (SELECT term FROM idx_terms WHERE id=t0.y) AS y"
+				+ " FROM idx t0 WHERE t0.x=ANY(?) ", indexer.createSQL(graph,
+				Arrays.<BindingSet> asList(bind("s", "urn:a"),
+						bind("s", "urn:b")), parameters));
+		assertEquals(Types.ARRAY, parameters.get(0).getType());
+		verify(connection).createArrayOf("int8", new Object[0]);
+	}
+
+	@Test
+	public void filtersTextColumnsByValue() throws Exception {
+		MatchedIndexedGraph graph = match("?s <urn:p> ?o");
+		graph.setUsedVarNames(Collections.singleton("o"));
+		List<Binding> parameters = new ArrayList<Binding>();
+		assertEquals("SELECT t0.y FROM idx t0 WHERE t0.x=CAST(? AS text) ",
+				indexer.createSQL(graph, Collections.<BindingSet> singletonList(bind(
+						"s", "urn:a")), parameters));
+		assertEquals(Types.VARCHAR, parameters.get(0).getType());
+		assertEquals("urn:a", parameters.get(0).getValue());
+	}
+
+	/**
+	 * @return the graph of the index matched to the pattern of a grouped
+	 *         query, with the group of the query
+	 */
+	private MatchedIndexedGraph matchGroup(String query) throws Exception {
+		TupleExpr tupleExpr = new SPARQLParser().parseQuery(query, null)
+				.getTupleExpr();
+		final Group[] group = new Group[1];
+		tupleExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
+			@Override
+			public void meet(Group node) {
+				group[0] = node;
+			}
+		});
+		MatchedIndexedGraph graph = match(tupleExpr);
+		graph.setGroup(group[0]);
+		return graph;
+	}
+
+	@Test
+	public void groupsByCount() throws Exception {
+		MatchedIndexedGraph graph = matchGroup("SELECT ?s (COUNT(?o) AS ?n)"
+				+ " WHERE { ?s <urn:p> ?o } GROUP BY ?s");
+		assertTrue(indexer.canGroup(graph, graph.getGroup()));
+		assertEquals("SELECT t0.x, count(t0.y) AS _agg0 FROM idx t0"
+				+ " GROUP BY t0.x", indexer.createSQL(graph,
+				Collections.<BindingSet> emptyList(), new ArrayList<Binding>()));
+	}
+
+	@Test
+	public void countsRowsOfOneGroup() throws Exception {
+		MatchedIndexedGraph graph = matchGroup("SELECT (COUNT(*) AS ?n)"
+				+ " WHERE { ?s <urn:p> ?o }");
+		assertTrue(indexer.canGroup(graph, graph.getGroup()));
+		assertEquals("SELECT count(*) AS _agg0 FROM idx t0", indexer
+				.createSQL(graph, Collections.<BindingSet> emptyList(),
+						new ArrayList<Binding>()));
+	}
+
+	@Test
+	public void groupsByMinAndMaxOfDateTime() throws Exception {
+		literalDefs.put("y", new LiteralDef("y", DataTypeURI.DATETIME));
+		MatchedIndexedGraph graph = matchGroup("SELECT ?s (MIN(?o) AS ?first)"
+				+ " (MAX(?o) AS ?last) WHERE { ?s <urn:p> ?o } GROUP BY ?s");
+		assertTrue(indexer.canGroup(graph, graph.getGroup()));
+		assertEquals("SELECT t0.x, min(t0.y) AS _agg0, max(t0.y) AS _agg1"
+				+ " FROM idx t0 GROUP BY t0.x", indexer.createSQL(graph,
+				Collections.<BindingSet> emptyList(), new ArrayList<Binding>()));
+	}
+
+	@Test
+	public void rejectsAggregatesItCanNotCompute() throws Exception {
+		// SPARQL orders URIs, the column holds them as text
+		MatchedIndexedGraph graph = matchGroup("SELECT ?s (MIN(?o) AS ?m)"
+				+ " WHERE { ?s <urn:p> ?o } GROUP BY ?s");
+		assertFalse(indexer.canGroup(graph, graph.getGroup()));
+		graph = matchGroup("SELECT ?s (SAMPLE(?o) AS ?m)"
+				+ " WHERE { ?s <urn:p> ?o } GROUP BY ?s");
+		assertFalse(indexer.canGroup(graph, graph.getGroup()));
+		graph = matchGroup("SELECT ?s (COUNT(STR(?o)) AS ?m)"
+				+ " WHERE { ?s <urn:p> ?o } GROUP BY ?s");
+		assertFalse(indexer.canGroup(graph, graph.getGroup()));
+	}
+
+	@Test
+	public void rejectsGroupByGeometry() throws Exception {
+		literalDefs.put("y", new LiteralDef("y", DataTypeURI.GEOMETRY));
+		MatchedIndexedGraph graph = matchGroup("SELECT ?o (COUNT(?s) AS ?n)"
+				+ " WHERE { ?s <urn:p> ?o } GROUP BY ?o");
+		assertFalse(indexer.canGroup(graph, graph.getGroup()));
+	}
+
+	@Test
+	public void ordersByDistanceToAConstant() throws Exception {
+		literalDefs.put("y", new LiteralDef("y", DataTypeURI.GEOMETRY));
+		TupleExpr tupleExpr = new SPARQLParser().parseQuery(
+				"SELECT ?s WHERE { ?s <urn:p> ?g } ORDER BY"
+						+ " <http://rdf.opensahara.com/search#distance>(?g,"
+						+ " \"POINT(1 2)\"^^<" + DataTypeURI.GEOMETRY
+						+ ">) LIMIT 5", null).getTupleExpr();
+		final OrderElem[] order = new OrderElem[1];
+		tupleExpr.visit(new QueryModelVisitorBase<RuntimeException>() {
+			@Override
+			public void meet(OrderElem node) {
+				order[0] = node;
+			}
+		});
+		MatchedIndexedGraph graph = match(tupleExpr);
+		graph.setUsedVarNames(Collections.singleton("s"));
+		graph.getOrders().add(order[0]);
+		graph.setLimit(5);
+		List<Binding> parameters = new ArrayList<Binding>();
+		// the distance is bound ahead of the where clause, the identity
+		// makes the order total for the pages after the limit
+		assertEquals("SELECT t0.x, (t0.y <-> ?), t0._oid FROM idx t0"
+				+ " ORDER BY 2 ASC ,t0._oid ASC ", indexer.createSQL(graph,
+				Collections.<BindingSet> emptyList(), parameters));
+		assertEquals(1, parameters.size());
+		assertEquals(Types.OTHER, parameters.get(0).getType());
+	}
+
+	@Test
+	public void filtersBlocksByValueArray() throws Exception {
+		MatchedIndexedGraph graph = match("?s <urn:p> ?o");
+		graph.setUsedVarNames(Collections.singleton("o"));
+		List<Binding> parameters = new ArrayList<Binding>();
+		assertEquals("SELECT t0.y FROM idx t0"
+				+ " WHERE t0.x=ANY(CAST(? AS text[])) ", indexer.createSQL(
+				graph, Arrays.<BindingSet> asList(bind("s", "urn:a"),
+						bind("s", "urn:b")), parameters));
+		assertEquals(Types.ARRAY, parameters.get(0).getType());
+		verify(connection).createArrayOf("text",
+				new Object[] { "urn:a", "urn:b" });
+	}
+
+	@Test
+	public void leavesVariablesBoundInSomeBindingsToTheJoin()
+			throws Exception {
+		MatchedIndexedGraph graph = match("?s <urn:p> ?o");
+		graph.setUsedVarNames(Collections.singleton("o"));
+		List<Binding> parameters = new ArrayList<Binding>();
+		assertEquals("SELECT t0.y FROM idx t0", indexer.createSQL(graph,
+				Arrays.<BindingSet> asList(bind("s", "urn:a"),
+						new QueryBindingSet()), parameters));
+		assertEquals(0, parameters.size());
+	}
+
+	@Test
+	public void filtersGroupsOnlyByGroupVariables() throws Exception {
+		MatchedIndexedGraph graph = matchGroup("SELECT ?s (COUNT(?o) AS ?n)"
+				+ " WHERE { ?s <urn:p> ?o } GROUP BY ?s");
+		QueryBindingSet bindings = bind("s", "urn:a");
+		bindings.addBinding("o", new URIImpl("urn:b"));
+		List<Binding> parameters = new ArrayList<Binding>();
+		assertEquals("SELECT t0.x, count(t0.y) AS _agg0 FROM idx t0"
+				+ " WHERE t0.x=CAST(? AS text)  GROUP BY t0.x", indexer
+				.createSQL(graph, Collections.<BindingSet> singletonList(
+						bindings), parameters));
+		assertEquals(1, parameters.size());
+	}
+
+	/**
+	 * @return the statement of the query of a graph, which returns no rows
+	 */
+	private PreparedStatement prepareQuery(String sql) throws SQLException {
+		PreparedStatement query = mock(PreparedStatement.class);
+		ResultSet results = mock(ResultSet.class);
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		when(results.getMetaData()).thenReturn(metaData);
+		when(connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY)).thenReturn(query);
+		when(query.executeQuery()).thenReturn(results);
+		return query;
+	}
+
+	@Test
+	public void readsResultsThroughACursor() throws Exception {
+		PreparedStatement query = prepareQuery("SELECT t0.y FROM idx t0");
+		MatchedIndexedGraph graph = match("?s <urn:p> ?o");
+		graph.setUsedVarNames(Collections.singleton("o"));
+		indexer.iterator(ValueFactoryImpl.getInstance(),
+				new IndexerExpr(graph, ValueFactoryImpl.getInstance()),
+				Collections.<BindingSet> emptyList()).close();
+		// the driver only uses a cursor outside of autocommit mode
+		verify(connection, atLeastOnce()).setAutoCommit(false);
+		verify(connection, never()).setAutoCommit(true);
+		verify(query).setFetchSize(PostgisIndexerSettings.DEFAULT_FETCH_SIZE);
+	}
+
+	@Test
+	public void fetchesOneRowPastTheLimit() throws Exception {
+		PreparedStatement query = prepareQuery("SELECT DISTINCT t0.y"
+				+ " FROM idx t0 limit ?");
+		MatchedIndexedGraph graph = match("?s <urn:p> ?o");
+		graph.setUsedVarNames(Collections.singleton("o"));
+		graph.setDistinct(true);
+		graph.setLimit(10);
+		indexer.iterator(ValueFactoryImpl.getInstance(),
+				new IndexerExpr(graph, ValueFactoryImpl.getInstance()),
+				Collections.<BindingSet> emptyList()).close();
+		verify(query).setInt(1, 11);
+		verify(query).setFetchSize(11);
+	}
+
+	private static StatementPattern pattern(String where) throws Exception {
+		return GraphAnalyzer.getStatementPatterns(parse(where)).get(0);
+	}
+
+	@Test
+	public void matchesStatementsByConstantsAndRepeatedVariables()
+			throws Exception {
+		ValueFactoryImpl factory = ValueFactoryImpl.getInstance();
+		URIImpl s = new URIImpl("urn:s");
+		URIImpl p = new URIImpl("urn:p");
+		URIImpl o = new URIImpl("urn:o");
+		assertTrue(indexer.matches(pattern("?x <urn:p> <urn:o>"),
+				factory.createStatement(s, p, o)));
+		assertFalse(indexer.matches(pattern("?x <urn:p> <urn:o>"),
+				factory.createStatement(s, p, s)));
+		assertTrue(indexer.matches(pattern("?x <urn:p> ?x"),
+				factory.createStatement(s, p, s)));
+		assertFalse(indexer.matches(pattern("?x <urn:p> ?x"),
+				factory.createStatement(s, p, o)));
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RecentlySeenFilterTest {
+	@Test
+	public void filtersRecentKeys() {
+		RecentlySeenFilter<String> filter = new RecentlySeenFilter<String>(2);
+		assertTrue(filter.add("a"));
+		assertTrue(filter.add("b"));
+		assertFalse(filter.add("a"));
+		assertFalse(filter.add("b"));
+	}
+
+	@Test
+	public void forgetsTheLeastRecentKey() {
+		RecentlySeenFilter<String> filter = new RecentlySeenFilter<String>(2);
+		filter.add("a");
+		filter.add("b");
+		// "a" is seen again, so "b" is the least recent one
+		filter.add("a");
+		assertTrue(filter.add("c"));
+		assertTrue(filter.add("b"));
+		assertFalse(filter.add("c"));
+	}
+
+	@Test
+	public void passesEveryKeyWithoutCapacity() {
+		RecentlySeenFilter<String> filter = new RecentlySeenFilter<String>(0);
+		assertTrue(filter.add("a"));
+		assertTrue(filter.add("a"));
+	}
+}
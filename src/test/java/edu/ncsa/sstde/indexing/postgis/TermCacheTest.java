@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TermCacheTest {
+	@Test
+	public void returnsTheFirstValue() {
+		TermCache<String> cache = new TermCache<String>(10);
+		String value = new String("a");
+		assertSame(value, cache.put("key", value));
+		assertSame(value, cache.put("key", new String("a")));
+		assertSame(value, cache.get("key"));
+		assertNull(cache.get("other"));
+	}
+
+	@Test
+	public void evictsAQuarterOfTiedTerms() {
+		TermCache<Integer> cache = new TermCache<Integer>(8);
+		for (int i = 0; i < 9; i++) {
+			cache.put(i, i);
+		}
+		assertEquals(7, cache.size());
+	}
+
+	@Test
+	public void keepsTheTermsWithMostHits() {
+		TermCache<Integer> cache = new TermCache<Integer>(8);
+		for (int i = 0; i < 8; i++) {
+			cache.put(i, i);
+			for (int j = 0; j < i; j++) {
+				cache.get(i);
+			}
+		}
+		cache.put(8, 8);
+		assertEquals(7, cache.size());
+		// the new term and the term without hits are evicted
+		assertNull(cache.get(0));
+		assertNull(cache.get(8));
+		for (int i = 1; i < 8; i++) {
+			assertEquals(Integer.valueOf(i), cache.get(i));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TermDictionaryTest {
+	private final DataSource dataSource = mock(DataSource.class);
+	private final Connection connection = mock(Connection.class);
+	private final PreparedStatement statement = mock(PreparedStatement.class);
+	private final ResultSet ids = mock(ResultSet.class);
+	private TermDictionary dictionary;
+
+	@Before
+	public void setUp() throws SQLException {
+		when(dataSource.getConnection()).thenReturn(connection);
+		when(connection.prepareStatement(anyString())).thenReturn(statement);
+		Array array = mock(Array.class);
+		when(connection.createArrayOf(anyString(), (Object[]) anyObject()))
+				.thenReturn(array);
+		when(statement.executeQuery()).thenReturn(ids);
+		dictionary = new TermDictionary(dataSource, 10);
+	}
+
+	/**
+	 * Lets the lookup of the ids return one term.
+	 */
+	private void selects(String term, long id) throws SQLException {
+		when(ids.next()).thenReturn(true, false);
+		when(ids.getString(1)).thenReturn(term);
+		when(ids.getLong(2)).thenReturn(id);
+	}
+
+	@Test
+	public void encodesTermColumns() throws SQLException {
+		selects("urn:a", 7);
+		List<Object[]> rows = Collections.singletonList(new Object[] {
+				"oid", "urn:a", "text" });
+		dictionary.encode(rows, new int[] { 1 });
+		assertArrayEquals(new Object[] { "oid", 7L, "text" }, rows.get(0));
+		// the new term is inserted before its id is looked up
+		verify(statement).executeUpdate();
+	}
+
+	@Test
+	public void cachesIds() throws SQLException {
+		selects("urn:a", 7);
+		assertEquals(7, dictionary.getId("urn:a"));
+		assertEquals(Long.valueOf(7),
+				dictionary.getIds(Arrays.asList("urn:a")).get("urn:a"));
+		verify(statement, times(1)).executeQuery();
+	}
+
+	@Test
+	public void findsOnlyExistingTerms() throws SQLException {
+		when(ids.next()).thenReturn(false);
+		assertEquals(0, dictionary.findIds(Arrays.asList("urn:b")).size());
+		verify(statement, times(0)).executeUpdate();
+	}
+
+	@Test
+	public void givesTheConnectionBackOnClose() throws SQLException {
+		selects("urn:a", 7);
+		dictionary.getId("urn:a");
+		dictionary.close();
+		verify(connection).close();
+		try {
+			dictionary.getId("urn:b");
+			fail("a closed dictionary must not borrow a connection");
+		} catch (SQLException e) {
+			verify(dataSource, times(1)).getConnection();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 by TalkingTrends (Amsterdam, The Netherlands)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://opensahara.com/licenses/apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package edu.ncsa.sstde.indexing.postgis;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.useekm.fulltext.FulltextParseException;
+
+public class TsQueryTest {
+	@Test
+	public void quotesWords() {
+		assertEquals("'sea'", TsQuery.compile("sea"));
+		assertEquals("'it''s'", TsQuery.compile("it's"));
+	}
+
+	@Test
+	public void compilesOperators() {
+		assertEquals("(('sea' & 'salt') | 'sun':*)",
+				TsQuery.compile("sea salt | sun*"));
+		assertEquals("('sea' & ('salt' | 'sun'))",
+				TsQuery.compile("sea & (salt | sun)"));
+	}
+
+	@Test(expected = FulltextParseException.class)
+	public void rejectsEmptyQuery() {
+		TsQuery.compile("");
+	}
+}